@@ -0,0 +1,220 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.CommitTimeRevFilter;
+
+/**
+ * Counts the commits of repositories per day.
+ *
+ * The counts of each repository are cached together with the tips of its
+ * branches.  A repeat query of an unchanged repository walks nothing.  If the
+ * branches have only moved forward, only the new commits are walked, with the
+ * old tips as uninteresting boundaries.  A deleted or rewound branch, or a
+ * query reaching further back than the cached counts, walks the history
+ * again.  A walk keeps only the days of the requested period, and the least
+ * recently used repositories are dropped from the cache.
+ */
+public class Activity {
+
+	private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+	private static final int MAX_REPOSITORIES = 1000;
+
+	private static final Map<String, Entry> CACHE = Collections.synchronizedMap(
+			new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Activity.Entry> eldest) {
+			return size() > MAX_REPOSITORIES;
+		}
+	});
+
+	/**
+	 * The activity of one repository within the requested period.
+	 */
+	public static class Stats {
+
+		public final String name;
+
+		public int commits;
+
+		public int activeDays;
+
+		public Date lastCommit;
+
+		/** true if no commits had to be walked */
+		public boolean cached;
+
+		Stats(String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * The cached counts of one repository, never modified once cached.
+	 */
+	private static class Entry {
+
+		final Map<String, ObjectId> tips;
+
+		/** the first day covered by the counts */
+		final int horizon;
+
+		/** day since the epoch -> commits */
+		final NavigableMap<Integer, Integer> commits;
+
+		/** the time of the newest commit, in milliseconds */
+		final long lastCommit;
+
+		Entry(Map<String, ObjectId> tips, int horizon, NavigableMap<Integer, Integer> commits, long lastCommit) {
+			this.tips = tips;
+			this.horizon = horizon;
+			this.commits = commits;
+			this.lastCommit = lastCommit;
+		}
+	}
+
+	/**
+	 * Returns the commits of the last days, reachable from any branch.
+	 *
+	 * @param name
+	 * @param db
+	 * @param days
+	 * @return the activity
+	 */
+	public static Stats get(String name, Repository db, int days) throws IOException {
+		int today = (int) (System.currentTimeMillis() / DAY);
+		int horizon = today - days + 1;
+		Map<String, ObjectId> tips = getTips(db);
+
+		Stats stats = new Stats(name);
+		Entry entry = CACHE.get(name);
+		if (entry != null && entry.horizon <= horizon && entry.tips.equals(tips)) {
+			stats.cached = true;
+		} else {
+			RevWalk rw = new RevWalk(db);
+			try {
+				if (entry != null && entry.horizon <= horizon && isFastForward(rw, entry.tips, tips)) {
+					entry = walk(rw, tips, entry, horizon);
+				} else {
+					entry = walk(rw, tips, new Entry(null, horizon, new TreeMap<Integer, Integer>(), 0), horizon);
+				}
+			} finally {
+				rw.release();
+			}
+			CACHE.put(name, entry);
+		}
+
+		for (Map.Entry<Integer, Integer> day : entry.commits.tailMap(horizon, true).entrySet()) {
+			stats.commits += day.getValue();
+			stats.activeDays++;
+		}
+		if (entry.lastCommit > 0) {
+			stats.lastCommit = new Date(entry.lastCommit);
+		}
+		return stats;
+	}
+
+	/**
+	 * Drops the cached counts of the repository.
+	 */
+	public static void invalidate(String name) {
+		CACHE.remove(name);
+	}
+
+	private static Map<String, ObjectId> getTips(Repository db) throws IOException {
+		Map<String, ObjectId> tips = new HashMap<String, ObjectId>();
+		for (Ref ref : db.getRefDatabase().getRefs(Constants.R_HEADS).values()) {
+			if (ref.getObjectId() != null) {
+				tips.put(ref.getName(), ref.getObjectId());
+			}
+		}
+		return tips;
+	}
+
+	/**
+	 * Returns true if no branch was deleted and every branch which moved
+	 * still contains its old tip.
+	 */
+	private static boolean isFastForward(RevWalk rw, Map<String, ObjectId> oldTips, Map<String, ObjectId> newTips) throws IOException {
+		for (Map.Entry<String, ObjectId> old : oldTips.entrySet()) {
+			ObjectId tip = newTips.get(old.getKey());
+			if (tip == null) {
+				return false;
+			}
+			if (!tip.equals(old.getValue())) {
+				try {
+					if (!rw.isMergedInto(rw.parseCommit(old.getValue()), rw.parseCommit(tip))) {
+						return false;
+					}
+				} catch (IOException e) {
+					// the old tip may have been pruned
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Counts the commits reachable from the tips, but not from the tips of
+	 * the previous entry, back to the horizon, adding them to a copy of the
+	 * counts of the previous entry from the horizon on.
+	 */
+	private static Entry walk(RevWalk rw, Map<String, ObjectId> tips, Entry previous, int horizon) throws IOException {
+		NavigableMap<Integer, Integer> commits = new TreeMap<Integer, Integer>(previous.commits.tailMap(horizon, true));
+		long lastCommit = previous.lastCommit;
+		rw.reset();
+		for (ObjectId tip : tips.values()) {
+			rw.markStart(rw.parseCommit(tip));
+		}
+		if (previous.tips != null) {
+			for (ObjectId tip : previous.tips.values()) {
+				rw.markUninteresting(rw.parseCommit(tip));
+			}
+		}
+		// the filter stops the walk at the first commit older than the horizon
+		rw.setRevFilter(CommitTimeRevFilter.after(horizon * DAY));
+		RevCommit c;
+		while ((c = rw.next()) != null) {
+			long time = c.getCommitTime() * 1000L;
+			int day = (int) (time / DAY);
+			Integer count = commits.get(day);
+			commits.put(day, count == null ? 1 : count + 1);
+			lastCommit = Math.max(lastCommit, time);
+		}
+		return new Entry(tips, horizon, commits, lastCommit);
+	}
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jgit.lib.Constants;
+
+/**
+ * Measures the disk usage of repositories.
+ *
+ * Directories are walked in parallel on a fork-join pool.  For the object and
+ * ref directories the sizes of the files directly within them are remembered
+ * together with the directory modification time.  Such a directory whose
+ * mtime has not changed since it was last listed is not listed again, only
+ * its subdirectories are visited.  Loose objects and pack files are never
+ * rewritten in place and refs are replaced by renaming a lock file, which
+ * updates the directory mtime, so a repeat measurement of an unchanged
+ * repository stats those directories but none of their files.  Other
+ * directories hold files which are appended in place, e.g. reflogs, and are
+ * always listed.
+ *
+ * The listings of the most recently measured repositories are kept, up to a
+ * fixed number of repositories.
+ */
+public class DiskUsage {
+
+	/**
+	 * Directories modified this close to the time they were listed may have
+	 * changed again within the same mtime tick and are always listed again.
+	 */
+	private static final long RACY_MILLIS = 2000;
+
+	private static final int MAX_REPOSITORIES = 1000;
+
+	private static final Map<String, Map<String, Dir>> CACHE = Collections.synchronizedMap(
+			new LinkedHashMap<String, Map<String, Dir>>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Map<String, Dir>> eldest) {
+			return size() > MAX_REPOSITORIES;
+		}
+	});
+
+	private static ForkJoinPool pool;
+
+	public enum Area {
+		pack, loose, refs, lfs, other
+	}
+
+	/**
+	 * The measured usage of one repository.
+	 */
+	public static class Usage {
+
+		public final String name;
+
+		private final long[] bytes = new long[Area.values().length];
+
+		private int listed;
+
+		private int directories;
+
+		Usage(String name) {
+			this.name = name;
+		}
+
+		public long get(Area area) {
+			return bytes[area.ordinal()];
+		}
+
+		public long getTotal() {
+			long total = 0;
+			for (long b : bytes) {
+				total += b;
+			}
+			return total;
+		}
+
+		/**
+		 * Returns the number of directories which had to be listed.
+		 */
+		public int getListed() {
+			return listed;
+		}
+
+		/**
+		 * Returns the number of directories visited.
+		 */
+		public int getDirectories() {
+			return directories;
+		}
+	}
+
+	/**
+	 * Measures the repositories.
+	 *
+	 * @param repositoriesFolder
+	 * @param names
+	 * @return the usage of each repository, in the order of the names
+	 */
+	public static List<Usage> measure(File repositoriesFolder, List<String> names) {
+		List<RepositoryTask> tasks = new ArrayList<RepositoryTask>();
+		for (String name : names) {
+			tasks.add(new RepositoryTask(name, getFolder(repositoriesFolder, name)));
+		}
+		getPool().invoke(new AllTask(tasks));
+
+		List<Usage> list = new ArrayList<Usage>();
+		for (RepositoryTask task : tasks) {
+			list.add(task.usage);
+		}
+		return list;
+	}
+
+	/**
+	 * Forgets the cached directory listings of a repository.
+	 */
+	public static void invalidate(File repositoriesFolder, String name) {
+		CACHE.remove(getFolder(repositoriesFolder, name).getAbsolutePath());
+	}
+
+	/**
+	 * Returns the git directory of the named repository.
+	 */
+	static File getFolder(File repositoriesFolder, String name) {
+		File folder = new File(repositoriesFolder, name);
+		File dotGit = new File(folder, Constants.DOT_GIT);
+		if (dotGit.isDirectory()) {
+			// working copy repository
+			return dotGit;
+		}
+		return folder;
+	}
+
+	public static synchronized void shutdown() {
+		if (pool != null) {
+			pool.shutdownNow();
+			pool = null;
+		}
+		CACHE.clear();
+	}
+
+	private static synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			pool = new ForkJoinPool();
+		}
+		return pool;
+	}
+
+	/**
+	 * Returns true if the files of the area are never modified in place.
+	 */
+	private static boolean isImmutable(Area area) {
+		return area == Area.pack || area == Area.loose || area == Area.refs;
+	}
+
+	/**
+	 * Classifies a subdirectory of the repository.
+	 */
+	private static Area classify(String parent, Area area, String name) {
+		if (parent.isEmpty()) {
+			if ("refs".equals(name)) {
+				return Area.refs;
+			} else if ("lfs".equals(name)) {
+				return Area.lfs;
+			}
+			return Area.other;
+		} else if ("objects".equals(parent)) {
+			if ("pack".equals(name)) {
+				return Area.pack;
+			} else if (name.length() == 2 && Character.digit(name.charAt(0), 16) > -1
+					&& Character.digit(name.charAt(1), 16) > -1) {
+				return Area.loose;
+			}
+			return Area.other;
+		}
+		return area;
+	}
+
+	/**
+	 * The remembered listing of one directory.
+	 */
+	private static class Dir {
+
+		final long mtime;
+
+		final long listed;
+
+		final long[] bytes;
+
+		final String[] subdirs;
+
+		Dir(long mtime, long listed, long[] bytes, String[] subdirs) {
+			this.mtime = mtime;
+			this.listed = listed;
+			this.bytes = bytes;
+			this.subdirs = subdirs;
+		}
+
+		boolean isCurrent(long mtime) {
+			return this.mtime == mtime && mtime < listed - RACY_MILLIS;
+		}
+	}
+
+	private static class AllTask extends RecursiveTask<Void> {
+
+		private static final long serialVersionUID = 1L;
+
+		final List<RepositoryTask> tasks;
+
+		AllTask(List<RepositoryTask> tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected Void compute() {
+			invokeAll(tasks);
+			return null;
+		}
+	}
+
+	private static class RepositoryTask extends RecursiveTask<Void> {
+
+		private static final long serialVersionUID = 1L;
+
+		final File folder;
+
+		final Usage usage;
+
+		RepositoryTask(String name, File folder) {
+			this.folder = folder;
+			this.usage = new Usage(name);
+		}
+
+		@Override
+		protected Void compute() {
+			if (!folder.isDirectory()) {
+				return null;
+			}
+			String key = folder.getAbsolutePath();
+			Map<String, Dir> previous = CACHE.get(key);
+			if (previous == null) {
+				previous = new ConcurrentHashMap<String, Dir>();
+			}
+			// only directories which still exist are carried into the new snapshot
+			Map<String, Dir> current = new ConcurrentHashMap<String, Dir>();
+			AtomicInteger listed = new AtomicInteger();
+			AtomicInteger visited = new AtomicInteger();
+			long[] bytes = new DirTask(folder, "", Area.other, previous, current, listed, visited).invoke();
+			System.arraycopy(bytes, 0, usage.bytes, 0, bytes.length);
+			usage.listed = listed.get();
+			usage.directories = visited.get();
+			CACHE.put(key, current);
+			return null;
+		}
+	}
+
+	private static class DirTask extends RecursiveTask<long[]> {
+
+		private static final long serialVersionUID = 1L;
+
+		final File dir;
+
+		final String path;
+
+		final Area area;
+
+		final Map<String, Dir> previous;
+
+		final Map<String, Dir> current;
+
+		final AtomicInteger listed;
+
+		final AtomicInteger visited;
+
+		DirTask(File dir, String path, Area area, Map<String, Dir> previous, Map<String, Dir> current,
+				AtomicInteger listed, AtomicInteger visited) {
+			this.dir = dir;
+			this.path = path;
+			this.area = area;
+			this.previous = previous;
+			this.current = current;
+			this.listed = listed;
+			this.visited = visited;
+		}
+
+		@Override
+		protected long[] compute() {
+			visited.incrementAndGet();
+			long mtime = dir.lastModified();
+			Dir d = previous.get(path);
+			if (d == null || !d.isCurrent(mtime)) {
+				d = list(mtime);
+			}
+			if (!path.isEmpty() && isImmutable(area)) {
+				current.put(path, d);
+			}
+
+			long[] total = d.bytes.clone();
+			List<DirTask> tasks = new ArrayList<DirTask>(d.subdirs.length);
+			for (String name : d.subdirs) {
+				String child = path.isEmpty() ? name : (path + "/" + name);
+				tasks.add(new DirTask(new File(dir, name), child, classify(path, area, name),
+						previous, current, listed, visited));
+			}
+			invokeAll(tasks);
+			for (DirTask task : tasks) {
+				long[] b = task.join();
+				for (int i = 0; i < total.length; i++) {
+					total[i] += b[i];
+				}
+			}
+			return total;
+		}
+
+		private Dir list(long mtime) {
+			listed.incrementAndGet();
+			long now = System.currentTimeMillis();
+			long[] bytes = new long[Area.values().length];
+			List<String> subdirs = new ArrayList<String>();
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					if (file.isDirectory()) {
+						subdirs.add(file.getName());
+					} else if (path.isEmpty() && Constants.PACKED_REFS.equals(file.getName())) {
+						bytes[Area.refs.ordinal()] += file.length();
+					} else {
+						bytes[area.ordinal()] += file.length();
+					}
+				}
+			}
+			return new Dir(mtime, now, bytes, subdirs.toArray(new String[subdirs.size()]));
+		}
+	}
+}
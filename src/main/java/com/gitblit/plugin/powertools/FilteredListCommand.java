@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+import org.kohsuke.args4j.Argument;
+
+import com.gitblit.transport.ssh.commands.ListCommand;
+
+/**
+ * Parent class for list commands which filter their items by name.
+ *
+ * The filter expressions are compiled once per invocation.  Subclasses which
+ * can read a list of names should select from it with
+ * {@link NameFilter#select(List)}, or {@link NameFilter#selectSorted(List)}
+ * if they sorted it case-insensitively, e.g. the repository names of
+ * {@link RepositoryNames}, and only load the matching items.
+ *
+ * @param <T>
+ */
+public abstract class FilteredListCommand<T> extends ListCommand<T> {
+
+	@Argument(index = 0, multiValued = true, metaVar = "FILTER", usage = "filter expression")
+	protected List<String> filters = new ArrayList<String>();
+
+	private NameFilter filter;
+
+	protected abstract String getName(T t);
+
+	protected NameFilter getFilter() throws UnloggedFailure {
+		if (filter == null) {
+			try {
+				filter = NameFilter.compile(filters);
+			} catch (PatternSyntaxException e) {
+				throw new UnloggedFailure(1, String.format("Invalid filter expression %s", e.getPattern()));
+			}
+		}
+		return filter;
+	}
+
+	/**
+	 * Filters an already loaded list of items.
+	 *
+	 * @param list
+	 * @return the matching items
+	 */
+	protected List<T> filter(List<T> list) throws UnloggedFailure {
+		NameFilter filter = getFilter();
+		if (filter.isEmpty()) {
+			return list;
+		}
+		List<T> filtered = new ArrayList<T>();
+		for (T t : list) {
+			if (filter.matches(getName(t))) {
+				filtered.add(t);
+			}
+		}
+		return filtered;
+	}
+}
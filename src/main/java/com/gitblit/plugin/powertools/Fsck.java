@@ -0,0 +1,316 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectChecker;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ObjectStream;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.ObjectWalk;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+
+/**
+ * Verifies the object store of a repository.
+ *
+ * JGit 3.3 has no fsck, so the checks are implemented here: the trailing
+ * checksums of every pack and pack index, the content hash of every loose
+ * object, and the connectivity of every object reachable from the refs.  In
+ * full mode every reachable object is also inflated and structurally checked.
+ */
+public class Fsck {
+
+	private static final int MAX_ERRORS = 20;
+
+	/**
+	 * A pack without an index younger than this is still being renamed into
+	 * place by a receive or a gc.
+	 */
+	private static final long PACK_GRACE_MILLIS = 60 * 1000L;
+
+	/**
+	 * The outcome of checking one repository.
+	 */
+	public static class Result {
+
+		public final String name;
+
+		public int packs;
+
+		public int loose;
+
+		public long objects;
+
+		public int errorCount;
+
+		public final List<String> errors = new ArrayList<String>();
+
+		public long elapsed;
+
+		Result(String name) {
+			this.name = name;
+		}
+
+		public boolean isOk() {
+			return errorCount == 0;
+		}
+
+		void error(String message) {
+			if (errorCount++ < MAX_ERRORS) {
+				errors.add(message);
+			}
+		}
+	}
+
+	/**
+	 * Checks the repository.
+	 *
+	 * @param name
+	 * @param db
+	 * @param full
+	 *            inflate and check every reachable object
+	 * @return the result
+	 */
+	public static Result check(String name, Repository db, boolean full) {
+		long start = System.currentTimeMillis();
+		Result result = new Result(name);
+		if (db instanceof FileRepository) {
+			File objects = ((FileRepository) db).getObjectDatabase().getDirectory();
+			checkPacks(new File(objects, "pack"), result);
+			checkLooseObjects(objects, result);
+		}
+		checkConnectivity(db, full, result);
+		result.elapsed = System.currentTimeMillis() - start;
+		return result;
+	}
+
+	/**
+	 * Verifies the SHA-1 trailer of each pack and index and that each index
+	 * belongs to its pack.  Only packs named pack-SHA1.pack are checked, the
+	 * incoming_* and other temporary packs of a receive or a gc in progress
+	 * are skipped.
+	 */
+	private static void checkPacks(File folder, Result result) {
+		File[] files = folder.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File pack : files) {
+			String name = pack.getName();
+			if (!name.startsWith("pack-") || !name.endsWith(".pack") || !ObjectId.isId(name.substring(5, name.length() - 5))) {
+				continue;
+			}
+			String base = name.substring(0, name.length() - 5);
+			File idx = new File(folder, base + ".idx");
+			if (!idx.exists() && System.currentTimeMillis() - pack.lastModified() < PACK_GRACE_MILLIS) {
+				continue;
+			}
+			result.packs++;
+			try {
+				byte[] packChecksum = verifyTrailer(pack);
+				if (packChecksum == null) {
+					result.error(String.format("%s: checksum mismatch", pack.getName()));
+				}
+				if (!idx.exists()) {
+					result.error(String.format("%s: missing index", pack.getName()));
+				} else if (verifyTrailer(idx) == null) {
+					result.error(String.format("%s: checksum mismatch", idx.getName()));
+				} else if (packChecksum != null && !Arrays.equals(packChecksum, readPackChecksum(idx))) {
+					result.error(String.format("%s: index does not belong to the pack", idx.getName()));
+				}
+			} catch (IOException e) {
+				result.error(String.format("%s: %s", pack.getName(), e.getMessage()));
+			}
+		}
+	}
+
+	/**
+	 * Returns the trailing checksum of the file if it matches the SHA-1 of
+	 * the preceding content, otherwise null.
+	 */
+	private static byte[] verifyTrailer(File file) throws IOException {
+		long length = file.length();
+		if (length < 20) {
+			return null;
+		}
+		MessageDigest md = Constants.newMessageDigest();
+		byte[] trailer = new byte[20];
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[64 * 1024];
+			long remaining = length - 20;
+			while (remaining > 0) {
+				int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+				if (n < 0) {
+					return null;
+				}
+				md.update(buf, 0, n);
+				remaining -= n;
+			}
+			int off = 0;
+			while (off < 20) {
+				int n = in.read(trailer, off, 20 - off);
+				if (n < 0) {
+					return null;
+				}
+				off += n;
+			}
+		} finally {
+			in.close();
+		}
+		return Arrays.equals(md.digest(), trailer) ? trailer : null;
+	}
+
+	/**
+	 * Reads the pack checksum which precedes the index checksum.
+	 */
+	private static byte[] readPackChecksum(File idx) throws IOException {
+		byte[] checksum = new byte[20];
+		RandomAccessFile raf = new RandomAccessFile(idx, "r");
+		try {
+			raf.seek(raf.length() - 40);
+			raf.readFully(checksum);
+		} finally {
+			raf.close();
+		}
+		return checksum;
+	}
+
+	/**
+	 * Verifies that each loose object inflates to content matching its name.
+	 */
+	private static void checkLooseObjects(File objects, Result result) {
+		File[] folders = objects.listFiles();
+		if (folders == null) {
+			return;
+		}
+		byte[] buf = new byte[64 * 1024];
+		for (File folder : folders) {
+			String prefix = folder.getName();
+			if (prefix.length() != 2 || Character.digit(prefix.charAt(0), 16) < 0 || Character.digit(prefix.charAt(1), 16) < 0) {
+				continue;
+			}
+			File[] files = folder.listFiles();
+			if (files == null) {
+				continue;
+			}
+			for (File file : files) {
+				String name = prefix + file.getName();
+				if (!ObjectId.isId(name)) {
+					// temporary files
+					continue;
+				}
+				result.loose++;
+				try {
+					MessageDigest md = Constants.newMessageDigest();
+					InputStream in = new InflaterInputStream(new FileInputStream(file));
+					try {
+						int n;
+						while ((n = in.read(buf)) > 0) {
+							md.update(buf, 0, n);
+						}
+					} finally {
+						in.close();
+					}
+					if (!ObjectId.fromRaw(md.digest()).equals(ObjectId.fromString(name))) {
+						result.error(String.format("loose object %s: content does not match its name", name));
+					}
+				} catch (IOException e) {
+					result.error(String.format("loose object %s: %s", name, e.getMessage()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Walks every object reachable from the refs.
+	 */
+	private static void checkConnectivity(Repository db, boolean full, Result result) {
+		ObjectWalk ow = new ObjectWalk(db);
+		ObjectReader reader = db.newObjectReader();
+		ObjectChecker checker = new ObjectChecker();
+		try {
+			for (Ref ref : db.getAllRefs().values()) {
+				if (ref.getObjectId() == null) {
+					continue;
+				}
+				try {
+					ow.markStart(ow.parseAny(ref.getObjectId()));
+				} catch (IOException e) {
+					result.error(String.format("%s: %s", ref.getName(), e.getMessage()));
+				}
+			}
+			RevCommit c;
+			while ((c = ow.next()) != null) {
+				result.objects++;
+				if (full) {
+					checkObject(reader, checker, c, result);
+				}
+			}
+			RevObject o;
+			while ((o = ow.nextObject()) != null) {
+				result.objects++;
+				if (full) {
+					checkObject(reader, checker, o, result);
+				} else if (o.getType() == Constants.OBJ_BLOB && !reader.has(o)) {
+					result.error(String.format("missing blob %s", o.name()));
+				}
+			}
+		} catch (IOException e) {
+			result.error(e.getMessage());
+		} finally {
+			reader.release();
+			ow.release();
+		}
+	}
+
+	private static void checkObject(ObjectReader reader, ObjectChecker checker, RevObject o, Result result) {
+		try {
+			ObjectLoader ldr = reader.open(o);
+			if (ldr.isLarge()) {
+				ObjectStream in = ldr.openStream();
+				try {
+					byte[] buf = new byte[64 * 1024];
+					while (in.read(buf) > 0) {
+						// inflate to detect corruption
+					}
+				} finally {
+					in.close();
+				}
+			} else {
+				checker.check(ldr.getType(), ldr.getCachedBytes());
+			}
+		} catch (IOException e) {
+			result.error(String.format("%s %s: %s", Constants.typeString(o.getType()), o.name(), e.getMessage()));
+		}
+	}
+}
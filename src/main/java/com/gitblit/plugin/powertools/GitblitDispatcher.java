@@ -37,5 +37,6 @@ public class GitblitDispatcher extends DispatchCommand {
 		register(TeamsDispatcher.class);
 		register(ProjectsDispatcher.class);
 		register(RepositoriesDispatcher.class);
+		register(JobsDispatcher.class);
 	}
 }
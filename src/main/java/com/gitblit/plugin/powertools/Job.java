@@ -0,0 +1,208 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A long-running operation executed by the {@link JobManager}, independent of
+ * the SSH session which submitted it.
+ */
+public abstract class Job implements Runnable {
+
+	public static enum State {
+		QUEUED, RUNNING, DONE, FAILED, CANCELLED;
+
+		public boolean isFinished() {
+			return ordinal() > RUNNING.ordinal();
+		}
+	}
+
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+
+	private final String title;
+
+	private final String owner;
+
+	private final JobMonitor monitor;
+
+	private final Date created;
+
+	private final List<String> reservations;
+
+	private final AtomicReference<State> state;
+
+	private volatile int id;
+
+	private volatile Date started;
+
+	private volatile Date finished;
+
+	private volatile String result;
+
+	private volatile Future<?> future;
+
+	public Job(String title, String owner) {
+		this(title, owner, Collections.<String>emptyList());
+	}
+
+	/**
+	 * Creates a job which reserves a repository name from its submission
+	 * until it finishes, e.g. the name of a mirror it will create or of the
+	 * repository it works on.
+	 *
+	 * @param title
+	 * @param owner
+	 * @param reservation
+	 *            the reserved repository name
+	 */
+	public Job(String title, String owner, String reservation) {
+		this(title, owner, Collections.singletonList(reservation));
+	}
+
+	/**
+	 * Creates a job which reserves the names of all repositories it works on.
+	 *
+	 * @param title
+	 * @param owner
+	 * @param reservations
+	 *            the reserved repository names
+	 */
+	public Job(String title, String owner, Collection<String> reservations) {
+		this.title = title;
+		this.owner = owner;
+		this.reservations = Collections.unmodifiableList(new ArrayList<String>(reservations));
+		this.monitor = new JobMonitor();
+		this.created = new Date();
+		this.state = new AtomicReference<State>(State.QUEUED);
+	}
+
+	/**
+	 * Executes the job.
+	 *
+	 * @param monitor
+	 * @return the result message
+	 */
+	protected abstract String execute(JobMonitor monitor) throws Exception;
+
+	@Override
+	public final void run() {
+		if (!state.compareAndSet(State.QUEUED, State.RUNNING)) {
+			// cancelled while queued
+			return;
+		}
+		started = new Date();
+		try {
+			result = execute(monitor);
+			state.set(monitor.isCancelled() ? State.CANCELLED : State.DONE);
+		} catch (Throwable t) {
+			result = t.getMessage();
+			if (monitor.isCancelled()) {
+				state.set(State.CANCELLED);
+			} else {
+				state.set(State.FAILED);
+				log.error(String.format("Job %d (%s) failed", id, title), t);
+			}
+		} finally {
+			finished = new Date();
+		}
+	}
+
+	/**
+	 * Cancels the job.  A queued job is never started.  A running job is
+	 * cancelled when its current operation checks the progress monitor.
+	 */
+	public void cancel() {
+		monitor.cancel();
+		if (state.compareAndSet(State.QUEUED, State.CANCELLED)) {
+			finished = new Date();
+			if (future != null) {
+				future.cancel(false);
+			}
+		}
+	}
+
+	void setId(int id) {
+		this.id = id;
+	}
+
+	void setFuture(Future<?> future) {
+		this.future = future;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public String getOwner() {
+		return owner;
+	}
+
+	public State getState() {
+		return state.get();
+	}
+
+	/**
+	 * Returns the repository names reserved by the job.
+	 */
+	public List<String> getReservations() {
+		return reservations;
+	}
+
+	public JobMonitor getMonitor() {
+		return monitor;
+	}
+
+	public Date getCreated() {
+		return created;
+	}
+
+	public Date getStarted() {
+		return started;
+	}
+
+	public Date getFinished() {
+		return finished;
+	}
+
+	public String getResult() {
+		return result;
+	}
+
+	/**
+	 * Returns the running time of the job in milliseconds.
+	 */
+	public long getElapsed() {
+		if (started == null) {
+			return 0;
+		}
+		long end = finished == null ? System.currentTimeMillis() : finished.getTime();
+		return end - started.getTime();
+	}
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes powertools jobs on a bounded pool of worker threads.
+ *
+ * The manager is started and stopped with the plugin.  Finished jobs are
+ * retained, oldest first, up to a fixed limit so that they can be inspected
+ * with the jobs commands.
+ */
+public class JobManager {
+
+	private static final int DEFAULT_THREADS = 2;
+
+	private static final int DEFAULT_QUEUE = 100;
+
+	private static final int RETAINED_JOBS = 100;
+
+	private static JobManager instance;
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+
+	private final ThreadPoolExecutor executor;
+
+	private final AtomicInteger sequence;
+
+	private final Map<Integer, Job> jobs;
+
+	/** lowercase repository name -> the job which reserved it */
+	private final Map<String, Job> reservations;
+
+	public static synchronized void start() {
+		if (instance == null) {
+			instance = new JobManager(DEFAULT_THREADS, DEFAULT_QUEUE);
+		}
+	}
+
+	public static synchronized void stop() {
+		if (instance != null) {
+			instance.shutdown();
+			instance = null;
+		}
+	}
+
+	public static synchronized JobManager get() {
+		if (instance == null) {
+			throw new IllegalStateException("The powertools job manager is not running");
+		}
+		return instance;
+	}
+
+	JobManager(int threads, int queueSize) {
+		this.sequence = new AtomicInteger();
+		this.jobs = new LinkedHashMap<Integer, Job>();
+		this.reservations = new HashMap<String, Job>();
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+
+			final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "powertools-job-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.NORM_PRIORITY - 1);
+				return thread;
+			}
+		});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Queues a job for execution.
+	 *
+	 * @param job
+	 * @return the job
+	 * @throws RejectedExecutionException if the queue is full
+	 * @throws IllegalStateException if an unfinished job reserved one of the
+	 *             same repository names
+	 */
+	public Job submit(Job job) {
+		synchronized (jobs) {
+			checkReservations(job);
+			job.setId(sequence.incrementAndGet());
+			job.setFuture(executor.submit(job));
+			register(job);
+		}
+		log.info(String.format("Job %d queued: %s (%s)", job.getId(), job.getTitle(), job.getOwner()));
+		return job;
+	}
+
+	/**
+	 * Runs a job in the calling thread, e.g. for a command which writes its
+	 * output to the session.  The job is listed and holds its reservations
+	 * like a queued job until it finishes.
+	 *
+	 * @param job
+	 * @return the finished job
+	 * @throws IllegalStateException if an unfinished job reserved one of the
+	 *             same repository names
+	 */
+	public Job run(Job job) {
+		synchronized (jobs) {
+			checkReservations(job);
+			job.setId(sequence.incrementAndGet());
+			register(job);
+		}
+		log.info(String.format("Job %d started: %s (%s)", job.getId(), job.getTitle(), job.getOwner()));
+		job.run();
+		return job;
+	}
+
+	private void checkReservations(Job job) {
+		for (String name : job.getReservations()) {
+			Job holder = getReservation(name);
+			if (holder != null) {
+				throw new IllegalStateException(String.format("Job %d is already working on %s",
+						holder.getId(), name));
+			}
+		}
+	}
+
+	private void register(Job job) {
+		jobs.put(job.getId(), job);
+		for (String name : job.getReservations()) {
+			reservations.put(name.toLowerCase(), job);
+		}
+		prune();
+	}
+
+	/**
+	 * Returns the unfinished job which reserved the repository name, or null.
+	 *
+	 * @param name
+	 * @return the job or null
+	 */
+	public Job getReservation(String name) {
+		synchronized (jobs) {
+			Job job = reservations.get(name.toLowerCase());
+			if (job != null && job.getState().isFinished()) {
+				reservations.remove(name.toLowerCase());
+				return null;
+			}
+			return job;
+		}
+	}
+
+	public Job getJob(int id) {
+		synchronized (jobs) {
+			return jobs.get(id);
+		}
+	}
+
+	public List<Job> getJobs() {
+		synchronized (jobs) {
+			return new ArrayList<Job>(jobs.values());
+		}
+	}
+
+	/**
+	 * Drops the oldest finished jobs beyond the retention limit.
+	 */
+	private void prune() {
+		Iterator<Job> reserved = reservations.values().iterator();
+		while (reserved.hasNext()) {
+			if (reserved.next().getState().isFinished()) {
+				reserved.remove();
+			}
+		}
+		int excess = jobs.size() - RETAINED_JOBS;
+		Iterator<Job> itr = jobs.values().iterator();
+		while (excess > 0 && itr.hasNext()) {
+			if (itr.next().getState().isFinished()) {
+				itr.remove();
+				excess--;
+			}
+		}
+	}
+
+	private void shutdown() {
+		for (Job job : getJobs()) {
+			job.cancel();
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		executor.shutdownNow();
+	}
+}
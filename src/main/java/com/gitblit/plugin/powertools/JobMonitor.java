@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import org.eclipse.jgit.lib.ProgressMonitor;
+
+/**
+ * A progress monitor which records the current task of a background job so
+ * that it can be inspected from another thread.
+ */
+public class JobMonitor implements ProgressMonitor {
+
+	private volatile String task;
+
+	private volatile int totalWork;
+
+	private volatile int completed;
+
+	private volatile long taskStart;
+
+	private volatile boolean cancelled;
+
+	@Override
+	public void start(int totalTasks) {
+	}
+
+	@Override
+	public void beginTask(String title, int totalWork) {
+		this.task = title;
+		this.totalWork = totalWork;
+		this.completed = 0;
+		this.taskStart = System.currentTimeMillis();
+	}
+
+	@Override
+	public void update(int completed) {
+		this.completed += completed;
+	}
+
+	@Override
+	public void endTask() {
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public String getTask() {
+		return task;
+	}
+
+	public int getTotalWork() {
+		return totalWork;
+	}
+
+	public int getCompleted() {
+		return completed;
+	}
+
+	/**
+	 * Returns the work units, usually objects, completed per second in the
+	 * current task.
+	 */
+	public long getRate() {
+		long elapsed = System.currentTimeMillis() - taskStart;
+		if (task == null || elapsed <= 0) {
+			return 0;
+		}
+		return completed * 1000L / elapsed;
+	}
+
+	/**
+	 * Returns a short description of the progress of the current task.
+	 */
+	public String getProgress() {
+		if (task == null) {
+			return "";
+		}
+		if (totalWork == UNKNOWN) {
+			if (completed == 0) {
+				return task;
+			}
+			return String.format("%s: %d", task, completed);
+		}
+		return String.format("%s: %d%% (%d/%d)", task, completed * 100L / Math.max(1, totalWork), completed, totalWork);
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.kohsuke.args4j.Argument;
+
+import com.gitblit.models.UserModel;
+import com.gitblit.transport.ssh.commands.CommandMetaData;
+import com.gitblit.transport.ssh.commands.DispatchCommand;
+import com.gitblit.transport.ssh.commands.ListCommand;
+import com.gitblit.transport.ssh.commands.SshCommand;
+import com.gitblit.transport.ssh.commands.UsageExample;
+import com.gitblit.utils.FlipTable;
+import com.gitblit.utils.FlipTable.Borders;
+
+@CommandMetaData(name = "jobs", description = "Background job commands")
+public class JobsDispatcher extends DispatchCommand {
+
+	@Override
+	protected void setup() {
+		register(ListJobs.class);
+		register(ShowJob.class);
+		register(CancelJob.class);
+	}
+
+	/**
+	 * Returns true if the user may see and cancel the job.
+	 */
+	static boolean isVisible(UserModel user, Job job) {
+		return user.canAdmin() || user.username.equalsIgnoreCase(job.getOwner());
+	}
+
+	static String formatElapsed(long millis) {
+		long secs = millis / 1000;
+		return String.format("%d:%02d:%02d", secs / 3600, (secs / 60) % 60, secs % 60);
+	}
+
+	public static abstract class JobCommand extends SshCommand {
+		@Argument(index = 0, required = true, metaVar = "ID", usage = "job id")
+		protected int id;
+
+		protected Job getJob() throws UnloggedFailure {
+			Job job = JobManager.get().getJob(id);
+			if (job == null || !isVisible(getContext().getClient().getUser(), job)) {
+				throw new UnloggedFailure(1, String.format("Job %d does not exist!", id));
+			}
+			return job;
+		}
+	}
+
+	/* List jobs */
+	@CommandMetaData(name = "list", aliases = { "ls" }, description = "List background jobs")
+	public static class ListJobs extends ListCommand<Job> {
+
+		@Override
+		protected List<Job> getItems() {
+			UserModel user = getContext().getClient().getUser();
+			List<Job> list = new ArrayList<Job>();
+			for (Job job : JobManager.get().getJobs()) {
+				if (isVisible(user, job)) {
+					list.add(job);
+				}
+			}
+			return list;
+		}
+
+		@Override
+		protected void asTable(List<Job> list) {
+			String[] headers;
+			if (verbose) {
+				String[] h = { "ID", "State", "Owner", "Job", "Progress", "Objects/sec", "Elapsed" };
+				headers = h;
+			} else {
+				String[] h = { "ID", "State", "Job", "Progress", "Elapsed" };
+				headers = h;
+			}
+
+			Object[][] data = new Object[list.size()][];
+			for (int i = 0; i < list.size(); i++) {
+				Job job = list.get(i);
+				JobMonitor m = job.getMonitor();
+				if (verbose) {
+					data[i] = new Object[] { job.getId(), job.getState(), job.getOwner(), job.getTitle(),
+							m.getProgress(), m.getRate(), formatElapsed(job.getElapsed()) };
+				} else {
+					data[i] = new Object[] { job.getId(), job.getState(), job.getTitle(),
+							m.getProgress(), formatElapsed(job.getElapsed()) };
+				}
+			}
+			stdout.println(FlipTable.of(headers, data, Borders.BODY_HCOLS));
+		}
+
+		@Override
+		protected void asTabbed(List<Job> list) {
+			for (Job job : list) {
+				JobMonitor m = job.getMonitor();
+				if (verbose) {
+					outTabbed(job.getId(), job.getState(), job.getOwner(), job.getTitle(),
+							m.getProgress(), m.getRate(), formatElapsed(job.getElapsed()));
+				} else {
+					outTabbed(job.getId(), job.getState(), job.getTitle());
+				}
+			}
+		}
+	}
+
+	@CommandMetaData(name = "show", description = "Show the progress of a background job")
+	@UsageExample(syntax = "${cmd} 4", description = "Display job 4")
+	public static class ShowJob extends JobCommand {
+
+		@Override
+		public void run() throws UnloggedFailure {
+			Job job = getJob();
+			JobMonitor m = job.getMonitor();
+
+			StringBuilder sb = new StringBuilder();
+			sb.append("Job         : ").append(job.getTitle()).append('\n');
+			sb.append("Owner       : ").append(job.getOwner()).append('\n');
+			sb.append("State       : ").append(job.getState()).append('\n');
+			sb.append("Created     : ").append(job.getCreated()).append('\n');
+			sb.append("Started     : ").append(job.getStarted() == null ? "" : job.getStarted()).append('\n');
+			sb.append("Finished    : ").append(job.getFinished() == null ? "" : job.getFinished()).append('\n');
+			sb.append("Elapsed     : ").append(formatElapsed(job.getElapsed())).append('\n');
+			sb.append('\n');
+			sb.append("Progress    : ").append(m.getProgress()).append('\n');
+			sb.append("Objects/sec : ").append(job.getState() == Job.State.RUNNING ? m.getRate() : "").append('\n');
+			sb.append('\n');
+			sb.append("Result      : ").append(job.getResult() == null ? "" : job.getResult()).append('\n');
+
+			String [] headers = new String[] { String.format("Job %d", job.getId()) };
+			String[][] data = new String[1][];
+			data[0] = new String [] { sb.toString() };
+			stdout.println(FlipTable.of(headers, data));
+		}
+	}
+
+	@CommandMetaData(name = "cancel", description = "Cancel a background job")
+	@UsageExample(syntax = "${cmd} 4", description = "Cancel job 4")
+	public static class CancelJob extends JobCommand {
+
+		@Override
+		public void run() throws UnloggedFailure {
+			Job job = getJob();
+			if (job.getState().isFinished()) {
+				throw new UnloggedFailure(1, String.format("Job %d is already %s", id, job.getState()));
+			}
+			job.cancel();
+			stdout.println(String.format("Job %d has been cancelled.", id));
+		}
+	}
+}
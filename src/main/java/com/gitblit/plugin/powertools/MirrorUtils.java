@@ -0,0 +1,226 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.PackFile;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.TransportBundleStream;
+import org.eclipse.jgit.transport.URIish;
+
+/**
+ * Utility methods for creating and updating mirror repositories.
+ *
+ * JGit does not support clone --mirror.  Instead of cloning and then fetching
+ * again with the mirror refspec, the bare repository is initialized with the
+ * mirror refspec and the upstream objects are fetched exactly once.
+ */
+public class MirrorUtils {
+
+	public static final String ORIGIN = "origin";
+
+	public static final String MIRROR_REFSPEC = "+refs/*:refs/*";
+
+	/**
+	 * Initializes a bare repository configured to mirror the url.
+	 *
+	 * @param folder
+	 * @param url
+	 * @return the new repository, the caller must close it
+	 */
+	public static Repository createMirror(File folder, String url) throws GitAPIException, IOException {
+		Repository repository = Git.init().setBare(true).setDirectory(folder).call().getRepository();
+		StoredConfig config = repository.getConfig();
+		config.setString("remote", ORIGIN, "url", url);
+		config.setString("remote", ORIGIN, "fetch", MIRROR_REFSPEC);
+		config.setBoolean("remote", ORIGIN, "mirror", true);
+		config.save();
+		return repository;
+	}
+
+	/**
+	 * Fetches all refs from the origin, pruning deleted refs, and points HEAD
+	 * at the branch advertised as the upstream HEAD.
+	 *
+	 * @param repository
+	 * @param monitor
+	 * @return the fetch result
+	 */
+	public static FetchResult fetch(Repository repository, ProgressMonitor monitor) throws GitAPIException, IOException {
+		Git git = new Git(repository);
+		FetchResult result = git.fetch()
+				.setRemote(ORIGIN)
+				.setRemoveDeletedRefs(true)
+				.setProgressMonitor(monitor)
+				.call();
+		updateHead(repository, result);
+		return result;
+	}
+
+	/**
+	 * Fetches all refs of a bundle read from the stream and points HEAD at the
+	 * branch of the bundle's HEAD.  The bundle is parsed straight into a pack,
+	 * there is no temporary copy.
+	 *
+	 * @param repository
+	 * @param in
+	 * @param monitor
+	 * @return the fetch result
+	 */
+	public static FetchResult fetchBundle(Repository repository, InputStream in, ProgressMonitor monitor) throws IOException {
+		Transport transport = new TransportBundleStream(repository, new URIish().setPath("stdin"), in);
+		FetchResult result;
+		try {
+			result = transport.fetch(monitor, Arrays.asList(new RefSpec(MIRROR_REFSPEC)));
+		} finally {
+			transport.close();
+		}
+		updateHead(repository, result);
+		return result;
+	}
+
+	/**
+	 * Links HEAD to the branch which matches the advertised upstream HEAD.
+	 * Older transports do not advertise the HEAD symref so, like clone, we
+	 * prefer master and otherwise take the first branch with the same id.
+	 */
+	protected static void updateHead(Repository repository, FetchResult result) throws IOException {
+		Ref head = result.getAdvertisedRef(Constants.HEAD);
+		if (head == null || head.getObjectId() == null) {
+			return;
+		}
+		String branch = null;
+		Ref master = result.getAdvertisedRef(Constants.R_HEADS + Constants.MASTER);
+		if (master != null && head.getObjectId().equals(master.getObjectId())) {
+			branch = master.getName();
+		} else {
+			for (Ref ref : result.getAdvertisedRefs()) {
+				if (ref.getName().startsWith(Constants.R_HEADS) && head.getObjectId().equals(ref.getObjectId())) {
+					branch = ref.getName();
+					break;
+				}
+			}
+		}
+		if (branch == null) {
+			return;
+		}
+		Ref current = repository.getRef(Constants.HEAD);
+		if (current != null && current.isSymbolic() && branch.equals(current.getTarget().getName())) {
+			return;
+		}
+		RefUpdate u = repository.updateRef(Constants.HEAD);
+		u.disableRefLog();
+		u.link(branch);
+	}
+
+	/**
+	 * Returns the number of objects stored in the packs of the repository.
+	 */
+	public static long getPackedObjectCount(Repository repository) throws IOException {
+		long count = 0;
+		if (repository instanceof FileRepository) {
+			for (PackFile pack : ((FileRepository) repository).getObjectDatabase().getPacks()) {
+				count += pack.getIndex().getObjectCount();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the total size in bytes of the packs of the repository.
+	 */
+	public static long getPackedSize(Repository repository) {
+		long size = 0;
+		if (repository instanceof FileRepository) {
+			for (PackFile pack : ((FileRepository) repository).getObjectDatabase().getPacks()) {
+				size += pack.getPackFile().length();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the host of the url, or an empty string for local urls.
+	 */
+	public static String getHost(String url) {
+		if (url == null) {
+			return "";
+		}
+		try {
+			String host = new URIish(url).getHost();
+			return host == null ? "" : host.toLowerCase();
+		} catch (URISyntaxException e) {
+			return "";
+		}
+	}
+
+	/**
+	 * Lists the refs advertised by the origin without fetching any objects.
+	 */
+	public static Collection<Ref> lsRemote(Repository repository) throws GitAPIException {
+		return new Git(repository).lsRemote().setRemote(ORIGIN).call();
+	}
+
+	/**
+	 * Returns a digest of the names and ids of the refs, independent of their
+	 * order.  Equal fingerprints mean that a mirror fetch would not change
+	 * anything.
+	 */
+	public static String fingerprint(Collection<Ref> refs) {
+		List<Ref> sorted = new ArrayList<Ref>(refs);
+		Collections.sort(sorted, new Comparator<Ref>() {
+			@Override
+			public int compare(Ref a, Ref b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		MessageDigest md = Constants.newMessageDigest();
+		for (Ref ref : sorted) {
+			md.update(Constants.encode(ref.getName()));
+			md.update((byte) ' ');
+			if (ref.isSymbolic()) {
+				md.update(Constants.encode(ref.getTarget().getName()));
+			} else if (ref.getObjectId() != null) {
+				md.update(Constants.encode(ref.getObjectId().name()));
+			}
+			md.update((byte) '\n');
+		}
+		return ObjectId.fromRaw(md.digest()).name();
+	}
+}
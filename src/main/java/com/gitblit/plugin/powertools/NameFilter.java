@@ -0,0 +1,236 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * A set of compiled name filter expressions.
+ *
+ * Filter expressions are regular expressions which must match the whole name,
+ * as with String.matches().  Each expression is compiled once.  Expressions
+ * which are a literal name or a literal prefix followed by .* (e.g. mirror/.*)
+ * are recognized and matched without a regular expression.  If the names are
+ * sorted case-insensitively they are answered by binary search, so that
+ * selecting names costs about the number of matches rather than the number
+ * of names.
+ */
+public class NameFilter {
+
+	private static final String METACHARS = ".[]{}()*+?^$|\\";
+
+	private final List<Term> terms;
+
+	private final boolean indexed;
+
+	public static NameFilter compile(Collection<String> expressions) {
+		List<Term> terms = new ArrayList<Term>();
+		boolean indexed = true;
+		if (expressions != null) {
+			for (String expression : expressions) {
+				Term term = Term.compile(expression);
+				indexed &= term.pattern == null;
+				terms.add(term);
+			}
+		}
+		return new NameFilter(terms, indexed);
+	}
+
+	/**
+	 * Returns a filter which matches the names starting with the literal
+	 * prefix.
+	 */
+	public static NameFilter forPrefix(String prefix) {
+		return new NameFilter(Collections.singletonList(new Term(prefix, true, null)), true);
+	}
+
+	private NameFilter(List<Term> terms, boolean indexed) {
+		this.terms = terms;
+		this.indexed = indexed;
+	}
+
+	/**
+	 * Returns true if there are no filter expressions.
+	 */
+	public boolean isEmpty() {
+		return terms.isEmpty();
+	}
+
+	/**
+	 * Returns true if the name matches any of the filter expressions or if
+	 * there are no filter expressions.
+	 */
+	public boolean matches(String name) {
+		if (terms.isEmpty()) {
+			return true;
+		}
+		for (Term term : terms) {
+			if (term.matches(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Selects the matching names, preserving their order.
+	 *
+	 * @param names
+	 *            names in any order, e.g. the repository list of Gitblit which
+	 *            lists the root folder first
+	 * @return the matching names
+	 */
+	public List<String> select(List<String> names) {
+		if (terms.isEmpty()) {
+			return names;
+		}
+		List<String> list = new ArrayList<String>();
+		for (String name : names) {
+			if (matches(name)) {
+				list.add(name);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Selects the matching names, preserving their order.
+	 *
+	 * @param names
+	 *            names sorted with String.CASE_INSENSITIVE_ORDER
+	 * @return the matching names
+	 */
+	public List<String> selectSorted(List<String> names) {
+		if (terms.isEmpty()) {
+			return names;
+		}
+
+		if (!indexed) {
+			// at least one true regular expression, test every name
+			List<String> list = new ArrayList<String>();
+			for (String name : names) {
+				if (matches(name)) {
+					list.add(name);
+				}
+			}
+			return list;
+		}
+
+		// literal and prefix expressions, binary search the sorted names
+		if (!(names instanceof RandomAccess)) {
+			names = new ArrayList<String>(names);
+		}
+		TreeSet<Integer> hits = new TreeSet<Integer>();
+		for (Term term : terms) {
+			int i = Collections.binarySearch(names, term.literal, String.CASE_INSENSITIVE_ORDER);
+			if (i < 0) {
+				i = -(i + 1);
+			} else {
+				// rewind to the first case-insensitive duplicate
+				while (i > 0 && names.get(i - 1).equalsIgnoreCase(term.literal)) {
+					i--;
+				}
+			}
+			int len = term.literal.length();
+			for (; i < names.size(); i++) {
+				String name = names.get(i);
+				if (term.prefix ? !name.regionMatches(true, 0, term.literal, 0, len) : !name.equalsIgnoreCase(term.literal)) {
+					// past the range of candidate names
+					break;
+				}
+				if (term.matches(name)) {
+					hits.add(i);
+				}
+			}
+		}
+
+		List<String> list = new ArrayList<String>(hits.size());
+		for (int i : hits) {
+			list.add(names.get(i));
+		}
+		return list;
+	}
+
+	/**
+	 * One compiled filter expression.
+	 */
+	private static class Term {
+
+		final String literal;
+
+		final boolean prefix;
+
+		final Pattern pattern;
+
+		static Term compile(String expression) {
+			String literal = toLiteral(expression);
+			if (literal != null) {
+				return new Term(literal, false, null);
+			}
+			if (expression.endsWith(".*")) {
+				literal = toLiteral(expression.substring(0, expression.length() - 2));
+				if (literal != null) {
+					return new Term(literal, true, null);
+				}
+			}
+			return new Term(null, false, Pattern.compile(expression));
+		}
+
+		Term(String literal, boolean prefix, Pattern pattern) {
+			this.literal = literal;
+			this.prefix = prefix;
+			this.pattern = pattern;
+		}
+
+		boolean matches(String name) {
+			if (pattern != null) {
+				return pattern.matcher(name).matches();
+			} else if (prefix) {
+				return name.startsWith(literal);
+			}
+			return name.equals(literal);
+		}
+
+		/**
+		 * Returns the unescaped literal text of the expression or null if the
+		 * expression contains regular expression constructs.
+		 */
+		static String toLiteral(String expression) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < expression.length(); i++) {
+				char c = expression.charAt(i);
+				if (c == '\\') {
+					// only escaped punctuation is literal, \d, \w, etc are not
+					if (i + 1 == expression.length() || Character.isLetterOrDigit(expression.charAt(i + 1))) {
+						return null;
+					}
+					sb.append(expression.charAt(++i));
+				} else if (METACHARS.indexOf(c) > -1) {
+					return null;
+				} else {
+					sb.append(c);
+				}
+			}
+			return sb.toString();
+		}
+	}
+}
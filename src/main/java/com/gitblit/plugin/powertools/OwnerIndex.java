@@ -0,0 +1,191 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.gitblit.manager.IGitblit;
+import com.gitblit.models.RepositoryModel;
+
+/**
+ * An index of the repositories owned by each account.
+ *
+ * The index is built with one pass over the repository models and then
+ * answers a lookup in time proportional to the result.  Every candidate is
+ * checked against the current model, so a repository which was deleted or
+ * lost the owner since the index was built is never returned.  Before a
+ * miss is trusted the repository list is compared with the list the index
+ * was built from, and the index is rebuilt if a repository was created,
+ * renamed or deleted meanwhile.  Owners granted outside of the powertools
+ * commands on an existing repository, e.g. through the web UI, are picked
+ * up when the index expires.  An expired index is rebuilt in the
+ * background, lookups meanwhile use the expired index.
+ *
+ * Settings:
+ *   powertools.ownerIndexTtl in seconds (default: 60)
+ */
+public class OwnerIndex {
+
+	private static Snapshot snapshot;
+
+	/** incremented by every invalidation, a build which raced one is discarded */
+	private static long generation;
+
+	private static boolean building;
+
+	private static class Snapshot {
+
+		final long built;
+
+		/** the size and hash of the repository list the index was built from */
+		final long fingerprint;
+
+		/** lowercase owner -> repository names */
+		final Map<String, List<String>> owned;
+
+		Snapshot(long built, long fingerprint, Map<String, List<String>> owned) {
+			this.built = built;
+			this.fingerprint = fingerprint;
+			this.owned = owned;
+		}
+	}
+
+	/**
+	 * Returns the repositories owned by the account, sorted by name.
+	 *
+	 * @param gitblit
+	 * @param username
+	 * @return the owned repositories
+	 */
+	public static List<RepositoryModel> getOwned(IGitblit gitblit, String username) {
+		String key = username.toLowerCase();
+		Snapshot index = get(gitblit);
+		List<String> names = index.owned.get(key);
+		if (names == null) {
+			// a miss is only trusted while the repository list is unchanged
+			List<String> repositories = gitblit.getRepositoryList();
+			if (RepositoryNames.fingerprint(repositories) != index.fingerprint) {
+				names = rebuild(gitblit, repositories).owned.get(key);
+			}
+			if (names == null) {
+				return new ArrayList<RepositoryModel>();
+			}
+		}
+		List<RepositoryModel> list = new ArrayList<RepositoryModel>(names.size());
+		for (String name : names) {
+			RepositoryModel repo = gitblit.getRepositoryModel(name);
+			if (repo != null && repo.isOwner(username)) {
+				list.add(repo);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Discards the index after a change of repository names or owners.
+	 */
+	public static synchronized void invalidate() {
+		snapshot = null;
+		generation++;
+	}
+
+	/**
+	 * Returns the current index.  Only the first lookup builds the index, an
+	 * expired index is returned while it is rebuilt in the background.
+	 */
+	private static Snapshot get(final IGitblit gitblit) {
+		long ttl = TimeUnit.SECONDS.toMillis(gitblit.getSettings().getInteger("powertools.ownerIndexTtl", 60));
+		synchronized (OwnerIndex.class) {
+			if (snapshot != null) {
+				if (!building && System.currentTimeMillis() - snapshot.built > ttl) {
+					building = true;
+					final long started = generation;
+					Thread t = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							build(gitblit, gitblit.getRepositoryList(), started);
+						}
+					}, "powertools-owner-index");
+					t.setDaemon(true);
+					t.start();
+				}
+				return snapshot;
+			}
+		}
+		return rebuild(gitblit, gitblit.getRepositoryList());
+	}
+
+	/**
+	 * Builds the index from the repository list in the calling thread.
+	 */
+	private static Snapshot rebuild(IGitblit gitblit, List<String> repositories) {
+		long started;
+		synchronized (OwnerIndex.class) {
+			if (snapshot != null && snapshot.fingerprint == RepositoryNames.fingerprint(repositories)) {
+				// another lookup has rebuilt it meanwhile
+				return snapshot;
+			}
+			building = true;
+			started = generation;
+		}
+		return build(gitblit, repositories, started);
+	}
+
+	private static Snapshot build(IGitblit gitblit, List<String> repositories, long started) {
+		Snapshot built = null;
+		try {
+			built = build(gitblit, repositories);
+			return built;
+		} finally {
+			synchronized (OwnerIndex.class) {
+				building = false;
+				if (built != null && started == generation) {
+					snapshot = built;
+				}
+			}
+		}
+	}
+
+	private static Snapshot build(IGitblit gitblit, List<String> repositories) {
+		long now = System.currentTimeMillis();
+		Map<String, List<String>> owned = new HashMap<String, List<String>>();
+		for (String name : repositories) {
+			RepositoryModel repo = gitblit.getRepositoryModel(name);
+			if (repo == null || repo.owners == null) {
+				continue;
+			}
+			for (String owner : repo.owners) {
+				String key = owner.toLowerCase();
+				List<String> names = owned.get(key);
+				if (names == null) {
+					names = new ArrayList<String>(1);
+					owned.put(key, names);
+				}
+				names.add(repo.name);
+			}
+		}
+		// the repository list is not sorted case-insensitively, sort each result
+		for (List<String> names : owned.values()) {
+			Collections.sort(names, String.CASE_INSENSITIVE_ORDER);
+		}
+		return new Snapshot(now, RepositoryNames.fingerprint(repositories), owned);
+	}
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reads pack statistics directly from the pack files.
+ *
+ * The object count and index version are read from the memory-mapped header
+ * and fan-out table of the .idx and the bitmap count from the header of the
+ * .bitmap, so the cost does not depend on the size of the pack.  Delta chain
+ * depths are optional: they need the offsets of every object from the index
+ * and the entry header of every object in the pack, but still no inflating.
+ * Only the sorted offsets and the depths are held on the heap, the bases of
+ * REF_DELTA entries are looked up in the mapped index.  A pack which can not
+ * be read reports an error instead of failing the whole listing.
+ */
+public class PackStats {
+
+	private static final byte[] IDX_MAGIC = { (byte) 0xff, 't', 'O', 'c' };
+
+	private static final byte[] BITMAP_MAGIC = { 'B', 'I', 'T', 'M' };
+
+	private static final int OBJ_OFS_DELTA = 6;
+
+	private static final int OBJ_REF_DELTA = 7;
+
+	/** the largest pack whose depths are computed, at 6 to 10 bytes per object */
+	private static final long MAX_DEPTH_OBJECTS = 1L << 24;
+
+	/**
+	 * The statistics of one pack.
+	 */
+	public static class Pack {
+
+		public final String name;
+
+		public long size;
+
+		public long objects;
+
+		public int indexVersion;
+
+		public boolean keep;
+
+		/** bitmapped commits, -1 if there is no bitmap index */
+		public int bitmaps = -1;
+
+		/** delta objects, -1 if depths were not computed */
+		public long deltas = -1;
+
+		public int maxDepth;
+
+		public double averageDepth;
+
+		public int packs = 1;
+
+		/** the reason the pack could not be read, or null */
+		public String error;
+
+		Pack(String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Sums the statistics of the packs of a repository.
+	 *
+	 * @param name
+	 * @param packs
+	 * @return the totals
+	 */
+	public static Pack summarize(String name, List<Pack> packs) {
+		Pack total = new Pack(name);
+		total.packs = packs.size();
+		double depths = 0;
+		for (Pack pack : packs) {
+			total.size += pack.size;
+			total.objects += pack.objects;
+			total.indexVersion = Math.max(total.indexVersion, pack.indexVersion);
+			total.keep |= pack.keep;
+			if (pack.error != null && total.error == null) {
+				total.error = String.format("%s: %s", pack.name, pack.error);
+			}
+			if (pack.bitmaps >= 0) {
+				total.bitmaps = Math.max(0, total.bitmaps) + pack.bitmaps;
+			}
+			if (pack.deltas >= 0) {
+				total.deltas = Math.max(0, total.deltas) + pack.deltas;
+				total.maxDepth = Math.max(total.maxDepth, pack.maxDepth);
+				depths += pack.averageDepth * pack.deltas;
+			}
+		}
+		total.averageDepth = total.deltas > 0 ? depths / total.deltas : 0;
+		return total;
+	}
+
+	/**
+	 * Reads the statistics of the packs in the folder.
+	 *
+	 * @param packFolder
+	 *            the objects/pack folder
+	 * @param depths
+	 *            compute the delta chain depths
+	 * @return the packs, largest first
+	 */
+	public static List<Pack> read(File packFolder, boolean depths) {
+		List<Pack> packs = new ArrayList<Pack>();
+		File[] files = packFolder.listFiles();
+		if (files == null) {
+			return packs;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.endsWith(".pack")) {
+				continue;
+			}
+			String base = name.substring(0, name.length() - 5);
+			File idx = new File(packFolder, base + ".idx");
+			if (!idx.exists()) {
+				continue;
+			}
+			Pack pack = new Pack(base);
+			pack.size = file.length();
+			pack.keep = new File(packFolder, base + ".keep").exists();
+			try {
+				readIndexHeader(idx, pack);
+				File bitmap = new File(packFolder, base + ".bitmap");
+				if (bitmap.exists()) {
+					pack.bitmaps = readBitmapHeader(bitmap);
+				}
+				if (depths) {
+					readDepths(idx, file, pack);
+				}
+			} catch (IOException e) {
+				pack.error = e.getMessage();
+			} catch (IndexOutOfBoundsException | BufferUnderflowException | IllegalArgumentException e) {
+				// a truncated file, or offsets beyond its end
+				pack.error = "truncated or corrupt";
+			}
+			packs.add(pack);
+		}
+		Collections.sort(packs, new Comparator<Pack>() {
+			@Override
+			public int compare(Pack a, Pack b) {
+				return a.size < b.size ? 1 : (a.size == b.size ? 0 : -1);
+			}
+		});
+		return packs;
+	}
+
+	private static MappedByteBuffer map(File file, long position, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return channel.map(MapMode.READ_ONLY, position, Math.min(length, channel.size() - position));
+		} finally {
+			// the mapping remains valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	private static boolean startsWith(MappedByteBuffer buf, byte[] magic) {
+		if (buf.limit() < magic.length) {
+			return false;
+		}
+		for (int i = 0; i < magic.length; i++) {
+			if (buf.get(i) != magic[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the version and the object count, the last fan-out entry.
+	 */
+	private static void readIndexHeader(File idx, Pack pack) throws IOException {
+		MappedByteBuffer buf = map(idx, 0, 8 + 256 * 4);
+		int fanout;
+		if (startsWith(buf, IDX_MAGIC)) {
+			pack.indexVersion = buf.getInt(4);
+			fanout = 8;
+		} else {
+			pack.indexVersion = 1;
+			fanout = 0;
+		}
+		pack.objects = buf.getInt(fanout + 255 * 4) & 0xffffffffL;
+	}
+
+	/**
+	 * Reads the number of bitmapped commits from the bitmap header: magic,
+	 * version, options and entry count.
+	 */
+	private static int readBitmapHeader(File bitmap) throws IOException {
+		MappedByteBuffer buf = map(bitmap, 0, 12);
+		if (!startsWith(buf, BITMAP_MAGIC) || buf.limit() < 12) {
+			return 0;
+		}
+		return buf.getInt(8);
+	}
+
+	/**
+	 * Computes the delta chain depths from the object offsets in the index
+	 * and the entry headers in the pack.
+	 */
+	private static void readDepths(File idx, File packFile, Pack pack) throws IOException {
+		if (pack.objects > MAX_DEPTH_OBJECTS) {
+			throw new IOException(String.format("too many objects (%d) to compute the depths", pack.objects));
+		}
+		int n = (int) pack.objects;
+		if (n == 0) {
+			pack.deltas = 0;
+			return;
+		}
+		Index index = new Index(new MappedFile(idx), pack.indexVersion, n);
+		MappedFile data = new MappedFile(packFile);
+
+		Offsets sorted = new Offsets(n, pack.size);
+		for (int i = 0; i < n; i++) {
+			sorted.set(i, index.getOffset(i));
+		}
+		sorted.sort();
+		short[] depth = new short[n];
+		Arrays.fill(depth, (short) -1);
+		int[] chain = new int[64];
+		byte[] id = new byte[20];
+		long deltas = 0;
+		long totalDepth = 0;
+		int maxDepth = 0;
+		for (int i = 0; i < n; i++) {
+			// follow the chain to an object of known depth, then unwind
+			int len = 0;
+			int k = i;
+			while (depth[k] < 0 && len <= n) {
+				if (len == chain.length) {
+					chain = Arrays.copyOf(chain, len * 2);
+				}
+				chain[len++] = k;
+				long base = readBase(data, sorted.get(k), index, id);
+				int b = base < 0 ? -1 : sorted.search(base);
+				if (b < 0) {
+					// not a delta, or the base is not in this pack
+					depth[k] = 0;
+					len--;
+					break;
+				}
+				k = b;
+			}
+			int d = Math.max(0, depth[k]);
+			while (len > 0) {
+				d = Math.min(Short.MAX_VALUE, d + 1);
+				depth[chain[--len]] = (short) d;
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			if (depth[i] > 0) {
+				deltas++;
+				totalDepth += depth[i];
+				maxDepth = Math.max(maxDepth, depth[i]);
+			}
+		}
+		pack.deltas = deltas;
+		pack.maxDepth = maxDepth;
+		pack.averageDepth = deltas == 0 ? 0 : (double) totalDepth / deltas;
+	}
+
+	/**
+	 * Returns the offset of the delta base of the entry, or -1 if the entry
+	 * is not a delta or its base is not in this pack.
+	 */
+	private static long readBase(MappedFile data, long start, Index index, byte[] id) {
+		long pos = start;
+		int c = data.get(pos++) & 0xff;
+		int type = (c >> 4) & 7;
+		while ((c & 0x80) != 0) {
+			c = data.get(pos++) & 0xff;
+		}
+		if (type == OBJ_OFS_DELTA) {
+			c = data.get(pos++) & 0xff;
+			long ofs = c & 0x7f;
+			while ((c & 0x80) != 0) {
+				ofs += 1;
+				c = data.get(pos++) & 0xff;
+				ofs <<= 7;
+				ofs += c & 0x7f;
+			}
+			return start - ofs;
+		} else if (type == OBJ_REF_DELTA) {
+			data.get(pos, id, 0, 20);
+			int i = index.find(id);
+			return i < 0 ? -1 : index.getOffset(i);
+		}
+		return -1;
+	}
+
+	/**
+	 * The names and offsets of a mapped pack index, read in place.
+	 */
+	private static class Index {
+
+		private final MappedFile file;
+
+		private final int version;
+
+		private final long fanoutPos;
+
+		private final long namesPos;
+
+		private final long offsetsPos;
+
+		private final long offsets64Pos;
+
+		Index(MappedFile file, int version, int n) {
+			this.file = file;
+			this.version = version;
+			if (version == 1) {
+				// fan-out, then 4-byte offset and name per object
+				fanoutPos = 0;
+				namesPos = 256 * 4 + 4;
+				offsetsPos = 256 * 4;
+				offsets64Pos = 0;
+			} else {
+				// header, fan-out, names, crcs, offsets, 64-bit offsets
+				fanoutPos = 8;
+				namesPos = 8 + 256 * 4;
+				offsetsPos = namesPos + n * 24L;
+				offsets64Pos = offsetsPos + n * 4L;
+			}
+		}
+
+		long getOffset(int i) {
+			if (version == 1) {
+				return file.getInt(offsetsPos + i * 24L) & 0xffffffffL;
+			}
+			int o = file.getInt(offsetsPos + i * 4L);
+			if (o < 0) {
+				return file.getLong(offsets64Pos + (o & 0x7fffffff) * 8L);
+			}
+			return o;
+		}
+
+		private long getNamePos(int i) {
+			return namesPos + i * (version == 1 ? 24L : 20L);
+		}
+
+		/**
+		 * Returns the position of the name in the index, or -1.  The search
+		 * is narrowed to the names with the same first byte by the fan-out.
+		 */
+		int find(byte[] id) {
+			int first = id[0] & 0xff;
+			int low = first == 0 ? 0 : file.getInt(fanoutPos + (first - 1) * 4L);
+			int high = file.getInt(fanoutPos + first * 4L) - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				long pos = getNamePos(mid);
+				int cmp = 0;
+				for (int i = 0; i < 20 && cmp == 0; i++) {
+					cmp = (file.get(pos + i) & 0xff) - (id[i] & 0xff);
+				}
+				if (cmp < 0) {
+					low = mid + 1;
+				} else if (cmp > 0) {
+					high = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * The object offsets in pack order.  Packs below 4 GB store them in an
+	 * int each, biased so that the signed order is the offset order.
+	 */
+	private static class Offsets {
+
+		private final int[] small;
+
+		private final long[] large;
+
+		Offsets(int n, long packSize) {
+			if (packSize <= 0xffffffffL) {
+				small = new int[n];
+				large = null;
+			} else {
+				small = null;
+				large = new long[n];
+			}
+		}
+
+		void set(int i, long offset) {
+			if (small != null) {
+				small[i] = (int) (offset + Integer.MIN_VALUE);
+			} else {
+				large[i] = offset;
+			}
+		}
+
+		long get(int i) {
+			return small != null ? small[i] - (long) Integer.MIN_VALUE : large[i];
+		}
+
+		void sort() {
+			if (small != null) {
+				Arrays.sort(small);
+			} else {
+				Arrays.sort(large);
+			}
+		}
+
+		int search(long offset) {
+			if (small != null) {
+				if (offset > 0xffffffffL) {
+					return -1;
+				}
+				int i = Arrays.binarySearch(small, (int) (offset + Integer.MIN_VALUE));
+				return i < 0 ? -1 : i;
+			}
+			int i = Arrays.binarySearch(large, offset);
+			return i < 0 ? -1 : i;
+		}
+	}
+
+	/**
+	 * A read-only memory-mapped file, mapped in segments so that packs larger
+	 * than 2 GB can be read.
+	 */
+	private static class MappedFile {
+
+		private static final int SEGMENT_BITS = 30;
+
+		private static final long SEGMENT = 1L << SEGMENT_BITS;
+
+		private final MappedByteBuffer[] segments;
+
+		MappedFile(File file) throws IOException {
+			long length = file.length();
+			if (length == 0) {
+				throw new IOException(String.format("%s is empty", file.getName()));
+			}
+			int count = (int) ((length + SEGMENT - 1) >> SEGMENT_BITS);
+			segments = new MappedByteBuffer[count];
+			for (int i = 0; i < count; i++) {
+				segments[i] = map(file, i * SEGMENT, SEGMENT);
+			}
+		}
+
+		byte get(long pos) {
+			return segments[(int) (pos >> SEGMENT_BITS)].get((int) (pos & (SEGMENT - 1)));
+		}
+
+		void get(long pos, byte[] dst, int off, int len) {
+			for (int i = 0; i < len; i++) {
+				dst[off + i] = get(pos + i);
+			}
+		}
+
+		int getInt(long pos) {
+			return ((get(pos) & 0xff) << 24) | ((get(pos + 1) & 0xff) << 16)
+					| ((get(pos + 2) & 0xff) << 8) | (get(pos + 3) & 0xff);
+		}
+
+		long getLong(long pos) {
+			return ((long) getInt(pos) << 32) | (getInt(pos + 4) & 0xffffffffL);
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.gitblit.Constants.AccessPermission;
+import com.gitblit.manager.IGitblit;
+import com.gitblit.transport.ssh.commands.BaseCommand.UnloggedFailure;
+import com.gitblit.utils.FlipTable;
+import com.gitblit.utils.FlipTable.Borders;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * Reads and validates repository permissions for the users and teams
+ * permissions commands.
+ *
+ * Explicit repository names are checked against one snapshot of the
+ * repository list instead of loading a model per name, so that thousands of
+ * grants can be streamed from stdin and saved with a single update.
+ */
+public class PermissionGrants {
+
+	private static final int MAX_ERRORS = 20;
+
+	/**
+	 * Returns the lowercase names of all repositories.
+	 *
+	 * @param gitblit
+	 * @return the repository names
+	 */
+	public static Set<String> getRepositoryNames(IGitblit gitblit) {
+		List<String> list = gitblit.getRepositoryList();
+		Set<String> names = new HashSet<String>(list.size() * 2);
+		for (String name : list) {
+			names.add(name.toLowerCase());
+		}
+		return names;
+	}
+
+	/**
+	 * Returns an error message if the permission names a repository which
+	 * does not exist.  Regular expressions are not checked.
+	 *
+	 * @param repository
+	 * @param names
+	 *            the lowercase repository names
+	 * @return null if the repository is valid
+	 */
+	public static String validate(String repository, Set<String> names) {
+		if (StringUtils.findInvalidCharacter(repository) == null
+				&& !names.contains(repository.toLowerCase())) {
+			return String.format("Repository %s does not exist!", repository);
+		}
+		return null;
+	}
+
+	/**
+	 * Reads PERMISSION:REPOSITORY lines, skipping blank lines and # comments.
+	 * A repository listed more than once gets its last permission.  Nothing
+	 * is returned unless every line is valid.
+	 *
+	 * @param in
+	 * @param names
+	 *            the lowercase repository names
+	 * @return lowercase repository -> permission, in input order
+	 */
+	public static Map<String, AccessPermission> read(InputStream in, Set<String> names) throws IOException, UnloggedFailure {
+		Map<String, AccessPermission> grants = new LinkedHashMap<String, AccessPermission>();
+		List<String> errors = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		String line;
+		int number = 0;
+		int failures = 0;
+		while ((line = reader.readLine()) != null) {
+			number++;
+			line = line.trim();
+			if (line.isEmpty() || line.charAt(0) == '#') {
+				continue;
+			}
+			String error;
+			int colon = line.indexOf(':');
+			if (colon <= 0 || colon == line.length() - 1) {
+				error = "expected PERMISSION:REPOSITORY";
+			} else if (!isPermission(line.substring(0, colon))) {
+				error = String.format("unknown permission %s", line.substring(0, colon));
+			} else {
+				error = validate(line.substring(colon + 1), names);
+			}
+			if (error == null) {
+				String repository = AccessPermission.repositoryFromRole(line).toLowerCase();
+				grants.put(repository, AccessPermission.permissionFromRole(line));
+			} else if (++failures <= MAX_ERRORS) {
+				errors.add(String.format("line %d: %s", number, error));
+			}
+		}
+		if (failures > 0) {
+			StringBuilder sb = new StringBuilder("No permissions changed!");
+			for (String error : errors) {
+				sb.append('\n').append(error);
+			}
+			if (failures > MAX_ERRORS) {
+				sb.append(String.format("\n... and %d more", failures - MAX_ERRORS));
+			}
+			throw new UnloggedFailure(1, sb.toString());
+		}
+		return grants;
+	}
+
+	private static boolean isPermission(String code) {
+		for (AccessPermission ap : AccessPermission.values()) {
+			if (ap.code.equalsIgnoreCase(code)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a table of the permissions which were added, changed or
+	 * removed.
+	 *
+	 * @param before
+	 *            a copy of the permissions before the update
+	 * @param after
+	 * @return the diff
+	 */
+	public static String diff(Map<String, AccessPermission> before, Map<String, AccessPermission> after) {
+		Set<String> repositories = new TreeSet<String>(before.keySet());
+		repositories.addAll(after.keySet());
+		List<Object[]> rows = new ArrayList<Object[]>();
+		int added = 0, changed = 0, removed = 0;
+		for (String repository : repositories) {
+			AccessPermission was = before.get(repository);
+			AccessPermission now = after.get(repository);
+			if (was == now) {
+				continue;
+			}
+			String op;
+			if (was == null) {
+				op = "+";
+				added++;
+			} else if (now == null) {
+				op = "-";
+				removed++;
+			} else {
+				op = "~";
+				changed++;
+			}
+			rows.add(new Object[] { op, repository, was == null ? "" : was, now == null ? "" : now });
+		}
+		String summary = String.format("%d added, %d changed, %d removed", added, changed, removed);
+		if (rows.isEmpty()) {
+			return summary;
+		}
+		String[] headers = { "", "Repository", "Was", "Now" };
+		Object[][] data = rows.toArray(new Object[rows.size()][]);
+		return FlipTable.of(headers, data, Borders.BODY_HCOLS) + "\n" + summary;
+	}
+}
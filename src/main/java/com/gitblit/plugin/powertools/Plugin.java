@@ -19,6 +19,8 @@ import ro.fortsoft.pf4j.PluginWrapper;
 import ro.fortsoft.pf4j.Version;
 
 import com.gitblit.extensions.GitblitPlugin;
+import com.gitblit.manager.IGitblit;
+import com.gitblit.servlet.GitblitContext;
 
 public class Plugin extends GitblitPlugin {
 
@@ -28,11 +30,16 @@ public class Plugin extends GitblitPlugin {
 
 	@Override
 	public void start() {
+		JobManager.start();
+		Trash.start(GitblitContext.getManager(IGitblit.class));
 		log.debug("{} STARTED.", getWrapper().getPluginId());
 	}
 
 	@Override
 	public void stop() {
+		JobManager.stop();
+		Trash.stop();
+		DiskUsage.shutdown();
 		log.debug("{} STOPPED.", getWrapper().getPluginId());
 	}
 
@@ -22,7 +22,6 @@ import com.gitblit.models.ProjectModel;
 import com.gitblit.models.UserModel;
 import com.gitblit.transport.ssh.commands.CommandMetaData;
 import com.gitblit.transport.ssh.commands.DispatchCommand;
-import com.gitblit.transport.ssh.commands.ListFilterCommand;
 import com.gitblit.utils.FlipTable;
 import com.gitblit.utils.FlipTable.Borders;
 
@@ -36,20 +35,21 @@ public class ProjectsDispatcher extends DispatchCommand {
 
 	/* List projects */
 	@CommandMetaData(name = "list", aliases= { "ls" }, description = "List projects")
-	public static class ListProjects extends ListFilterCommand<ProjectModel> {
+	public static class ListProjects extends FilteredListCommand<ProjectModel> {
 
 		@Override
-		protected List<ProjectModel> getItems() {
+		protected List<ProjectModel> getItems() throws UnloggedFailure {
 			IGitblit gitblit = getContext().getGitblit();
 			UserModel user = getContext().getClient().getUser();
 
+			// project models are assembled by the server, there is no name index
 			List<ProjectModel> projects = gitblit.getProjectModels(user, false);
-			return projects;
+			return filter(projects);
 		}
 
 		@Override
-		protected boolean matches(String filter, ProjectModel p) {
-			return p.name.matches(filter);
+		protected String getName(ProjectModel p) {
+			return p.name;
 		}
 
 		@Override
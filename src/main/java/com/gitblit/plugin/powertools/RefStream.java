@@ -0,0 +1,248 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+
+import org.eclipse.jgit.lib.Constants;
+
+/**
+ * Streams the refs of a repository in name order.
+ *
+ * The RefDatabase of JGit reads every ref under a prefix into a map before
+ * returning any of them, which for millions of refs/changes or CI tags costs
+ * hundreds of megabytes.  This reads the sorted packed-refs file line by line
+ * and walks the loose refs folder in the same order, merging the two so that
+ * a loose ref overrides its packed copy, and hands each ref to a visitor as
+ * soon as it is read.
+ */
+public class RefStream {
+
+	private static final String PACKED_REFS = "packed-refs";
+
+	private static final String SYMREF = "ref: ";
+
+	/**
+	 * Receives the refs in name order.
+	 */
+	public static abstract class Visitor {
+
+		/**
+		 * @param name
+		 *            the full name of the ref
+		 * @param value
+		 *            the object id, or the target of a symbolic ref
+		 * @param symbolic
+		 * @param loose
+		 *            true if the ref is not packed
+		 * @return false to stop the walk
+		 */
+		public abstract boolean visit(String name, String value, boolean symbolic, boolean loose) throws IOException;
+	}
+
+	/**
+	 * Walks the refs whose names start with the prefix.
+	 *
+	 * @param gitDir
+	 *            the git directory of the repository
+	 * @param prefix
+	 *            e.g. refs/changes/, or refs/ for all refs
+	 * @param visitor
+	 */
+	public static void walk(File gitDir, String prefix, Visitor visitor) throws IOException {
+		PackedRefs packed = new PackedRefs(new File(gitDir, PACKED_REFS), prefix);
+		try {
+			LooseRefs loose = new LooseRefs(gitDir, prefix);
+			String[] p = packed.next();
+			String[] l = loose.next();
+			while (p != null || l != null) {
+				int cmp = p == null ? 1 : (l == null ? -1 : p[0].compareTo(l[0]));
+				String[] ref;
+				boolean isLoose;
+				if (cmp < 0) {
+					ref = p;
+					isLoose = false;
+					p = packed.next();
+				} else {
+					if (cmp == 0) {
+						// the loose ref is newer than its packed copy
+						p = packed.next();
+					}
+					ref = l;
+					isLoose = true;
+					l = loose.next();
+				}
+				boolean symbolic = ref[1].startsWith(SYMREF);
+				String value = symbolic ? ref[1].substring(SYMREF.length()) : ref[1];
+				if (!visitor.visit(ref[0], value, symbolic, isLoose)) {
+					return;
+				}
+			}
+		} finally {
+			packed.close();
+		}
+	}
+
+	/**
+	 * Reads the packed-refs file, skipping the header and the peeled lines.
+	 * Git writes the file sorted by name, so the read stops after the prefix.
+	 */
+	private static class PackedRefs {
+
+		private final String prefix;
+
+		private final BufferedReader reader;
+
+		PackedRefs(File file, String prefix) throws IOException {
+			this.prefix = prefix;
+			BufferedReader r = null;
+			try {
+				r = new BufferedReader(new InputStreamReader(new FileInputStream(file), Constants.CHARSET), 64 * 1024);
+			} catch (FileNotFoundException e) {
+				// no packed refs
+			}
+			this.reader = r;
+		}
+
+		String[] next() throws IOException {
+			if (reader == null) {
+				return null;
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty() || line.charAt(0) == '#' || line.charAt(0) == '^') {
+					continue;
+				}
+				int sp = line.indexOf(' ');
+				if (sp < 0) {
+					continue;
+				}
+				String name = line.substring(sp + 1);
+				if (name.startsWith(prefix)) {
+					return new String[] { name, line.substring(0, sp) };
+				} else if (name.compareTo(prefix) > 0) {
+					return null;
+				}
+			}
+			return null;
+		}
+
+		void close() throws IOException {
+			if (reader != null) {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Walks the loose refs depth first.  The entries of each folder are
+	 * sorted as if folder names ended with a slash, which yields the same
+	 * order as sorting the full names.
+	 */
+	private static class LooseRefs {
+
+		private static final Comparator<File> ORDER = new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return key(a).compareTo(key(b));
+			}
+
+			private String key(File f) {
+				return f.isDirectory() ? f.getName() + "/" : f.getName();
+			}
+		};
+
+		private final String prefix;
+
+		private final Deque<Folder> stack = new ArrayDeque<Folder>();
+
+		LooseRefs(File gitDir, String prefix) {
+			this.prefix = prefix;
+			push(new File(gitDir, Constants.R_REFS), Constants.R_REFS);
+		}
+
+		String[] next() throws IOException {
+			while (!stack.isEmpty()) {
+				Folder folder = stack.peek();
+				if (folder.index == folder.files.length) {
+					stack.pop();
+					continue;
+				}
+				File file = folder.files[folder.index++];
+				String name = folder.path + file.getName();
+				if (file.isDirectory()) {
+					String path = name + "/";
+					if (path.startsWith(prefix) || prefix.startsWith(path)) {
+						push(file, path);
+					}
+				} else if (name.startsWith(prefix) && !name.endsWith(".lock")) {
+					String value = read(file);
+					if (value != null) {
+						return new String[] { name, value };
+					}
+				}
+			}
+			return null;
+		}
+
+		private void push(File dir, String path) {
+			File[] files = dir.listFiles();
+			if (files != null) {
+				Arrays.sort(files, ORDER);
+				stack.push(new Folder(path, files));
+			}
+		}
+
+		private String read(File file) throws IOException {
+			BufferedReader r;
+			try {
+				r = new BufferedReader(new InputStreamReader(new FileInputStream(file), Constants.CHARSET));
+			} catch (FileNotFoundException e) {
+				// packed while we walked
+				return null;
+			}
+			try {
+				String line = r.readLine();
+				return line == null || line.isEmpty() ? null : line.trim();
+			} finally {
+				r.close();
+			}
+		}
+	}
+
+	private static class Folder {
+
+		final String path;
+
+		final File[] files;
+
+		int index;
+
+		Folder(String path, File[] files) {
+			this.path = path;
+			this.files = files;
+		}
+	}
+}
@@ -15,44 +15,87 @@
  */
 package com.gitblit.plugin.powertools;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.PatternSyntaxException;
 
-import org.eclipse.jgit.api.CloneCommand;
-import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
+import org.eclipse.jgit.internal.storage.file.GC.RepoStatistics;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.transport.FetchResult;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
 
+import com.gitblit.Constants.AccessPermission;
 import com.gitblit.Constants.AccessRestrictionType;
 import com.gitblit.Constants.AuthorizationControl;
 import com.gitblit.Constants.CommitMessageRenderer;
 import com.gitblit.Constants.FederationStrategy;
+import com.gitblit.Constants.PermissionType;
+import com.gitblit.Constants.RegistrantType;
 import com.gitblit.GitBlitException;
 import com.gitblit.Keys;
 import com.gitblit.manager.IGitblit;
 import com.gitblit.models.RegistrantAccessPermission;
 import com.gitblit.models.RepositoryModel;
 import com.gitblit.models.UserModel;
+import com.gitblit.tickets.ITicketService;
 import com.gitblit.transport.ssh.commands.CommandMetaData;
 import com.gitblit.transport.ssh.commands.DispatchCommand;
-import com.gitblit.transport.ssh.commands.ListFilterCommand;
 import com.gitblit.transport.ssh.commands.SshCommand;
 import com.gitblit.transport.ssh.commands.UsageExample;
 import com.gitblit.transport.ssh.commands.UsageExamples;
 import com.gitblit.utils.ArrayUtils;
+import com.gitblit.utils.ByteFormat;
 import com.gitblit.utils.FileUtils;
 import com.gitblit.utils.FlipTable;
 import com.gitblit.utils.FlipTable.Borders;
 import com.gitblit.utils.StringUtils;
 import com.google.common.base.Joiner;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 @CommandMetaData(name = "repositories", aliases = { "repos" }, description = "Repository management commands")
 public class RepositoriesDispatcher extends DispatchCommand {
@@ -62,13 +105,26 @@ public class RepositoriesDispatcher extends DispatchCommand {
 		// primary commands
 		register(NewRepository.class);
 		register(RenameRepository.class);
+		register(MovePrefix.class);
 		register(RemoveRepository.class);
 		register(ShowRepository.class);
 		register(ForkRepository.class);
+		register(UnshareRepository.class);
+		register(TrashDispatcher.class);
 		register(ListRepositories.class);
+		register(RepositoryUsage.class);
+		register(ShowActivity.class);
+		register(ShowPackStats.class);
+		register(ListRefs.class);
+		register(CollectGarbage.class);
+		register(CheckRepositories.class);
+		register(SyncMirrors.class);
+		register(ExportMeta.class);
+		register(ImportMeta.class);
 
 		// repository-specific commands
 		register(SetField.class);
+		register(SetFieldAll.class);
 	}
 
 	public static abstract class RepositoryCommand extends SshCommand {
@@ -84,7 +140,7 @@ public class RepositoriesDispatcher extends DispatchCommand {
 			return repo;
 		}
 
-		protected String sanitize(String name) throws UnloggedFailure {
+		protected static String sanitize(String name) throws UnloggedFailure {
 			// automatically convert backslashes to forward slashes
 			name = name.replace('\\', '/');
 			// Automatically replace // with /
@@ -109,6 +165,35 @@ public class RepositoriesDispatcher extends DispatchCommand {
 		protected String getRepositoryUrl() {
 			return getRepositoryUrl(repository);
 		}
+
+		protected void submit(Job job) throws UnloggedFailure {
+			RepositoriesDispatcher.submit(job, stdout);
+		}
+	}
+
+	/**
+	 * Queues a job and tells the caller how to follow it.
+	 */
+	static void submit(Job job, PrintWriter stdout) throws UnloggedFailure {
+		try {
+			JobManager.get().submit(job);
+		} catch (RejectedExecutionException e) {
+			throw new UnloggedFailure(1, "Too many queued jobs, please try again later");
+		} catch (IllegalStateException e) {
+			throw new UnloggedFailure(1, e.getMessage());
+		}
+		stdout.println(String.format("Job %d queued: %s", job.getId(), job.getTitle()));
+		stdout.println(String.format("Use 'gitblit jobs show %d' to follow its progress.", job.getId()));
+	}
+
+	/**
+	 * Refuses to work on a repository which an unfinished job reserved.
+	 */
+	static void checkReservation(String name) throws UnloggedFailure {
+		Job job = JobManager.get().getReservation(name);
+		if (job != null) {
+			throw new UnloggedFailure(1, String.format("%s is in use by job %d!", name, job.getId()));
+		}
 	}
 
 	@CommandMetaData(name = "new", aliases = { "add" }, description = "Create a new repository")
@@ -116,15 +201,36 @@ public class RepositoriesDispatcher extends DispatchCommand {
 			@UsageExample(syntax = "${cmd} myRepo", description = "Create a repository named 'myRepo'"),
 			@UsageExample(syntax = "${cmd} myMirror --mirror https://github.com/gitblit-org/gitblit.git",
 				description = "Create a mirror named 'myMirror'"),
+			@UsageExample(syntax = "cat myRepo.bundle | ${ssh} ${cmd} myRepo --bundle -",
+				description = "Create 'myRepo' from a git bundle read from stdin"),
 	})
 	public static class NewRepository extends RepositoryCommand {
 
 		@Option(name = "--mirror", aliases = {"-m" }, metaVar = "URL", usage = "URL of repository to mirror")
 		String src;
 
+		@Option(name = "--bundle", metaVar = "-", usage = "populate the repository from a git bundle read from stdin")
+		String bundle;
+
+		@Option(name = "--async", usage = "mirror in the background and print the job id")
+		boolean async;
+
 		@Override
 		public void run() throws Failure {
 
+			if (bundle != null) {
+				if (!"-".equals(bundle)) {
+					throw new UnloggedFailure(1, "The bundle can only be read from stdin, use --bundle -");
+				}
+				if (!StringUtils.isEmpty(src)) {
+					throw new UnloggedFailure(1, "--bundle and --mirror are mutually exclusive");
+				}
+				if (async) {
+					// the bundle is read from this session
+					throw new UnloggedFailure(1, "--async is not supported with --bundle");
+				}
+			}
+
 			UserModel user = getContext().getClient().getUser();
 
 			String name = sanitize(repository);
@@ -149,45 +255,13 @@ public class RepositoriesDispatcher extends DispatchCommand {
 				throw new UnloggedFailure(1,  String.format("Sorry, you do not have permission to create %s", name));
 			}
 
-			IGitblit gitblit = getContext().getGitblit();
-
-			if (!StringUtils.isEmpty(src)) {
-				// Mirror repository
-				// JGit doesn't support --mirror so we have to accomplish this in a few steps
-				File repositoriesFolder = gitblit.getRepositoriesFolder();
-				File repoFolder = new File(repositoriesFolder, name);
-				Repository repository = null;
-				try {
-					// step 1: clone what we can
-					CloneCommand clone = new CloneCommand();
-					clone.setBare(true);
-					clone.setCloneAllBranches(true);
-					clone.setURI(src);
-					clone.setDirectory(repoFolder);
-					clone.setProgressMonitor(NullProgressMonitor.INSTANCE);
-					repository = clone.call().getRepository();
-
-					// step 2: update config to modify refspecs and flag as mirror
-					StoredConfig config = repository.getConfig();
-					config.setString("remote", "origin", "fetch", "+refs/*:refs/*");
-					config.setBoolean("remote", "origin", "mirror", true);
-					config.save();
-
-					// step 3: fetch
-					Git git = new Git(repository);
-					git.fetch().setProgressMonitor(NullProgressMonitor.INSTANCE).call();
-				} catch (GitAPIException |IOException e) {
-					if (repoFolder.exists()) {
-						FileUtils.delete(repoFolder);
-					}
-					throw new Failure(1, String.format("Failed to mirror %s", src), e);
-				} finally {
-					if (repository != null) {
-						repository.close();
-					}
-				}
+			Job pending = JobManager.get().getReservation(name);
+			if (pending != null) {
+				throw new UnloggedFailure(1, String.format("Repository %s is being created by job %d!", name, pending.getId()));
 			}
 
+			IGitblit gitblit = getContext().getGitblit();
+
 			// Standard create repository
 			RepositoryModel repo = new RepositoryModel();
 			repo.name = name;
@@ -204,17 +278,147 @@ public class RepositoriesDispatcher extends DispatchCommand {
 				repo.authorizationControl = AuthorizationControl.NAMED;
 			}
 
-			try {
-				gitblit.updateRepositoryModel(repo.name,  repo, StringUtils.isEmpty(src));
-				if (StringUtils.isEmpty(src)) {
+			if (bundle != null) {
+				try {
+					stdout.println(fromBundle(gitblit, repo, in, NullProgressMonitor.INSTANCE));
+				} catch (GitBlitException e) {
+					log.error("Failed to add " + repository, e);
+					throw new UnloggedFailure(1, e.getMessage());
+				} catch (IOException e) {
+					throw new Failure(1, String.format("Failed to create %s from the bundle", repo.name), e);
+				}
+				return;
+			}
+
+			if (StringUtils.isEmpty(src)) {
+				try {
+					gitblit.updateRepositoryModel(repo.name,  repo, true);
+					OwnerIndex.invalidate();
 					stdout.println(String.format("'%s' created.", repo.name));
-				} else {
-					stdout.println(String.format("'%s' created as mirror of %s.", repo.name, src));
+				} catch (GitBlitException e) {
+					log.error("Failed to add " + repository, e);
+					throw new UnloggedFailure(1, e.getMessage());
 				}
+				return;
+			}
+
+			// Mirror repository
+			if (async) {
+				final IGitblit gb = gitblit;
+				final RepositoryModel model = repo;
+				final String url = src;
+				submit(new Job(String.format("mirror %s from %s", name, src), user.username, name) {
+					@Override
+					protected String execute(JobMonitor monitor) throws Exception {
+						return mirror(gb, model, url, monitor);
+					}
+				});
+				return;
+			}
+
+			try {
+				stdout.println(mirror(gitblit, repo, src, NullProgressMonitor.INSTANCE));
 			} catch (GitBlitException e) {
 				log.error("Failed to add " + repository, e);
 				throw new UnloggedFailure(1, e.getMessage());
+			} catch (GitAPIException | IOException e) {
+				throw new Failure(1, String.format("Failed to mirror %s", src), e);
+			}
+		}
+
+		/**
+		 * Creates the mirror repository, fetches the upstream once and then
+		 * registers the repository model.
+		 *
+		 * @return the result message
+		 */
+		static String mirror(IGitblit gitblit, RepositoryModel repo, String src, ProgressMonitor monitor)
+				throws GitAPIException, IOException {
+
+			// initialize the bare mirror first so that the upstream is only fetched once
+			File repositoriesFolder = gitblit.getRepositoriesFolder();
+			File repoFolder = new File(repositoriesFolder, repo.name);
+			Repository repository = null;
+			String transfer;
+			try {
+				long start = System.currentTimeMillis();
+				repository = MirrorUtils.createMirror(repoFolder, src);
+				MirrorUtils.fetch(repository, monitor);
+				long elapsed = System.currentTimeMillis() - start;
+
+				long objects = MirrorUtils.getPackedObjectCount(repository);
+				long bytes = MirrorUtils.getPackedSize(repository);
+				ByteFormat byteFormat = new ByteFormat();
+				transfer = String.format("%d objects, %s in %.1f secs (%s/s)", objects,
+						byteFormat.format(bytes), elapsed / 1000f,
+						byteFormat.format(elapsed == 0 ? bytes : (bytes * 1000 / elapsed)));
+			} catch (GitAPIException | IOException e) {
+				if (repository != null) {
+					repository.close();
+					repository = null;
+				}
+				if (repoFolder.exists()) {
+					FileUtils.delete(repoFolder);
+				}
+				throw e;
+			} finally {
+				if (repository != null) {
+					repository.close();
+				}
+			}
+
+			gitblit.updateRepositoryModel(repo.name,  repo, false);
+			OwnerIndex.invalidate();
+			return String.format("'%s' created as mirror of %s.%nfetched %s", repo.name, src, transfer);
+		}
+
+		/**
+		 * Creates the bare repository, indexes the pack of the bundle as it is
+		 * read from the stream and then registers the repository model.
+		 *
+		 * @return the result message
+		 */
+		static String fromBundle(IGitblit gitblit, RepositoryModel repo, InputStream in, ProgressMonitor monitor)
+				throws IOException {
+
+			File repoFolder = new File(gitblit.getRepositoriesFolder(), repo.name);
+			if (repoFolder.exists()) {
+				throw new GitBlitException(String.format("Folder %s already exists!", repo.name));
+			}
+			Repository repository = null;
+			String transfer;
+			try {
+				long start = System.currentTimeMillis();
+				repository = new FileRepository(repoFolder);
+				repository.create(true);
+
+				FetchResult result = MirrorUtils.fetchBundle(repository, in, monitor);
+				long elapsed = System.currentTimeMillis() - start;
+
+				long objects = MirrorUtils.getPackedObjectCount(repository);
+				long bytes = MirrorUtils.getPackedSize(repository);
+				ByteFormat byteFormat = new ByteFormat();
+				transfer = String.format("%d refs, %d objects, %s in %.1f secs (%s/s)",
+						result.getTrackingRefUpdates().size(), objects, byteFormat.format(bytes), elapsed / 1000f,
+						byteFormat.format(elapsed == 0 ? bytes : (bytes * 1000 / elapsed)));
+			} catch (IOException e) {
+				if (repository != null) {
+					repository.close();
+					repository = null;
+				}
+				if (repoFolder.exists()) {
+					FileUtils.delete(repoFolder);
+				}
+				throw e;
+			} finally {
+				if (repository != null) {
+					repository.close();
+				}
 			}
+
+			gitblit.updateRepositoryModel(repo.name,  repo, false);
+			OwnerIndex.invalidate();
+			return String.format("'%s' created from bundle.%nfetched %s", repo.name, transfer);
 		}
 	}
 
@@ -255,17 +459,376 @@ public class RepositoriesDispatcher extends DispatchCommand {
 				throw new UnloggedFailure(1, String.format("Sorry, you don't have permission to move %s to %s/", repository, name));
 			}
 
+			checkReservation(repo.name);
+			checkReservation(name);
+
 			// set the new name
 			repo.name = name;
 
 			try {
 				gitblit.updateRepositoryModel(repository, repo, false);
+				SharedForks.moved(gitblit, repository, repo);
+				Activity.invalidate(repository);
+				OwnerIndex.invalidate();
 				stdout.println(String.format("Renamed repository %s to %s.", repository, name));
 			} catch (GitBlitException e) {
 				String msg = String.format("Failed to rename repository from %s to %s", repository, name);
 				log.error(msg, e);
 				throw new UnloggedFailure(1, msg);
+			} catch (IOException e) {
+				String msg = String.format("Renamed repository %s to %s but failed to relink its shared forks", repository, name);
+				log.error(msg, e);
+				throw new UnloggedFailure(1, msg);
+			}
+		}
+	}
+
+	@CommandMetaData(name = "mv-prefix", description = "Move all repositories of a folder to another folder")
+	@UsageExample(syntax = "${cmd} team/ group/team/", description = "Move the repositories in team/ to group/team/")
+	public static class MovePrefix extends SshCommand {
+
+		@Argument(index = 0, required = true, metaVar = "OLD/", usage = "the current folder")
+		protected String oldPrefix;
+
+		@Argument(index = 1, required = true, metaVar = "NEW/", usage = "the new folder")
+		protected String newPrefix;
+
+		@Override
+		public void run() throws UnloggedFailure {
+			long start = System.currentTimeMillis();
+			String from = toPrefix(oldPrefix);
+			String to = toPrefix(newPrefix);
+			if (from.equalsIgnoreCase(to)) {
+				throw new UnloggedFailure(1, "Folder names are identical");
+			}
+			if (to.toLowerCase().startsWith(from.toLowerCase())) {
+				throw new UnloggedFailure(1, String.format("Can not move %s into itself", from));
+			}
+
+			IGitblit gitblit = getContext().getGitblit();
+			UserModel user = getContext().getClient().getUser();
+
+			// authorize the whole set and check for collisions before moving anything
+			Map<String, String> moves = new LinkedHashMap<String, String>();
+			Map<String, String> movesLc = new HashMap<String, String>();
+			List<RepositoryModel> models = new ArrayList<RepositoryModel>();
+			List<String> denied = new ArrayList<String>();
+			List<String> collisions = new ArrayList<String>();
+			for (String name : NameFilter.forPrefix(from).selectSorted(RepositoryNames.getSorted(gitblit))) {
+				RepositoryModel repo = gitblit.getRepositoryModel(name);
+				if (repo == null) {
+					continue;
+				}
+				String newName = to + name.substring(from.length());
+				if (!user.canAdmin(repo) || !user.canCreate(newName)) {
+					denied.add(name);
+				} else if (gitblit.hasRepository(newName)) {
+					collisions.add(newName);
+				}
+				moves.put(name, newName);
+				movesLc.put(name.toLowerCase(), newName);
+				models.add(repo);
+			}
+			if (moves.isEmpty()) {
+				throw new UnloggedFailure(1, String.format("There are no repositories in %s", from));
+			}
+			if (!denied.isEmpty()) {
+				throw new UnloggedFailure(1, String.format("Sorry, you do not have permission to move %d of the repositories: %s",
+						denied.size(), Joiner.on(", ").join(denied)));
+			}
+			if (!collisions.isEmpty()) {
+				throw new UnloggedFailure(1, String.format("%d repositories already exist: %s",
+						collisions.size(), Joiner.on(", ").join(collisions)));
+			}
+			List<String> busy = new ArrayList<String>();
+			for (Map.Entry<String, String> move : moves.entrySet()) {
+				for (String name : Arrays.asList(move.getKey(), move.getValue())) {
+					Job job = JobManager.get().getReservation(name);
+					if (job != null) {
+						busy.add(String.format("%s (job %d)", name, job.getId()));
+					}
+				}
+			}
+			if (!busy.isEmpty()) {
+				throw new UnloggedFailure(1, String.format("%d repositories are in use by jobs: %s",
+						busy.size(), Joiner.on(", ").join(busy)));
+			}
+
+			// forks elsewhere whose origin is moving, Gitblit tracks them in the origin
+			List<RepositoryModel> forks = new ArrayList<RepositoryModel>();
+			for (RepositoryModel repo : models) {
+				if (repo.forks == null) {
+					continue;
+				}
+				for (String name : repo.forks) {
+					if (movesLc.containsKey(name.toLowerCase())) {
+						continue;
+					}
+					RepositoryModel fork = gitblit.getRepositoryModel(name);
+					if (fork != null) {
+						forks.add(fork);
+					}
+				}
+			}
+
+			// release the open handles before the folders move
+			for (String name : moves.keySet()) {
+				gitblit.closeRepository(name);
+			}
+			int renames = move(gitblit.getRepositoriesFolder(), from, to, moves);
+
+			// update the moved models first, a failure moves everything back
+			Map<String, String> back = new LinkedHashMap<String, String>();
+			for (Map.Entry<String, String> move : moves.entrySet()) {
+				back.put(move.getValue(), move.getKey());
+			}
+			for (RepositoryModel repo : models) {
+				repo.name = moves.get(repo.name);
+				repo.projectPath = StringUtils.getFirstPathElement(repo.name);
+			}
+			Map<String, String> origins = new HashMap<String, String>();
+			List<RepositoryModel> updated = new ArrayList<RepositoryModel>();
+			for (RepositoryModel repo : models) {
+				try {
+					update(gitblit, repo, movesLc, origins);
+					updated.add(repo);
+				} catch (IOException e) {
+					log.error(String.format("Failed to update %s after moving it", repo.name), e);
+					rollback(gitblit, from, to, back, models, updated, origins);
+					throw new UnloggedFailure(1, String.format("Failed to update %s after moving it, no repositories were moved", repo.name));
+				}
+			}
+
+			// the folders of the forks elsewhere did not move, a failure is reported
+			List<String> failed = new ArrayList<String>();
+			for (RepositoryModel repo : forks) {
+				try {
+					update(gitblit, repo, movesLc, origins);
+				} catch (IOException e) {
+					log.error(String.format("Failed to update %s after moving its origin", repo.name), e);
+					failed.add(repo.name);
+				}
+			}
+
+			// rename the tickets of ticket services which key them by repository name
+			ITicketService tickets = gitblit.getTicketService();
+			if (tickets != null) {
+				for (RepositoryModel repo : models) {
+					RepositoryModel oldModel = new RepositoryModel();
+					oldModel.name = back.get(repo.name);
+					oldModel.projectPath = StringUtils.getFirstPathElement(oldModel.name);
+					if (!tickets.rename(oldModel, repo)) {
+						failed.add(repo.name);
+					}
+				}
+			}
+
+			// relink the shared forks of the moved repositories
+			for (Map.Entry<String, String> move : moves.entrySet()) {
+				RepositoryModel repo = gitblit.getRepositoryModel(move.getValue());
+				if (repo == null) {
+					continue;
+				}
+				try {
+					SharedForks.moved(gitblit, move.getKey(), repo);
+				} catch (IOException e) {
+					log.error(String.format("Failed to relink the shared forks of %s", repo.name), e);
+					failed.add(repo.name);
+				}
+			}
+
+			// rename the repository permissions of the users and teams
+			for (Map.Entry<String, String> move : moves.entrySet()) {
+				if (!gitblit.renameRepositoryRole(move.getKey(), move.getValue())) {
+					failed.add(move.getValue());
+				}
+				DiskUsage.invalidate(gitblit.getRepositoriesFolder(), move.getKey());
+				Activity.invalidate(move.getKey());
+			}
+
+			gitblit.resetRepositoryListCache();
+			OwnerIndex.invalidate();
+
+			for (String name : failed) {
+				stdout.println(String.format("Failed to update %s, please check its settings", name));
+			}
+			long elapsed = System.currentTimeMillis() - start;
+			stdout.println(String.format("Moved %d repositories from %s to %s with %d %s in %d ms",
+					moves.size(), from, to, renames, renames == 1 ? "rename" : "renames", elapsed));
+			stdout.println(String.format("Updated %d forks", forks.size()));
+		}
+
+		/**
+		 * Points a model whose origin moved at the new origin and saves it.
+		 * The previous origin is recorded by the new repository name.
+		 */
+		protected void update(IGitblit gitblit, RepositoryModel repo, Map<String, String> movesLc,
+				Map<String, String> origins) throws IOException {
+			if (!StringUtils.isEmpty(repo.originRepository) && movesLc.containsKey(repo.originRepository.toLowerCase())) {
+				String origin = movesLc.get(repo.originRepository.toLowerCase());
+				origins.put(repo.name, repo.originRepository);
+				setOriginUrl(gitblit, repo.name, repo.originRepository, origin);
+				repo.originRepository = origin;
+			}
+			gitblit.updateRepositoryModel(repo.name, repo, false);
+		}
+
+		/**
+		 * Moves the folders back after a model could not be updated and
+		 * restores the names, the origins and the models which were already
+		 * saved.
+		 *
+		 * @param back
+		 *            new name -> old name
+		 */
+		protected void rollback(IGitblit gitblit, String from, String to, Map<String, String> back,
+				List<RepositoryModel> models, List<RepositoryModel> updated, Map<String, String> origins) throws UnloggedFailure {
+			for (String name : back.keySet()) {
+				gitblit.closeRepository(name);
+			}
+			try {
+				move(gitblit.getRepositoriesFolder(), to, from, back);
+			} catch (UnloggedFailure e) {
+				log.error(String.format("Failed to move the repositories back from %s to %s", to, from));
+				gitblit.resetRepositoryListCache();
+				throw new UnloggedFailure(1, String.format("Failed to update the moved repositories and to move them back, please check %s and %s", from, to));
+			}
+			for (RepositoryModel repo : models) {
+				String newName = repo.name;
+				repo.name = back.get(newName);
+				repo.projectPath = StringUtils.getFirstPathElement(repo.name);
+				String origin = origins.get(newName);
+				if (origin != null) {
+					try {
+						setOriginUrl(gitblit, repo.name, repo.originRepository, origin);
+					} catch (IOException e) {
+						log.error(String.format("Failed to restore the origin url of %s", repo.name), e);
+					}
+					repo.originRepository = origin;
+				}
 			}
+			for (RepositoryModel repo : updated) {
+				try {
+					gitblit.updateRepositoryModel(repo.name, repo, false);
+				} catch (IOException e) {
+					log.error(String.format("Failed to restore %s after moving it back", repo.name), e);
+				}
+			}
+			gitblit.resetRepositoryListCache();
+		}
+
+		/**
+		 * Points the origin url of a fork at the moved origin, as Gitblit does
+		 * when it renames a repository.
+		 */
+		protected void setOriginUrl(IGitblit gitblit, String fork, String oldOrigin, String newOrigin) throws IOException {
+			Repository db = gitblit.getRepository(fork);
+			if (db == null) {
+				return;
+			}
+			try {
+				StoredConfig config = db.getConfig();
+				String url = config.getString("remote", "origin", "url");
+				if (!StringUtils.isEmpty(url)) {
+					config.setString("remote", "origin", "url", url.replace(oldOrigin, newOrigin));
+					config.save();
+				}
+			} finally {
+				db.close();
+			}
+		}
+
+		protected String toPrefix(String folder) throws UnloggedFailure {
+			String prefix = folder.replace('\\', '/').replace("//", "/");
+			if (prefix.startsWith("/") || prefix.startsWith("../") || prefix.contains("/../") || prefix.equals("..")) {
+				throw new UnloggedFailure(1, String.format("Illegal folder %s", folder));
+			}
+			if (!prefix.endsWith("/")) {
+				prefix += "/";
+			}
+			if (prefix.length() == 1) {
+				throw new UnloggedFailure(1, "The folder name is required");
+			}
+			return prefix;
+		}
+
+		/**
+		 * Moves the repositories on disk.  If the target folder does not exist
+		 * and the source folder holds exactly the moving repositories, the
+		 * whole folder is moved with a single rename.  Otherwise each
+		 * repository is renamed and the renames are undone on failure.
+		 *
+		 * @return the number of renames
+		 */
+		protected int move(File root, String from, String to, Map<String, String> moves) throws UnloggedFailure {
+			File src = new File(root, from);
+			File dst = new File(root, to);
+			if (src.isDirectory() && !dst.exists() && countRepositories(src, from, moves.keySet()) == moves.size()) {
+				dst.getParentFile().mkdirs();
+				if (src.renameTo(dst)) {
+					return 1;
+				}
+			}
+
+			List<String> moved = new ArrayList<String>();
+			for (Map.Entry<String, String> move : moves.entrySet()) {
+				File s = new File(root, move.getKey());
+				File d = new File(root, move.getValue());
+				d.getParentFile().mkdirs();
+				if (!s.renameTo(d)) {
+					Collections.reverse(moved);
+					for (String name : moved) {
+						new File(root, moves.get(name)).renameTo(new File(root, name));
+					}
+					throw new UnloggedFailure(1, String.format("Failed to move %s to %s, no repositories were moved",
+							move.getKey(), move.getValue()));
+				}
+				moved.add(move.getKey());
+			}
+			deleteEmptyFolders(src);
+			return moved.size();
+		}
+
+		private void deleteEmptyFolders(File folder) {
+			File[] files = folder.listFiles();
+			if (files == null) {
+				return;
+			}
+			for (File file : files) {
+				if (file.isDirectory()) {
+					deleteEmptyFolders(file);
+				}
+			}
+			// only succeeds if the folder is empty
+			folder.delete();
+		}
+
+		/**
+		 * Counts the moving repositories in the folder.  Returns -1 if the
+		 * folder holds anything else but the moving repositories and the
+		 * folders leading to them.
+		 */
+		protected int countRepositories(File folder, String path, Set<String> names) {
+			File[] files = folder.listFiles();
+			if (files == null) {
+				return -1;
+			}
+			int count = 0;
+			for (File file : files) {
+				String name = path + file.getName();
+				if (names.contains(name)) {
+					count++;
+				} else if (file.isDirectory()) {
+					int n = countRepositories(file, name + "/", names);
+					if (n < 0) {
+						return -1;
+					}
+					count += n;
+				} else {
+					return -1;
+				}
+			}
+			return count;
 		}
 	}
 
@@ -296,6 +859,23 @@ public class RepositoriesDispatcher extends DispatchCommand {
 				}
 				return null;
 			}
+
+			/**
+			 * Returns true if the field takes a list, which may be empty.
+			 */
+			boolean isList() {
+				switch (this) {
+				case federationSets:
+				case mailingLists:
+				case metricAuthorExclusions:
+				case owners:
+				case postReceiveScripts:
+				case preReceiveScripts:
+					return true;
+				default:
+					return false;
+				}
+			}
 		}
 
 		@Override
@@ -322,6 +902,39 @@ public class RepositoriesDispatcher extends DispatchCommand {
 			String value = Joiner.on(" ").join(fieldValues).trim();
 			IGitblit gitblit = getContext().getGitblit();
 
+			setField(repo, field, fieldValues);
+
+			try {
+				gitblit.updateRepositoryModel(repo.name,  repo, false);
+				if (field == Field.owners) {
+					OwnerIndex.invalidate();
+				}
+				stdout.println(String.format("Set %s.%s = %s", repo.name, fieldName, value));
+			} catch (GitBlitException e) {
+				String msg = String.format("Failed to set %s.%s = %s", repo.name, fieldName, value);
+				log.error(msg, e);
+				throw new UnloggedFailure(1, msg);
+			}
+		}
+
+		/**
+		 * Returns the current value of the field.  The field names match the
+		 * RepositoryModel field names.
+		 */
+		protected static Object getField(RepositoryModel repo, Field field) throws UnloggedFailure {
+			try {
+				return RepositoryModel.class.getField(field.name()).get(repo);
+			} catch (NoSuchFieldException | IllegalAccessException e) {
+				throw new UnloggedFailure(1,  String.format("Field %s was not properly handled by the set command.", field));
+			}
+		}
+
+		/**
+		 * Sets the field.  List fields take the values as elements, the other
+		 * fields take the values joined with spaces.
+		 */
+		protected static void setField(RepositoryModel repo, Field field, List<String> fieldValues) throws UnloggedFailure {
+			String value = Joiner.on(" ").join(fieldValues).trim();
 			switch(field) {
 			case acceptNewPatchsets:
 				repo.acceptNewPatchsets = toBool(value);
@@ -348,7 +961,7 @@ public class RepositoriesDispatcher extends DispatchCommand {
 				repo.description = value;
 				break;
 			case federationSets:
-				repo.federationSets = fieldValues;
+				repo.federationSets = new ArrayList<String>(fieldValues);
 				break;
 			case federationStrategy:
 				repo.federationStrategy = FederationStrategy.fromName(value);
@@ -372,7 +985,7 @@ public class RepositoriesDispatcher extends DispatchCommand {
 				repo.isFrozen = toBool(value);
 				break;
 			case mailingLists:
-				repo.mailingLists = fieldValues;
+				repo.mailingLists = new ArrayList<String>(fieldValues);
 				break;
 			case maxActivityCommits:
 				repo.maxActivityCommits = toInteger(value);
@@ -381,16 +994,16 @@ public class RepositoriesDispatcher extends DispatchCommand {
 				repo.mergeTo = value;
 				break;
 			case metricAuthorExclusions:
-				repo.metricAuthorExclusions = fieldValues;
+				repo.metricAuthorExclusions = new ArrayList<String>(fieldValues);
 				break;
 			case owners:
-				repo.owners = fieldValues;
+				repo.owners = new ArrayList<String>(fieldValues);
 				break;
 			case postReceiveScripts:
-				repo.postReceiveScripts = fieldValues;
+				repo.postReceiveScripts = new ArrayList<String>(fieldValues);
 				break;
 			case preReceiveScripts:
-				repo.preReceiveScripts = fieldValues;
+				repo.preReceiveScripts = new ArrayList<String>(fieldValues);
 				break;
 			case requireApproval:
 				repo.requireApproval = toBool(value);
@@ -411,20 +1024,11 @@ public class RepositoriesDispatcher extends DispatchCommand {
 				repo.verifyCommitter = toBool(value);
 				break;
 			default:
-				throw new UnloggedFailure(1,  String.format("Field %s was not properly handled by the set command.", fieldName));
-			}
-
-			try {
-				gitblit.updateRepositoryModel(repo.name,  repo, false);
-				stdout.println(String.format("Set %s.%s = %s", repo.name, fieldName, value));
-			} catch (GitBlitException e) {
-				String msg = String.format("Failed to set %s.%s = %s", repo.name, fieldName, value);
-				log.error(msg, e);
-				throw new UnloggedFailure(1, msg);
+				throw new UnloggedFailure(1,  String.format("Field %s was not properly handled by the set command.", field));
 			}
 		}
 
-		protected boolean toBool(String value) throws UnloggedFailure {
+		protected static boolean toBool(String value) throws UnloggedFailure {
 			String v = value.toLowerCase();
 			if (v.equals("t")
 					|| v.equals("true")
@@ -444,7 +1048,7 @@ public class RepositoriesDispatcher extends DispatchCommand {
 			throw new UnloggedFailure(1,  String.format("Invalid boolean value %s", value));
 		}
 
-		protected int toInteger(String value) throws UnloggedFailure {
+		protected static int toInteger(String value) throws UnloggedFailure {
 			try {
 				int i = Integer.parseInt(value);
 				return i;
@@ -454,222 +1058,2600 @@ public class RepositoriesDispatcher extends DispatchCommand {
 		}
 	}
 
-	@CommandMetaData(name = "remove", aliases = { "rm" }, description = "Remove a repository")
-	@UsageExample(syntax = "${cmd} myRepo.git", description = "Delete myRepo.git")
-	public static class RemoveRepository extends RepositoryCommand {
+	@CommandMetaData(name = "set-all", description = "Set the specified field of all matching repositories")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd} team/.* gcPeriod 7", description = "Set the GC period of every repository in the 'team' directory"),
+			@UsageExample(syntax = "${cmd} team/.* mailingLists", description = "Clear the mailing lists of every repository in the 'team' directory"),
+	})
+	public static class SetFieldAll extends SshCommand {
 
-		@Override
-		public void run() throws UnloggedFailure {
+		private static final int MAX_THREADS = 16;
 
-			RepositoryModel repo = getRepository(true);
+		@Argument(index = 0, required = true, metaVar = "REGEX", usage = "the repositories to update")
+		protected String match;
 
-			if (!getContext().getClient().getUser().canAdmin(repo)) {
-				throw new UnloggedFailure(1,  String.format("Sorry, you do not have permission to delete %s", repository));
-			}
+		@Argument(index = 1, required = true, metaVar = "FIELD", usage = "the field to update")
+		protected String fieldName;
 
-			IGitblit gitblit = getContext().getGitblit();
-			if (gitblit.deleteRepositoryModel(repo)) {
-				stdout.println(String.format("%s has been deleted.", repository));
-			} else {
-				throw new UnloggedFailure(1, String.format("Failed to delete %s!", repository));
-			}
-		}
-	}
+		@Argument(index = 2, metaVar = "VALUE", usage = "the new value, list fields are cleared without a value")
+		protected List<String> fieldValues = new ArrayList<String>();
 
-	@CommandMetaData(name = "fork", description = "Fork a repository")
-	@UsageExample(syntax = "${cmd} myRepo.git", description = "Fork myRepo.git")
-	public static class ForkRepository extends RepositoryCommand {
+		@Option(name = "--threads", metaVar = "N", usage = "number of concurrent updates, at most 16 (default: 4)")
+		protected int threads = 4;
 
 		@Override
-		public void run() throws UnloggedFailure {
+		protected String getUsageText() {
+			String fields = Joiner.on(", ").join(SetField.Field.values());
+			StringBuilder sb = new StringBuilder();
+			sb.append("Valid fields are:\n   ").append(fields);
+			return sb.toString();
+		}
 
-			RepositoryModel repo = getRepository(true);
-			UserModel user = getContext().getClient().getUser();
+		/**
+		 * Sets the field of every matching repository.  The targets are
+		 * resolved and authorized once, up front, and only the repositories
+		 * whose field actually changes are updated.
+		 */
+		@Override
+		public void run() throws UnloggedFailure {
+			long start = System.currentTimeMillis();
 
-			if (!user.canFork(repo)) {
-				throw new UnloggedFailure(1,  String.format("Sorry, you do not have permission to fork %s", repository));
+			SetField.Field field = SetField.Field.fromString(fieldName);
+			if (field == null) {
+				throw new UnloggedFailure(1, String.format("Unknown field %s", fieldName));
+			}
+			if (fieldValues.isEmpty() && !field.isList()) {
+				throw new UnloggedFailure(1, String.format("Argument \"VALUE\" is required for %s", field));
+			}
+			if (threads < 1 || threads > MAX_THREADS) {
+				throw new UnloggedFailure(1, String.format("--threads must be between 1 and %d", MAX_THREADS));
 			}
 
-			IGitblit gitblit = getContext().getGitblit();
+			final String value = Joiner.on(" ").join(fieldValues).trim();
+			// validate the value before touching any repository
+			SetField.setField(new RepositoryModel(), field, fieldValues);
+
+			NameFilter filter;
 			try {
-				RepositoryModel fork = gitblit.fork(repo, user);
-				if (fork != null) {
-					stdout.println(String.format("%s has been forked.", repository));
-					stdout.println();
-					stdout.println(String.format("   git clone %s", getRepositoryUrl(fork.name)));
-					stdout.println();
+				filter = NameFilter.compile(Arrays.asList(match));
+			} catch (PatternSyntaxException e) {
+				throw new UnloggedFailure(1, String.format("Invalid expression %s", match));
+			}
+
+			final IGitblit gitblit = getContext().getGitblit();
+			UserModel user = getContext().getClient().getUser();
+
+			List<RepositoryModel> targets = new ArrayList<RepositoryModel>();
+			List<String> denied = new ArrayList<String>();
+			List<String> busy = new ArrayList<String>();
+			int unchanged = 0;
+			for (String name : filter.selectSorted(RepositoryNames.getSorted(gitblit))) {
+				RepositoryModel repo = gitblit.getRepositoryModel(name);
+				if (repo == null) {
+					continue;
+				}
+				if (!user.canAdmin(repo)) {
+					denied.add(repo.name);
+					continue;
+				}
+				Job job = JobManager.get().getReservation(repo.name);
+				if (job != null) {
+					busy.add(String.format("%s (job %d)", repo.name, job.getId()));
+					continue;
+				}
+				Object before = SetField.getField(repo, field);
+				SetField.setField(repo, field, fieldValues);
+				if (before == null ? SetField.getField(repo, field) == null : before.equals(SetField.getField(repo, field))) {
+					unchanged++;
 				} else {
-					throw new UnloggedFailure(1, String.format("Failed to fork %s!", repository));
+					targets.add(repo);
 				}
-			} catch (GitBlitException e) {
-				throw new UnloggedFailure(1, String.format("Failed to fork %s!", repository), e);
 			}
-		}
-	}
 
-	@CommandMetaData(name = "show", description = "Show the details of a repository")
-	@UsageExample(syntax = "${cmd} myRepo.git", description = "Display myRepo.git")
-	public static class ShowRepository extends RepositoryCommand {
+			if (!denied.isEmpty()) {
+				throw new UnloggedFailure(1, String.format("Sorry, you do not have permission to administer %d of the matching repositories: %s",
+						denied.size(), Joiner.on(", ").join(denied)));
+			}
+			if (!busy.isEmpty()) {
+				stdout.println(String.format("Skipping %d repositories in use by jobs: %s", busy.size(), Joiner.on(", ").join(busy)));
+			}
+			if (targets.isEmpty() && unchanged == 0 && busy.isEmpty()) {
+				throw new UnloggedFailure(1, String.format("No repositories match %s", match));
+			}
 
-		@Override
+			// apply the updates with bounded concurrency
+			final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+			ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, targets.size())));
+			try {
+				for (final RepositoryModel repo : targets) {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								gitblit.updateRepositoryModel(repo.name, repo, false);
+							} catch (GitBlitException e) {
+								log.error(String.format("Failed to set %s.%s = %s", repo.name, fieldName, value), e);
+								failed.add(repo.name);
+							}
+						}
+					});
+				}
+			} finally {
+				executor.shutdown();
+			}
+			try {
+				while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+					// wait for the remaining updates
+				}
+			} catch (InterruptedException e) {
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+				throw new UnloggedFailure(1, "Interrupted while updating repositories");
+			}
+			if (field == SetField.Field.owners) {
+				OwnerIndex.invalidate();
+			}
+
+			for (String name : failed) {
+				stdout.println(String.format("Failed to set %s.%s = %s", name, fieldName, value));
+			}
+			long elapsed = System.currentTimeMillis() - start;
+			stdout.println(String.format("Set %s = %s: %d changed, %d unchanged, %d skipped, %d failed in %d ms",
+					fieldName, value, targets.size() - failed.size(), unchanged, busy.size(), failed.size(), elapsed));
+		}
+	}
+
+	@CommandMetaData(name = "export-meta", description = "Export the settings of repositories as JSON lines")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd} > repositories.json", description = "Export the settings of every repository you administer"),
+			@UsageExample(syntax = "${cmd} mirror/.*", description = "Export the settings of the repositories in the 'mirror' folder"),
+	})
+	public static class ExportMeta extends SshCommand {
+
+		@Argument(index = 0, multiValued = true, metaVar = "FILTER", usage = "filter expression")
+		protected List<String> filters = new ArrayList<String>();
+
+		@Override
+		public void run() throws UnloggedFailure {
+			NameFilter filter;
+			try {
+				filter = NameFilter.compile(filters);
+			} catch (PatternSyntaxException e) {
+				throw new UnloggedFailure(1, String.format("Invalid expression %s", e.getPattern()));
+			}
+
+			IGitblit gitblit = getContext().getGitblit();
+			UserModel user = getContext().getClient().getUser();
+
+			// one model at a time, the names are the only list held in memory
+			int count = 0;
+			for (String name : filter.selectSorted(RepositoryNames.getSorted(gitblit))) {
+				RepositoryModel repo = gitblit.getRepositoryModel(name);
+				if (repo == null || !user.canAdmin(repo)) {
+					continue;
+				}
+				stdout.println(toJson(repo));
+				if (++count % 100 == 0) {
+					stdout.flush();
+					if (stdout.checkError()) {
+						return;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Writes the name and the settable fields of the repository as one
+		 * line of JSON.  Null fields are omitted.
+		 */
+		protected String toJson(RepositoryModel repo) throws UnloggedFailure {
+			StringWriter sw = new StringWriter();
+			JsonWriter json = new JsonWriter(sw);
+			try {
+				json.beginObject();
+				json.name("name").value(repo.name);
+				for (SetField.Field field : SetField.Field.values()) {
+					Object value = SetField.getField(repo, field);
+					if (value == null) {
+						continue;
+					}
+					json.name(field.name());
+					writeValue(json, value);
+				}
+				json.endObject();
+				json.close();
+			} catch (IOException e) {
+				// a StringWriter does not throw
+				throw new UnloggedFailure(1, e.getMessage());
+			}
+			return sw.toString();
+		}
+
+		/**
+		 * Writes a field value: lists as arrays of strings and enums by name.
+		 */
+		static void writeValue(JsonWriter json, Object value) throws IOException {
+			if (value == null) {
+				json.nullValue();
+			} else if (value instanceof Boolean) {
+				json.value((Boolean) value);
+			} else if (value instanceof Number) {
+				json.value((Number) value);
+			} else if (value instanceof Collection) {
+				json.beginArray();
+				for (Object o : (Collection<?>) value) {
+					json.value(String.valueOf(o));
+				}
+				json.endArray();
+			} else if (value instanceof Enum) {
+				json.value(((Enum<?>) value).name());
+			} else {
+				json.value(value.toString());
+			}
+		}
+	}
+
+	@CommandMetaData(name = "import-meta", description = "Import the settings of repositories from JSON lines")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd} --dry-run < repositories.json", description = "Show the changes an import would make"),
+			@UsageExample(syntax = "${cmd} < repositories.json", description = "Apply the exported settings to the existing repositories"),
+	})
+	public static class ImportMeta extends SshCommand {
+
+		private static final int MAX_BATCH = 1000;
+
+		private static final int MAX_THREADS = 16;
+
+		@Option(name = "--dry-run", aliases = { "-n" }, usage = "only print the changes")
+		protected boolean dryRun;
+
+		@Option(name = "--batch", metaVar = "N", usage = "number of repositories updated per batch, at most 1000 (default: 100)")
+		protected int batchSize = 100;
+
+		@Option(name = "--threads", metaVar = "N", usage = "number of concurrent updates within a batch, at most 16 (default: 4)")
+		protected int threads = 4;
+
+		@Option(name = "--quiet", aliases = { "-q" }, usage = "do not print the changes")
+		protected boolean quiet;
+
+		private int changed;
+
+		private int unchanged;
+
+		private int skipped;
+
+		private int failed;
+
+		@Override
+		public void run() throws UnloggedFailure {
+			if (batchSize < 1 || batchSize > MAX_BATCH) {
+				throw new UnloggedFailure(1, String.format("--batch must be between 1 and %d", MAX_BATCH));
+			}
+			if (threads < 1 || threads > MAX_THREADS) {
+				throw new UnloggedFailure(1, String.format("--threads must be between 1 and %d", MAX_THREADS));
+			}
+			long start = System.currentTimeMillis();
+			IGitblit gitblit = getContext().getGitblit();
+			UserModel user = getContext().getClient().getUser();
+
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			List<RepositoryModel> batch = new ArrayList<RepositoryModel>();
+			Set<String> batched = new HashSet<String>();
+			int lineNumber = 0;
+			try {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+				String line;
+				while ((line = reader.readLine()) != null) {
+					lineNumber++;
+					if (line.trim().isEmpty()) {
+						continue;
+					}
+					try {
+						RepositoryModel repo = apply(gitblit, user, line);
+						if (repo != null && !dryRun) {
+							// a repository is never updated twice concurrently
+							if (!batched.add(repo.name.toLowerCase())) {
+								update(gitblit, executor, batch);
+								batch.clear();
+								batched.clear();
+								batched.add(repo.name.toLowerCase());
+							}
+							batch.add(repo);
+							if (batch.size() == batchSize) {
+								update(gitblit, executor, batch);
+								batch.clear();
+								batched.clear();
+							}
+						}
+					} catch (UnloggedFailure e) {
+						failed++;
+						stdout.println(String.format("line %d: %s", lineNumber, e.getMessage()));
+					}
+				}
+				update(gitblit, executor, batch);
+				if (!dryRun && changed > 0) {
+					OwnerIndex.invalidate();
+				}
+			} catch (IOException e) {
+				throw new UnloggedFailure(1, String.format("Failed to read line %d: %s", lineNumber + 1, e.getMessage()));
+			} finally {
+				executor.shutdownNow();
+			}
+
+			long elapsed = System.currentTimeMillis() - start;
+			stdout.println(String.format("%s%d changed, %d unchanged, %d skipped, %d failed in %d ms",
+					dryRun ? "Dry run, nothing was updated: " : "", changed, unchanged, skipped, failed, elapsed));
+		}
+
+		/**
+		 * Parses one line and sets the fields which differ on the repository.
+		 * The values are first applied to a scratch model so that a dry run
+		 * never touches the model cached by Gitblit.
+		 *
+		 * @return the changed repository, or null if nothing changed
+		 */
+		protected RepositoryModel apply(IGitblit gitblit, UserModel user, String line) throws UnloggedFailure {
+			String name = null;
+			Map<SetField.Field, List<String>> values = new LinkedHashMap<SetField.Field, List<String>>();
+			JsonReader json = new JsonReader(new StringReader(line));
+			try {
+				json.beginObject();
+				while (json.hasNext()) {
+					String key = json.nextName();
+					if ("name".equals(key)) {
+						name = json.nextString();
+						continue;
+					}
+					SetField.Field field = SetField.Field.fromString(key);
+					if (field == null) {
+						throw new UnloggedFailure(1, String.format("Unknown field %s", key));
+					}
+					List<String> list = new ArrayList<String>();
+					switch (json.peek()) {
+					case BEGIN_ARRAY:
+						json.beginArray();
+						while (json.hasNext()) {
+							list.add(json.nextString());
+						}
+						json.endArray();
+						break;
+					case BOOLEAN:
+						list.add(Boolean.toString(json.nextBoolean()));
+						break;
+					case NULL:
+						json.nextNull();
+						break;
+					default:
+						list.add(json.nextString());
+					}
+					values.put(field, list);
+				}
+				json.endObject();
+			} catch (IllegalStateException | IOException e) {
+				throw new UnloggedFailure(1, String.format("Invalid JSON: %s", e.getMessage()));
+			}
+
+			if (StringUtils.isEmpty(name)) {
+				throw new UnloggedFailure(1, "Missing \"name\"");
+			}
+			RepositoryModel repo = gitblit.getRepositoryModel(name);
+			if (repo == null) {
+				throw new UnloggedFailure(1, String.format("Repository %s does not exist!", name));
+			}
+			if (!user.canAdmin(repo)) {
+				throw new UnloggedFailure(1, String.format("Sorry, you do not have permission to administer %s", name));
+			}
+			Job job = JobManager.get().getReservation(repo.name);
+			if (job != null) {
+				skipped++;
+				stdout.println(String.format("%s: skipped, in use by job %d", repo.name, job.getId()));
+				return null;
+			}
+
+			RepositoryModel scratch = new RepositoryModel();
+			Map<SetField.Field, Object> changes = new LinkedHashMap<SetField.Field, Object>();
+			for (Map.Entry<SetField.Field, List<String>> entry : values.entrySet()) {
+				SetField.Field field = entry.getKey();
+				SetField.setField(scratch, field, entry.getValue());
+				Object before = SetField.getField(repo, field);
+				Object after = SetField.getField(scratch, field);
+				if (before == null ? after != null : !before.equals(after)) {
+					changes.put(field, after);
+					if (!quiet) {
+						stdout.println(String.format("%s.%s: %s -> %s", repo.name, field, before, after));
+					}
+				}
+			}
+			if (changes.isEmpty()) {
+				unchanged++;
+				return null;
+			}
+			changed++;
+			if (!dryRun) {
+				for (SetField.Field field : changes.keySet()) {
+					SetField.setField(repo, field, values.get(field));
+				}
+			}
+			return repo;
+		}
+
+		/**
+		 * Saves the batch with bounded concurrency and waits for it.
+		 */
+		protected void update(final IGitblit gitblit, ExecutorService executor, List<RepositoryModel> batch) throws UnloggedFailure {
+			List<Future<String>> futures = new ArrayList<Future<String>>();
+			for (final RepositoryModel repo : batch) {
+				futures.add(executor.submit(new Callable<String>() {
+					@Override
+					public String call() {
+						try {
+							gitblit.updateRepositoryModel(repo.name, repo, false);
+							return null;
+						} catch (GitBlitException e) {
+							log.error(String.format("Failed to import the settings of %s", repo.name), e);
+							return String.format("Failed to update %s: %s", repo.name, e.getMessage());
+						}
+					}
+				}));
+			}
+			try {
+				for (Future<String> future : futures) {
+					String error = future.get();
+					if (error != null) {
+						changed--;
+						failed++;
+						stdout.println(error);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new UnloggedFailure(1, "Interrupted while updating repositories");
+			} catch (ExecutionException e) {
+				throw new UnloggedFailure(1, e.getCause().getMessage());
+			}
+			stdout.flush();
+		}
+	}
+
+	@CommandMetaData(name = "remove", aliases = { "rm" }, description = "Remove a repository")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd} myRepo.git", description = "Move myRepo.git to the trash"),
+			@UsageExample(syntax = "${cmd} myRepo.git --now", description = "Delete myRepo.git immediately"),
+	})
+	public static class RemoveRepository extends RepositoryCommand {
+
+		@Option(name = "--now", usage = "delete the files immediately instead of moving the repository to the trash")
+		boolean now;
+
+		@Option(name = "--async", usage = "with --now, delete in the background and print the job id")
+		boolean async;
+
+		@Override
+		public void run() throws UnloggedFailure {
+
+			final RepositoryModel repo = getRepository(true);
+			UserModel user = getContext().getClient().getUser();
+
+			if (!user.canAdmin(repo)) {
+				throw new UnloggedFailure(1,  String.format("Sorry, you do not have permission to delete %s", repository));
+			}
+
+			checkReservation(repo.name);
+
+			final IGitblit gitblit = getContext().getGitblit();
+			Repository db = gitblit.getRepository(repo.name);
+			boolean sharedFork = false;
+			if (db != null) {
+				try {
+					List<String> forks = SharedForks.getSharedForks(gitblit, db);
+					if (!forks.isEmpty()) {
+						throw new UnloggedFailure(1, String.format("%s shares objects with %s, unshare the forks first",
+								repository, Joiner.on(", ").join(forks)));
+					}
+					sharedFork = SharedForks.isShared(db);
+				} catch (IOException e) {
+					log.error("Failed to read the shared forks of " + repository, e);
+					throw new UnloggedFailure(1, String.format("Failed to read the shared forks of %s", repository));
+				} finally {
+					db.close();
+				}
+			}
+			final boolean forget = sharedFork;
+			if (sharedFork && !now) {
+				// the borrowed objects are not protected while the fork is in the trash
+				throw new UnloggedFailure(1, String.format("%s is a shared fork, unshare it first or delete it with --now", repository));
+			}
+
+			if (!now) {
+				try {
+					Trash.Entry entry = Trash.get().add(repo, user.username);
+					DiskUsage.invalidate(gitblit.getRepositoriesFolder(), repo.name);
+					Activity.invalidate(repo.name);
+					stdout.println(String.format("%s has been moved to the trash as %s.", repository, entry.id));
+					stdout.println(String.format("Use 'gitblit repos trash restore %s' to restore it.", entry.id));
+				} catch (GitBlitException e) {
+					throw new UnloggedFailure(1, e.getMessage());
+				} catch (IOException e) {
+					log.error("Failed to move " + repository + " to the trash", e);
+					throw new UnloggedFailure(1, String.format("Failed to move %s to the trash, use --now to delete it", repository));
+				}
+				return;
+			}
+
+			if (async) {
+				submit(new Job(String.format("delete %s", repo.name), user.username, repo.name) {
+					@Override
+					protected String execute(JobMonitor monitor) throws Exception {
+						monitor.beginTask(String.format("Deleting %s", repo.name), JobMonitor.UNKNOWN);
+						if (!gitblit.deleteRepositoryModel(repo)) {
+							throw new GitBlitException(String.format("Failed to delete %s!", repo.name));
+						}
+						if (forget) {
+							SharedForks.forget(gitblit, repo);
+						}
+						DiskUsage.invalidate(gitblit.getRepositoriesFolder(), repo.name);
+						Activity.invalidate(repo.name);
+						monitor.endTask();
+						return String.format("%s has been deleted.", repo.name);
+					}
+				});
+				return;
+			}
+
+			if (gitblit.deleteRepositoryModel(repo)) {
+				DiskUsage.invalidate(gitblit.getRepositoriesFolder(), repo.name);
+				Activity.invalidate(repo.name);
+				if (forget) {
+					try {
+						SharedForks.forget(gitblit, repo);
+					} catch (IOException e) {
+						log.error(String.format("Failed to forget the shared fork %s", repo.name), e);
+					}
+				}
+				stdout.println(String.format("%s has been deleted.", repository));
+			} else {
+				throw new UnloggedFailure(1, String.format("Failed to delete %s!", repository));
+			}
+		}
+	}
+
+	@CommandMetaData(name = "fork", description = "Fork a repository")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd} myRepo.git", description = "Fork myRepo.git"),
+			@UsageExample(syntax = "${cmd} myRepo.git --shared", description = "Fork myRepo.git, borrowing its objects instead of copying them"),
+	})
+	public static class ForkRepository extends RepositoryCommand {
+
+		@Option(name = "--async", usage = "fork in the background and print the job id")
+		boolean async;
+
+		@Option(name = "--shared", usage = "borrow the objects of the origin through alternates instead of copying them, requires powertools.allowSharedForks")
+		boolean shared;
+
+		@Override
+		public void run() throws UnloggedFailure {
+
+			final RepositoryModel repo = getRepository(true);
+			final UserModel user = getContext().getClient().getUser();
+
+			if (!user.canFork(repo)) {
+				throw new UnloggedFailure(1,  String.format("Sorry, you do not have permission to fork %s", repository));
+			}
+
+			final IGitblit gitblit = getContext().getGitblit();
+			if (shared && !SharedForks.isAllowed(gitblit)) {
+				// deleting or renaming the origin outside powertools breaks its shared forks
+				throw new UnloggedFailure(1, "Shared forks are disabled, set powertools.allowSharedForks = true to enable them");
+			}
+
+			Job pending = JobManager.get().getReservation(getForkName(repo, user));
+			if (pending != null) {
+				throw new UnloggedFailure(1, String.format("%s is being forked by job %d!", repository, pending.getId()));
+			}
+
+			if (async) {
+				submit(new Job(String.format("fork %s", repo.name), user.username, getForkName(repo, user)) {
+					@Override
+					protected String execute(JobMonitor monitor) throws Exception {
+						monitor.beginTask(String.format("Forking %s", repo.name), JobMonitor.UNKNOWN);
+						RepositoryModel fork = shared ? forkShared(gitblit, repo, user) : gitblit.fork(repo, user);
+						if (fork == null) {
+							throw new GitBlitException(String.format("Failed to fork %s!", repo.name));
+						}
+						OwnerIndex.invalidate();
+						monitor.endTask();
+						return String.format("%s has been forked to %s.", repo.name, fork.name);
+					}
+				});
+				return;
+			}
+
+			try {
+				RepositoryModel fork = shared ? forkShared(gitblit, repo, user) : gitblit.fork(repo, user);
+				if (fork != null) {
+					OwnerIndex.invalidate();
+					stdout.println(String.format("%s has been forked.", repository));
+					stdout.println();
+					stdout.println(String.format("   git clone %s", getRepositoryUrl(fork.name)));
+					stdout.println();
+					if (shared) {
+						stdout.println(String.format("%s borrows the objects of %s.", fork.name, repo.name));
+						stdout.println(String.format("Use 'gitblit repos unshare %s' to make it self-contained.", fork.name));
+					}
+				} else {
+					throw new UnloggedFailure(1, String.format("Failed to fork %s!", repository));
+				}
+			} catch (GitBlitException e) {
+				throw new UnloggedFailure(1, String.format("Failed to fork %s!", repository), e);
+			}
+		}
+
+		/**
+		 * Returns the name of the personal fork, as chosen by Gitblit.
+		 */
+		static String getForkName(RepositoryModel repo, UserModel user) {
+			return user.getPersonalPath() + "/"
+					+ StringUtils.stripDotGit(StringUtils.getLastPathElement(repo.name)) + Constants.DOT_GIT;
+		}
+
+		/**
+		 * Creates a personal fork which borrows the objects of the origin.
+		 * Like Gitblit's copying fork, the owners and the permitted users and
+		 * teams of the origin are granted clone access to the fork.
+		 */
+		static RepositoryModel forkShared(IGitblit gitblit, RepositoryModel repo, UserModel user) throws GitBlitException {
+			String cloneName = getForkName(repo, user);
+			if (gitblit.hasRepository(cloneName)) {
+				throw new GitBlitException(String.format("Repository %s already exists!", cloneName));
+			}
+
+			RepositoryModel fork = repo.cloneAs(cloneName);
+			fork.addOwner(user.username);
+			gitblit.updateRepositoryModel(cloneName, fork, true);
+
+			Repository origin = gitblit.getRepository(repo.name);
+			if (origin == null) {
+				gitblit.deleteRepositoryModel(fork);
+				throw new GitBlitException(String.format("Failed to open %s!", repo.name));
+			}
+			Repository db = gitblit.getRepository(cloneName);
+			try {
+				SharedForks.share(origin, db, cloneName);
+			} catch (IOException e) {
+				gitblit.deleteRepositoryModel(fork);
+				try {
+					SharedForks.forget(gitblit, fork);
+				} catch (IOException x) {
+					e.addSuppressed(x);
+				}
+				throw new GitBlitException(e);
+			} finally {
+				db.close();
+				origin.close();
+			}
+
+			Map<String, RegistrantAccessPermission> users = new LinkedHashMap<String, RegistrantAccessPermission>();
+			for (String owner : repo.owners) {
+				users.put(owner.toLowerCase(), new RegistrantAccessPermission(owner, AccessPermission.CLONE,
+						PermissionType.EXPLICIT, RegistrantType.USER, null, true));
+			}
+			for (RegistrantAccessPermission ap : gitblit.getUserAccessPermissions(repo)) {
+				if (ap.permission.atLeast(AccessPermission.CLONE)) {
+					users.put(ap.registrant.toLowerCase(), new RegistrantAccessPermission(ap.registrant, AccessPermission.CLONE,
+							PermissionType.EXPLICIT, RegistrantType.USER, null, true));
+				}
+			}
+			users.remove(user.username.toLowerCase());
+			List<RegistrantAccessPermission> teams = new ArrayList<RegistrantAccessPermission>();
+			for (RegistrantAccessPermission ap : gitblit.getTeamAccessPermissions(repo)) {
+				if (ap.permission.atLeast(AccessPermission.CLONE)) {
+					teams.add(new RegistrantAccessPermission(ap.registrant, AccessPermission.CLONE,
+							PermissionType.EXPLICIT, RegistrantType.TEAM, null, true));
+				}
+			}
+			if (!users.isEmpty()) {
+				gitblit.setUserAccessPermissions(fork, users.values());
+			}
+			if (!teams.isEmpty()) {
+				gitblit.setTeamAccessPermissions(fork, teams);
+			}
+			return fork;
+		}
+	}
+
+	@CommandMetaData(name = "unshare", description = "Copy the borrowed objects of a shared fork into the fork")
+	@UsageExample(syntax = "${cmd} ~james/myRepo.git", description = "Make the shared fork ~james/myRepo.git self-contained")
+	public static class UnshareRepository extends RepositoryCommand {
+
+		@Override
+		public void run() throws UnloggedFailure {
+
+			final RepositoryModel repo = getRepository(true);
+			UserModel user = getContext().getClient().getUser();
+
+			if (!user.canAdmin(repo)) {
+				throw new UnloggedFailure(1,  String.format("Sorry, you do not have permission to administer %s", repository));
+			}
+
+			final IGitblit gitblit = getContext().getGitblit();
+			Repository db = gitblit.getRepository(repo.name);
+			try {
+				if (!SharedForks.isShared(db)) {
+					throw new UnloggedFailure(1, String.format("%s does not borrow objects from another repository", repository));
+				}
+			} finally {
+				db.close();
+			}
+
+			// copying the objects takes as long as a copying fork, always in the background
+			submit(new Job(String.format("unshare %s", repo.name), user.username, repo.name) {
+				@Override
+				protected String execute(JobMonitor monitor) throws Exception {
+					Repository db = gitblit.getRepository(repo.name);
+					try {
+						SharedForks.unshare(db, monitor);
+					} finally {
+						db.close();
+					}
+					SharedForks.forget(gitblit, repo);
+					return String.format("%s is self-contained.", repo.name);
+				}
+			});
+		}
+	}
+
+	@CommandMetaData(name = "show", description = "Show the details of a repository")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd} myRepo.git", description = "Display myRepo.git"),
+			@UsageExample(syntax = "${cmd} myRepo.git --section owners", description = "Display the owners of myRepo.git"),
+			@UsageExample(syntax = "${cmd} myRepo.git --section fields,users --format json", description = "Display the fields and the user permissions of myRepo.git as JSON"),
+	})
+	public static class ShowRepository extends RepositoryCommand {
+
+		protected enum Section {
+			fields, scripts, owners, teams, users
+		}
+
+		@Option(name = "--section", aliases = { "-s" }, metaVar = "SECTION", usage = "fields, scripts, owners, teams or users, comma separated or repeated (default: all)")
+		protected List<String> sectionNames = new ArrayList<String>();
+
+		@Option(name = "--format", metaVar = "text|json", usage = "output format (default: text)")
+		protected String format = "text";
+
+		@Override
+		public void run() throws UnloggedFailure {
+
+			RepositoryModel r = getRepository(true);
+
+			if (!getContext().getClient().getUser().canAdmin(r)) {
+				throw new UnloggedFailure(1,  String.format("Sorry, you do not have permission to see the %s settings.", repository));
+			}
+
+			Set<Section> sections = parseSections();
+			IGitblit gitblit = getContext().getGitblit();
+
+			if ("json".equalsIgnoreCase(format)) {
+				try {
+					writeJson(gitblit, r, sections);
+				} catch (IOException e) {
+					throw new UnloggedFailure(1, e.getMessage());
+				}
+				return;
+			} else if (!"text".equalsIgnoreCase(format)) {
+				throw new UnloggedFailure(1, String.format("Unknown format %s", format));
+			}
+
+			// each section is only computed if it was selected
+			UserResolver users = new UserResolver(gitblit);
+			List<String[]> data = new ArrayList<String[]>();
+			for (Section section : sections) {
+				switch (section) {
+				case fields:
+					data.add(new String[] { "FIELDS" });
+					data.add(new String[] { fields(r) });
+					break;
+				case scripts:
+					data.add(new String[] { "SCRIPTS" });
+					data.add(new String[] { scripts(gitblit, r) });
+					break;
+				case owners:
+					data.add(new String[] { "OWNERS" });
+					data.add(new String[] { owners(users, r) });
+					break;
+				case teams:
+					data.add(new String[] { "TEAM PERMISSIONS" });
+					data.add(new String[] { teams(gitblit, r) });
+					break;
+				case users:
+					data.add(new String[] { "USER PERMISSIONS" });
+					data.add(new String[] { users(gitblit, users, r) });
+					break;
+				}
+			}
+
+			// assemble table
+			String [] headers = new String[] { r.name };
+			stdout.println(FlipTable.of(headers, data.toArray(new String[data.size()][])));
+		}
+
+		protected Set<Section> parseSections() throws UnloggedFailure {
+			Set<Section> sections = EnumSet.noneOf(Section.class);
+			for (String names : sectionNames) {
+				for (String name : names.split(",")) {
+					try {
+						sections.add(Section.valueOf(name.trim().toLowerCase()));
+					} catch (IllegalArgumentException e) {
+						throw new UnloggedFailure(1, String.format("Unknown section %s, valid sections are %s",
+								name, Joiner.on(", ").join(Section.values())));
+					}
+				}
+			}
+			return sections.isEmpty() ? EnumSet.allOf(Section.class) : sections;
+		}
+
+		protected String fields(RepositoryModel r) {
+			StringBuilder fb = new StringBuilder();
+			fb.append("Description    : ").append(toString(r.description)).append('\n');
+			fb.append("Origin         : ").append(toString(r.origin)).append('\n');
+			fb.append("Default Branch : ").append(toString(r.HEAD)).append('\n');
+			fb.append('\n');
+			fb.append("GC Period    : ").append(r.gcPeriod).append('\n');
+			fb.append("GC Threshold : ").append(r.gcThreshold).append('\n');
+			fb.append('\n');
+			fb.append("Accept Tickets   : ").append(toString(r.acceptNewTickets)).append('\n');
+			fb.append("Accept Patchsets : ").append(toString(r.acceptNewPatchsets)).append('\n');
+			fb.append("Require Approval : ").append(toString(r.requireApproval)).append('\n');
+			fb.append("Merge To         : ").append(toString(r.mergeTo)).append('\n');
+			fb.append('\n');
+			fb.append("Incremental push tags    : ").append(toString(r.useIncrementalPushTags)).append('\n');
+			fb.append("Show remote branches     : ").append(toString(r.showRemoteBranches)).append('\n');
+			fb.append("Skip size calculations   : ").append(toString(r.skipSizeCalculation)).append('\n');
+			fb.append("Skip summary metrics     : ").append(toString(r.skipSummaryMetrics)).append('\n');
+			fb.append("Max activity commits     : ").append(r.maxActivityCommits).append('\n');
+			fb.append("Author metric exclusions : ").append(toString(r.metricAuthorExclusions)).append('\n');
+			fb.append("Commit Message Renderer  : ").append(r.commitMessageRenderer).append('\n');
+			fb.append("Mailing Lists            : ").append(toString(r.mailingLists)).append('\n');
+			fb.append('\n');
+			fb.append("Access Restriction    : ").append(r.accessRestriction).append('\n');
+			fb.append("Authorization Control : ").append(r.authorizationControl).append('\n');
+			fb.append('\n');
+			fb.append("Is Frozen        : ").append(toString(r.isFrozen)).append('\n');
+			fb.append("Allow Forks      : ").append(toString(r.allowForks)).append('\n');
+			fb.append("Verify Committer : ").append(toString(r.verifyCommitter)).append('\n');
+			fb.append('\n');
+			fb.append("Federation Strategy : ").append(r.federationStrategy).append('\n');
+			fb.append("Federation Sets     : ").append(toString(r.federationSets)).append('\n');
+			fb.append('\n');
+			fb.append("Indexed Branches : ").append(toString(r.indexedBranches)).append('\n');
+			return fb.toString();
+		}
+
+		protected String scripts(IGitblit gitblit, RepositoryModel r) {
+			StringBuilder fb = new StringBuilder();
+			fb.append("Pre-Receive Scripts  : ").append(toString(r.preReceiveScripts)).append('\n');
+			fb.append("           inherited : ").append(toString(gitblit.getPreReceiveScriptsInherited(r))).append('\n');
+			fb.append("Post-Receive Scripts : ").append(toString(r.postReceiveScripts)).append('\n');
+			fb.append("           inherited : ").append(toString(gitblit.getPostReceiveScriptsInherited(r))).append('\n');
+			return fb.toString();
+		}
+
+		protected String owners(UserResolver users, RepositoryModel r) {
+			if (r.owners.isEmpty()) {
+				return FlipTable.EMPTY;
+			}
+			users.resolve(r.owners);
+			String[] pheaders = { "Account", "Name" };
+			Object [][] pdata = new Object[r.owners.size()][];
+			for (int i = 0; i < r.owners.size(); i++) {
+				String owner = r.owners.get(i);
+				UserModel u = users.getUser(owner);
+				pdata[i] = new Object[] { owner, u == null ? "" : u.getDisplayName() };
+			}
+			return FlipTable.of(pheaders, pdata, Borders.COLS);
+		}
+
+		protected String teams(IGitblit gitblit, RepositoryModel r) {
+			List<RegistrantAccessPermission> tperms = gitblit.getTeamAccessPermissions(r);
+			if (tperms.isEmpty()) {
+				return FlipTable.EMPTY;
+			}
+			String[] pheaders = { "Team", "Permission", "Type" };
+			Object [][] pdata = new Object[tperms.size()][];
+			for (int i = 0; i < tperms.size(); i++) {
+				RegistrantAccessPermission ap = tperms.get(i);
+				pdata[i] = new Object[] { ap.registrant, ap.permission, ap.permissionType };
+			}
+			return FlipTable.of(pheaders, pdata, Borders.COLS);
+		}
+
+		protected String users(IGitblit gitblit, UserResolver users, RepositoryModel r) {
+			List<RegistrantAccessPermission> uperms = gitblit.getUserAccessPermissions(r);
+			if (uperms.isEmpty()) {
+				return FlipTable.EMPTY;
+			}
+			users.resolve(registrants(uperms));
+			String[] pheaders = { "Account", "Name", "Permission", "Type", "Source", "Mutable" };
+			Object [][] pdata = new Object[uperms.size()][];
+			for (int i = 0; i < uperms.size(); i++) {
+				RegistrantAccessPermission ap = uperms.get(i);
+				String name = users.getDisplayName(ap.registrant);
+				pdata[i] = new Object[] { ap.registrant, name, ap.permission, ap.permissionType, ap.source, ap.mutable ? "Y":"" };
+			}
+			return FlipTable.of(pheaders, pdata, Borders.COLS);
+		}
+
+		protected List<String> registrants(List<RegistrantAccessPermission> permissions) {
+			List<String> names = new ArrayList<String>(permissions.size());
+			for (RegistrantAccessPermission ap : permissions) {
+				names.add(ap.registrant);
+			}
+			return names;
+		}
+
+		/**
+		 * Writes the selected sections as one JSON object, flushing each
+		 * section as soon as it has been computed.
+		 */
+		protected void writeJson(IGitblit gitblit, RepositoryModel r, Set<Section> sections) throws IOException {
+			UserResolver users = new UserResolver(gitblit);
+			JsonWriter json = new JsonWriter(stdout);
+			json.setIndent("  ");
+			json.beginObject();
+			json.name("name").value(r.name);
+			for (Section section : sections) {
+				json.name(section.name());
+				switch (section) {
+				case fields:
+					json.beginObject();
+					field(json, "description", r.description);
+					field(json, "origin", r.origin);
+					field(json, "HEAD", r.HEAD);
+					field(json, "gcPeriod", r.gcPeriod);
+					field(json, "gcThreshold", r.gcThreshold);
+					field(json, "acceptNewTickets", r.acceptNewTickets);
+					field(json, "acceptNewPatchsets", r.acceptNewPatchsets);
+					field(json, "requireApproval", r.requireApproval);
+					field(json, "mergeTo", r.mergeTo);
+					field(json, "useIncrementalPushTags", r.useIncrementalPushTags);
+					field(json, "showRemoteBranches", r.showRemoteBranches);
+					field(json, "skipSizeCalculation", r.skipSizeCalculation);
+					field(json, "skipSummaryMetrics", r.skipSummaryMetrics);
+					field(json, "maxActivityCommits", r.maxActivityCommits);
+					field(json, "metricAuthorExclusions", r.metricAuthorExclusions);
+					field(json, "commitMessageRenderer", r.commitMessageRenderer);
+					field(json, "mailingLists", r.mailingLists);
+					field(json, "accessRestriction", r.accessRestriction);
+					field(json, "authorizationControl", r.authorizationControl);
+					field(json, "isFrozen", r.isFrozen);
+					field(json, "allowForks", r.allowForks);
+					field(json, "verifyCommitter", r.verifyCommitter);
+					field(json, "federationStrategy", r.federationStrategy);
+					field(json, "federationSets", r.federationSets);
+					field(json, "indexedBranches", r.indexedBranches);
+					json.endObject();
+					break;
+				case scripts:
+					json.beginObject();
+					field(json, "preReceiveScripts", r.preReceiveScripts);
+					field(json, "preReceiveScriptsInherited", gitblit.getPreReceiveScriptsInherited(r));
+					field(json, "postReceiveScripts", r.postReceiveScripts);
+					field(json, "postReceiveScriptsInherited", gitblit.getPostReceiveScriptsInherited(r));
+					json.endObject();
+					break;
+				case owners:
+					users.resolve(r.owners);
+					json.beginArray();
+					for (String owner : r.owners) {
+						json.beginObject();
+						json.name("account").value(owner);
+						json.name("name").value(users.getDisplayName(owner));
+						json.endObject();
+					}
+					json.endArray();
+					break;
+				case teams:
+					json.beginArray();
+					for (RegistrantAccessPermission ap : gitblit.getTeamAccessPermissions(r)) {
+						json.beginObject();
+						json.name("team").value(ap.registrant);
+						json.name("permission").value(ap.permission.name());
+						json.name("type").value(ap.permissionType.name());
+						json.endObject();
+					}
+					json.endArray();
+					break;
+				case users:
+					List<RegistrantAccessPermission> uperms = gitblit.getUserAccessPermissions(r);
+					users.resolve(registrants(uperms));
+					json.beginArray();
+					for (RegistrantAccessPermission ap : uperms) {
+						json.beginObject();
+						json.name("account").value(ap.registrant);
+						json.name("name").value(users.getDisplayName(ap.registrant));
+						json.name("permission").value(ap.permission.name());
+						json.name("type").value(ap.permissionType.name());
+						json.name("source").value(ap.source);
+						json.name("mutable").value(ap.mutable);
+						json.endObject();
+					}
+					json.endArray();
+					break;
+				}
+				json.flush();
+			}
+			json.endObject();
+			json.flush();
+			stdout.println();
+		}
+
+		protected void field(JsonWriter json, String name, Object value) throws IOException {
+			json.name(name);
+			ExportMeta.writeValue(json, value);
+		}
+
+		protected String toString(String val) {
+			if (val == null) {
+				return "";
+			}
+			return val;
+		}
+
+		protected String toString(Collection<?> collection) {
+			if (collection == null) {
+				return "";
+			}
+			return Joiner.on(", ").join(collection);
+		}
+
+		protected String toString(boolean val) {
+			if (val) {
+				return "Y";
+			}
+			return "";
+		}
+
+	}
+
+	/* Verify repositories */
+	@CommandMetaData(name = "fsck", description = "Verify the integrity of repositories")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd}", description = "Verify the packs, loose objects and connectivity of all repositories"),
+			@UsageExample(syntax = "${cmd} mirror/.* --full", description = "Also inflate and check every object of the mirrors"),
+			@UsageExample(syntax = "${cmd} --resume", description = "Resume an interrupted scan"),
+	})
+	public static class CheckRepositories extends SshCommand {
+
+		private static final int MAX_THREADS = 16;
+
+		@Argument(index = 0, multiValued = true, metaVar = "FILTER", usage = "filter expression")
+		protected List<String> filters = new ArrayList<String>();
+
+		@Option(name = "--threads", metaVar = "N", usage = "number of repositories checked concurrently, at most 16 (default: number of cores)")
+		protected int threads = Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors());
+
+		@Option(name = "--full", usage = "inflate and check every reachable object")
+		protected boolean full;
+
+		@Option(name = "--resume", usage = "skip the repositories already checked by the interrupted scan")
+		protected boolean resume;
+
+		/**
+		 * The checkpoint keys of the running scans.
+		 */
+		private static final Set<String> SCANS = new HashSet<String>();
+
+		@Override
+		public void run() throws UnloggedFailure {
+			long start = System.currentTimeMillis();
+			UserModel user = getContext().getClient().getUser();
+			if (!user.canAdmin()) {
+				throw new UnloggedFailure(1, "Sorry, fsck requires administrator privileges");
+			}
+			if (threads < 1 || threads > MAX_THREADS) {
+				throw new UnloggedFailure(1, String.format("--threads must be between 1 and %d", MAX_THREADS));
+			}
+
+			NameFilter filter;
+			try {
+				filter = NameFilter.compile(filters);
+			} catch (PatternSyntaxException e) {
+				throw new UnloggedFailure(1, String.format("Invalid filter expression %s", e.getPattern()));
+			}
+
+			// each set of arguments has its own checkpoint, and one scan at a time
+			final IGitblit gitblit = getContext().getGitblit();
+			String header = "# fsck " + Joiner.on(' ').join(filters) + (full ? " --full" : "");
+			File base = gitblit.getFileOrFolder("powertools.fsckCheckpoint", "${baseFolder}/fsck.checkpoint");
+			String key = ObjectId.fromRaw(Constants.newMessageDigest().digest(Constants.encode(header))).abbreviate(8).name();
+			File checkpoint = new File(base.getParentFile(), base.getName() + "." + key);
+			synchronized (SCANS) {
+				if (!SCANS.add(key)) {
+					throw new UnloggedFailure(1, "A scan with the same arguments is running");
+				}
+			}
+			try {
+				scan(gitblit, user, filter, checkpoint, header, start);
+			} finally {
+				synchronized (SCANS) {
+					SCANS.remove(key);
+				}
+			}
+		}
+
+		protected void scan(final IGitblit gitblit, UserModel user, NameFilter filter, File checkpoint, String header, long start) throws UnloggedFailure {
+			Set<String> checked = resume ? readCheckpoint(checkpoint, header) : new HashSet<String>();
+
+			List<String> names = new ArrayList<String>();
+			for (String name : filter.selectSorted(RepositoryNames.getSorted(gitblit))) {
+				if (!checked.contains(name) && gitblit.getRepositoryModel(user, name) != null) {
+					names.add(name);
+				}
+			}
+
+			PrintWriter progress = openCheckpoint(checkpoint, header, resume);
+			int failed = 0;
+			ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, Math.max(1, names.size()))));
+			try {
+				CompletionService<Fsck.Result> results = new ExecutorCompletionService<Fsck.Result>(executor);
+				for (final String name : names) {
+					results.submit(new Callable<Fsck.Result>() {
+						@Override
+						public Fsck.Result call() {
+							Repository db = gitblit.getRepository(name);
+							if (db == null) {
+								Fsck.Result r = new Fsck.Result(name);
+								r.error("repository not found");
+								return r;
+							}
+							try {
+								return Fsck.check(name, db, full);
+							} catch (RuntimeException e) {
+								// JGit may throw on a corrupt repository, record it like any other failure
+								Fsck.Result r = new Fsck.Result(name);
+								r.error(e.toString());
+								return r;
+							} finally {
+								db.close();
+							}
+						}
+					});
+				}
+
+				for (int i = 0; i < names.size(); i++) {
+					Fsck.Result r = results.take().get();
+					if (r.isOk()) {
+						stdout.println(String.format("%s: ok, %d packs, %d loose, %d objects in %d ms",
+								r.name, r.packs, r.loose, r.objects, r.elapsed));
+					} else {
+						failed++;
+						stdout.println(String.format("%s: %d errors", r.name, r.errorCount));
+						for (String error : r.errors) {
+							stdout.println("   " + error);
+						}
+						if (r.errorCount > r.errors.size()) {
+							stdout.println(String.format("   and %d more", r.errorCount - r.errors.size()));
+						}
+					}
+					stdout.flush();
+					progress.println(r.name + "\t" + (r.isOk() ? "ok" : "error"));
+					progress.flush();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new UnloggedFailure(1, "Interrupted, use --resume to continue the scan");
+			} catch (ExecutionException e) {
+				throw new UnloggedFailure(1, e.getCause().getMessage());
+			} finally {
+				executor.shutdownNow();
+				progress.close();
+			}
+
+			// the scan is complete, there is nothing to resume
+			checkpoint.delete();
+
+			long elapsed = System.currentTimeMillis() - start;
+			stdout.println(String.format("Checked %d repositories (%d skipped from the checkpoint): %d ok, %d with errors in %d ms",
+					names.size(), checked.size(), names.size() - failed, failed, elapsed));
+			if (failed > 0) {
+				throw new UnloggedFailure(1, String.format("%d repositories have errors", failed));
+			}
+		}
+
+		/**
+		 * Reads the names of the repositories checked by an interrupted scan
+		 * with the same arguments.
+		 */
+		protected Set<String> readCheckpoint(File checkpoint, String header) throws UnloggedFailure {
+			if (!checkpoint.exists()) {
+				throw new UnloggedFailure(1, "There is no interrupted scan to resume");
+			}
+			Set<String> checked = new HashSet<String>();
+			try {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(checkpoint), "UTF-8"));
+				try {
+					String first = reader.readLine();
+					if (!header.equals(first)) {
+						throw new UnloggedFailure(1, String.format("The interrupted scan has different arguments: %s", first));
+					}
+					String line;
+					while ((line = reader.readLine()) != null) {
+						int tab = line.indexOf('\t');
+						if (tab > 0) {
+							checked.add(line.substring(0, tab));
+						}
+					}
+				} finally {
+					reader.close();
+				}
+			} catch (IOException e) {
+				throw new UnloggedFailure(1, String.format("Failed to read %s: %s", checkpoint, e.getMessage()));
+			}
+			return checked;
+		}
+
+		protected PrintWriter openCheckpoint(File checkpoint, String header, boolean append) throws UnloggedFailure {
+			try {
+				checkpoint.getParentFile().mkdirs();
+				PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(checkpoint, append), "UTF-8"));
+				if (!append) {
+					writer.println(header);
+					writer.flush();
+				}
+				return writer;
+			} catch (IOException e) {
+				throw new UnloggedFailure(1, String.format("Failed to write %s: %s", checkpoint, e.getMessage()));
+			}
+		}
+	}
+
+	/* Garbage collect repositories */
+	@CommandMetaData(name = "gc", description = "Garbage collect repositories")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd} myRepo.git", description = "Garbage collect a repository"),
+			@UsageExample(syntax = "${cmd} mirror/.* --threads 2 --io-limit 20", description = "Garbage collect the mirrors, two at a time, within 20 MB/s"),
+			@UsageExample(syntax = "${cmd} team/.* --repack --async", description = "Repack the team repositories in the background"),
+	})
+	public static class CollectGarbage extends SshCommand {
+
+		private static final int MAX_THREADS = 16;
+
+		@Argument(index = 0, required = true, metaVar = "REGEX", usage = "the repositories to collect")
+		protected String match;
+
+		@Option(name = "--repack", usage = "pack refs and objects but keep unreachable loose objects")
+		protected boolean repack;
+
+		@Option(name = "--threads", metaVar = "N", usage = "number of repositories collected concurrently, at most 16 (default: 1)")
+		protected int threads = 1;
+
+		@Option(name = "--io-limit", metaVar = "MB/s", usage = "approximate I/O budget shared by all threads, charged per written object at the average object size of each repository (default: unlimited)")
+		protected int ioLimit;
+
+		@Option(name = "--async", usage = "collect in the background and print the job id")
+		protected boolean async;
+
+		@Override
+		public void run() throws UnloggedFailure {
+			if (threads < 1 || threads > MAX_THREADS) {
+				throw new UnloggedFailure(1, String.format("--threads must be between 1 and %d", MAX_THREADS));
+			}
+			NameFilter filter;
+			try {
+				filter = NameFilter.compile(Arrays.asList(match));
+			} catch (PatternSyntaxException e) {
+				throw new UnloggedFailure(1, String.format("Invalid expression %s", match));
+			}
+
+			final IGitblit gitblit = getContext().getGitblit();
+			UserModel user = getContext().getClient().getUser();
+
+			final List<String> names = new ArrayList<String>();
+			List<String> denied = new ArrayList<String>();
+			for (String name : filter.selectSorted(RepositoryNames.getSorted(gitblit))) {
+				RepositoryModel repo = gitblit.getRepositoryModel(name);
+				if (repo == null) {
+					continue;
+				}
+				if (!user.canAdmin(repo)) {
+					denied.add(repo.name);
+					continue;
+				}
+				names.add(repo.name);
+			}
+
+			if (!denied.isEmpty()) {
+				throw new UnloggedFailure(1, String.format("Sorry, you do not have permission to administer %d of the matching repositories: %s",
+						denied.size(), Joiner.on(", ").join(denied)));
+			}
+			if (names.isEmpty()) {
+				throw new UnloggedFailure(1, String.format("No repositories match %s", match));
+			}
+
+			String title = String.format("gc %s (%d repositories)", match, names.size());
+			if (async) {
+				submit(new Job(title, user.username, names) {
+					@Override
+					protected String execute(JobMonitor monitor) throws Exception {
+						StringWriter sw = new StringWriter();
+						PrintWriter pw = new PrintWriter(sw);
+						collectAll(gitblit, names, monitor, pw);
+						pw.flush();
+						return sw.toString().trim();
+					}
+				}, stdout);
+				return;
+			}
+
+			// the repositories are reserved for the collection as they would be for --async
+			Job job = new Job(title, user.username, names) {
+				@Override
+				protected String execute(JobMonitor monitor) throws Exception {
+					collectAll(gitblit, names, monitor, stdout);
+					return null;
+				}
+			};
+			try {
+				JobManager.get().run(job);
+			} catch (IllegalStateException e) {
+				throw new UnloggedFailure(1, e.getMessage());
+			}
+			if (job.getState() == Job.State.CANCELLED) {
+				throw new UnloggedFailure(1, String.format("Job %d was cancelled", job.getId()));
+			} else if (job.getState() == Job.State.FAILED) {
+				throw new UnloggedFailure(1, job.getResult());
+			}
+		}
+
+		/**
+		 * Collects the repositories on a pool of worker threads, writing one
+		 * line per repository as each collection completes.
+		 */
+		protected void collectAll(final IGitblit gitblit, List<String> names, final ProgressMonitor monitor, PrintWriter out) throws UnloggedFailure {
+			long start = System.currentTimeMillis();
+			monitor.beginTask(repack ? "Repacking" : "Collecting garbage", names.size());
+
+			final Throttle throttle = new Throttle(ioLimit * 1024L * 1024L);
+			ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, names.size())));
+			CompletionService<Result> results = new ExecutorCompletionService<Result>(executor);
+			try {
+				for (final String name : names) {
+					results.submit(new Callable<Result>() {
+						@Override
+						public Result call() {
+							if (monitor.isCancelled()) {
+								return new Result(name, "cancelled");
+							}
+							try {
+								return collect(gitblit, name, throttle, monitor);
+							} catch (Exception e) {
+								log.error(String.format("Failed to collect %s", name), e);
+								return new Result(name, e.getMessage());
+							}
+						}
+					});
+				}
+			} finally {
+				executor.shutdown();
+			}
+
+			int failed = 0;
+			int skipped = 0;
+			long reclaimed = 0;
+			ByteFormat byteFormat = new ByteFormat();
+			try {
+				for (int i = 0; i < names.size(); i++) {
+					Result r = results.take().get();
+					if (r.skipped) {
+						skipped++;
+						out.println(String.format("%s: skipped, %s", r.name, r.error));
+					} else if (r.error != null) {
+						failed++;
+						out.println(String.format("%s: failed, %s", r.name, r.error));
+					} else {
+						reclaimed += r.sizeBefore - r.sizeAfter;
+						out.println(String.format("%s: loose %d -> %d, packs %d -> %d, size %s -> %s in %d ms",
+								r.name, r.looseBefore, r.looseAfter, r.packsBefore, r.packsAfter,
+								byteFormat.format(r.sizeBefore), byteFormat.format(r.sizeAfter), r.elapsed));
+					}
+					out.flush();
+					monitor.update(1);
+				}
+			} catch (InterruptedException e) {
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+				throw new UnloggedFailure(1, "Interrupted while collecting repositories");
+			} catch (ExecutionException e) {
+				throw new UnloggedFailure(1, e.getCause().getMessage());
+			}
+			monitor.endTask();
+
+			long elapsed = System.currentTimeMillis() - start;
+			out.println(String.format("%d collected, %d skipped, %d failed, %s reclaimed in %d ms",
+					names.size() - failed - skipped, skipped, failed, byteFormat.format(reclaimed), elapsed));
+		}
+
+		protected Result collect(IGitblit gitblit, String name, Throttle throttle, ProgressMonitor monitor) throws IOException, ParseException {
+			// Gitblit refuses to open a repository while its GC service collects
+			// it.  While we hold the repository open, the GC service considers
+			// it busy and skips it.
+			Repository db = gitblit.getRepository(name);
+			if (db == null) {
+				if (gitblit.isCollectingGarbage(name)) {
+					return Result.skipped(name, "Gitblit is collecting garbage");
+				}
+				return new Result(name, "repository not found");
+			}
+			try {
+				if (gitblit.isCollectingGarbage(name)) {
+					return Result.skipped(name, "Gitblit is collecting garbage");
+				}
+				if (!(db instanceof FileRepository)) {
+					return new Result(name, "not a file repository");
+				}
+				if (SharedForks.hasSharedForks(db)) {
+					// pruning could drop objects which the shared forks borrow
+					return new Result(name, "has shared forks, unshare them first");
+				}
+				if (SharedForks.isShared(db)) {
+					// repacking would copy the borrowed objects
+					return new Result(name, "is a shared fork, use 'repos unshare' instead");
+				}
+				long start = System.currentTimeMillis();
+				GC gc = new GC((FileRepository) db);
+				RepoStatistics before = gc.getStatistics();
+
+				// charge each written object the average object size
+				long objects = before.numberOfLooseObjects + before.numberOfPackedObjects;
+				long bytes = before.sizeOfLooseObjects + before.sizeOfPackedObjects;
+				gc.setProgressMonitor(throttle.monitor(objects == 0 ? 0 : bytes / objects, monitor));
+
+				if (repack) {
+					gc.packRefs();
+					gc.repack();
+					gc.prunePacked();
+				} else {
+					gc.gc();
+				}
+
+				RepoStatistics after = gc.getStatistics();
+				Result r = new Result(name, null);
+				r.looseBefore = before.numberOfLooseObjects;
+				r.looseAfter = after.numberOfLooseObjects;
+				r.packsBefore = before.numberOfPackFiles;
+				r.packsAfter = after.numberOfPackFiles;
+				r.sizeBefore = bytes;
+				r.sizeAfter = after.sizeOfLooseObjects + after.sizeOfPackedObjects;
+				r.elapsed = System.currentTimeMillis() - start;
+				return r;
+			} finally {
+				db.close();
+			}
+		}
+
+		/**
+		 * The statistics of one collection.
+		 */
+		protected static class Result {
+			final String name;
+			final String error;
+			boolean skipped;
+			long looseBefore;
+			long looseAfter;
+			long packsBefore;
+			long packsAfter;
+			long sizeBefore;
+			long sizeAfter;
+			long elapsed;
+
+			Result(String name, String error) {
+				this.name = name;
+				this.error = error;
+			}
+
+			static Result skipped(String name, String reason) {
+				Result r = new Result(name, reason);
+				r.skipped = true;
+				return r;
+			}
+		}
+	}
+
+	@CommandMetaData(name = "sync", description = "Fetch the upstream changes of mirrors")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd}", description = "Synchronize all mirrors, skipping those whose upstream refs have not changed"),
+			@UsageExample(syntax = "${cmd} mirror/.* --threads 8 --per-host 2", description = "Synchronize the mirrors in the 'mirror' folder, at most two per upstream host"),
+			@UsageExample(syntax = "${cmd} mirror/gitblit.git --force", description = "Fetch mirror/gitblit.git even if its upstream refs have not changed"),
+	})
+	public static class SyncMirrors extends SshCommand {
+
+		private static final int MAX_THREADS = 16;
+
+		@Argument(index = 0, metaVar = "REGEX", usage = "the mirrors to synchronize (default: all)")
+		protected String match;
+
+		@Option(name = "--threads", metaVar = "N", usage = "number of mirrors fetched concurrently, at most 16 (default: 4)")
+		protected int threads = 4;
+
+		@Option(name = "--per-host", metaVar = "N", usage = "number of concurrent fetches from one upstream host, at most 16 (default: 2)")
+		protected int perHost = 2;
+
+		@Option(name = "--force", usage = "fetch even if the upstream refs have not changed since the last sync")
+		protected boolean force;
+
+		@Option(name = "--async", usage = "synchronize in the background and print the job id")
+		protected boolean async;
+
+		@Override
+		public void run() throws UnloggedFailure {
+			NameFilter filter;
+			try {
+				filter = NameFilter.compile(match == null ? Collections.<String> emptyList() : Arrays.asList(match));
+			} catch (PatternSyntaxException e) {
+				throw new UnloggedFailure(1, String.format("Invalid expression %s", match));
+			}
+			if (threads < 1 || threads > MAX_THREADS) {
+				throw new UnloggedFailure(1, String.format("--threads must be between 1 and %d", MAX_THREADS));
+			}
+			if (perHost < 1 || perHost > MAX_THREADS) {
+				throw new UnloggedFailure(1, String.format("--per-host must be between 1 and %d", MAX_THREADS));
+			}
+
+			final IGitblit gitblit = getContext().getGitblit();
+			UserModel user = getContext().getClient().getUser();
+
+			final List<RepositoryModel> mirrors = new ArrayList<RepositoryModel>();
+			List<String> names = new ArrayList<String>();
+			List<String> denied = new ArrayList<String>();
+			List<String> busy = new ArrayList<String>();
+			for (String name : filter.selectSorted(RepositoryNames.getSorted(gitblit))) {
+				RepositoryModel repo = gitblit.getRepositoryModel(name);
+				if (repo == null || !repo.isMirror) {
+					continue;
+				}
+				if (!user.canAdmin(repo)) {
+					denied.add(repo.name);
+					continue;
+				}
+				Job job = JobManager.get().getReservation(repo.name);
+				if (job != null) {
+					busy.add(String.format("%s (job %d)", repo.name, job.getId()));
+					continue;
+				}
+				mirrors.add(repo);
+				names.add(repo.name);
+			}
+
+			if (!denied.isEmpty()) {
+				throw new UnloggedFailure(1, String.format("Sorry, you do not have permission to administer %d of the matching mirrors: %s",
+						denied.size(), Joiner.on(", ").join(denied)));
+			}
+			if (!busy.isEmpty()) {
+				stdout.println(String.format("Skipping %d mirrors in use by jobs: %s", busy.size(), Joiner.on(", ").join(busy)));
+			}
+			if (mirrors.isEmpty()) {
+				throw new UnloggedFailure(1, match == null ? "There are no mirrors" : String.format("No mirrors match %s", match));
+			}
+
+			String title = String.format("sync %s (%d mirrors)", match == null ? "all" : match, mirrors.size());
+			if (async) {
+				submit(new Job(title, user.username, names) {
+					@Override
+					protected String execute(JobMonitor monitor) throws Exception {
+						StringWriter sw = new StringWriter();
+						PrintWriter pw = new PrintWriter(sw);
+						syncAll(gitblit, mirrors, monitor, pw);
+						pw.flush();
+						return sw.toString().trim();
+					}
+				}, stdout);
+				return;
+			}
+
+			// the mirrors are reserved for the sync as they would be for --async
+			Job job = new Job(title, user.username, names) {
+				@Override
+				protected String execute(JobMonitor monitor) throws Exception {
+					syncAll(gitblit, mirrors, monitor, stdout);
+					return null;
+				}
+			};
+			try {
+				JobManager.get().run(job);
+			} catch (IllegalStateException e) {
+				throw new UnloggedFailure(1, e.getMessage());
+			}
+			if (job.getState() == Job.State.CANCELLED) {
+				throw new UnloggedFailure(1, String.format("Job %d was cancelled", job.getId()));
+			} else if (job.getState() == Job.State.FAILED) {
+				throw new UnloggedFailure(1, job.getResult());
+			}
+		}
+
+		/**
+		 * Fetches the mirrors on a pool of worker threads, writing one line per
+		 * mirror as each fetch completes.  A mirror is only handed to a worker
+		 * when its upstream host has a free slot, so that the workers are not
+		 * all waiting for the same busy host.  The job monitor counts whole
+		 * mirrors, the fetches only check it for cancellation.
+		 */
+		protected void syncAll(final IGitblit gitblit, List<RepositoryModel> mirrors, final ProgressMonitor monitor, PrintWriter out) throws UnloggedFailure {
+			long start = System.currentTimeMillis();
+			monitor.beginTask("Synchronizing mirrors", mirrors.size());
+
+			final File stateFile = gitblit.getFileOrFolder("powertools.syncState", "${baseFolder}/sync.state");
+			final Properties state = readState(stateFile);
+
+			Map<String, LinkedList<RepositoryModel>> pending = new LinkedHashMap<String, LinkedList<RepositoryModel>>();
+			for (RepositoryModel mirror : mirrors) {
+				String host = MirrorUtils.getHost(mirror.origin);
+				LinkedList<RepositoryModel> list = pending.get(host);
+				if (list == null) {
+					list = new LinkedList<RepositoryModel>();
+					pending.put(host, list);
+				}
+				list.add(mirror);
+			}
+			Map<String, Integer> running = new HashMap<String, Integer>();
+			for (String host : pending.keySet()) {
+				running.put(host, 0);
+			}
+
+			final ProgressMonitor cancellable = cancelOnly(monitor);
+			int workers = Math.min(threads, mirrors.size());
+			ExecutorService executor = Executors.newFixedThreadPool(workers);
+			CompletionService<Result> results = new ExecutorCompletionService<Result>(executor);
+			Map<String, String> hostOf = new HashMap<String, String>();
+			int active = 0;
+			int fetched = 0;
+			int unchanged = 0;
+			int failed = 0;
+			try {
+				for (int i = 0; i < mirrors.size(); i++) {
+					// hand out mirrors round-robin by host, within the host limit
+					while (active < workers) {
+						RepositoryModel next = null;
+						for (Map.Entry<String, LinkedList<RepositoryModel>> e : pending.entrySet()) {
+							if (!e.getValue().isEmpty() && running.get(e.getKey()) < perHost) {
+								next = e.getValue().removeFirst();
+								running.put(e.getKey(), running.get(e.getKey()) + 1);
+								hostOf.put(next.name, e.getKey());
+								// move the host to the end of the rotation
+								pending.put(e.getKey(), pending.remove(e.getKey()));
+								break;
+							}
+						}
+						if (next == null) {
+							break;
+						}
+						schedule(results, gitblit, next, state.getProperty(next.name), cancellable);
+						active++;
+					}
+
+					Result r = results.take().get();
+					active--;
+					String host = hostOf.remove(r.name);
+					running.put(host, running.get(host) - 1);
+					if (r.error != null) {
+						failed++;
+						out.println(String.format("%s: failed, %s", r.name, r.error));
+					} else if (r.unchanged) {
+						unchanged++;
+						out.println(String.format("%s: unchanged", r.name));
+					} else {
+						fetched++;
+						out.println(String.format("%s: %d refs updated, %d new objects in %d ms",
+								r.name, r.updatedRefs, r.newObjects, r.elapsed));
+					}
+					if (r.fingerprint != null) {
+						state.setProperty(r.name, r.fingerprint);
+					}
+					out.flush();
+					monitor.update(1);
+				}
+			} catch (InterruptedException e) {
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+				throw new UnloggedFailure(1, "Interrupted while synchronizing mirrors");
+			} catch (ExecutionException e) {
+				throw new UnloggedFailure(1, e.getCause().getMessage());
+			} finally {
+				executor.shutdown();
+				writeState(stateFile, state);
+			}
+			monitor.endTask();
+
+			long elapsed = System.currentTimeMillis() - start;
+			out.println(String.format("%d fetched, %d unchanged, %d failed in %d ms", fetched, unchanged, failed, elapsed));
+		}
+
+		protected void schedule(CompletionService<Result> results, final IGitblit gitblit, final RepositoryModel mirror,
+				final String previous, final ProgressMonitor monitor) {
+			results.submit(new Callable<Result>() {
+				@Override
+				public Result call() {
+					if (monitor.isCancelled()) {
+						return new Result(mirror.name, "cancelled");
+					}
+					try {
+						return sync(gitblit, mirror.name, previous, monitor);
+					} catch (Exception e) {
+						log.error(String.format("Failed to synchronize %s", mirror.name), e);
+						return new Result(mirror.name, e.getMessage());
+					}
+				}
+			});
+		}
+
+		/**
+		 * Returns a monitor for one fetch which reports nothing but passes on
+		 * the cancellation of the job.
+		 */
+		protected static ProgressMonitor cancelOnly(final ProgressMonitor monitor) {
+			return new ProgressMonitor() {
+				@Override
+				public void start(int totalTasks) {
+				}
+
+				@Override
+				public void beginTask(String title, int totalWork) {
+				}
+
+				@Override
+				public void update(int completed) {
+				}
+
+				@Override
+				public void endTask() {
+				}
+
+				@Override
+				public boolean isCancelled() {
+					return monitor.isCancelled();
+				}
+			};
+		}
+
+		/**
+		 * Fetches the mirror unless the refs advertised by the upstream match
+		 * the fingerprint recorded by the previous sync.
+		 */
+		protected Result sync(IGitblit gitblit, String name, String previous, ProgressMonitor monitor) throws GitAPIException, IOException {
+			Repository db = gitblit.getRepository(name);
+			if (db == null) {
+				return new Result(name, "repository not found");
+			}
+			try {
+				long start = System.currentTimeMillis();
+				Result r = new Result(name, null);
+				if (!force && previous != null) {
+					// an advertisement is far cheaper than a fetch negotiation
+					String current = MirrorUtils.fingerprint(MirrorUtils.lsRemote(db));
+					if (current.equals(previous)) {
+						r.unchanged = true;
+						r.elapsed = System.currentTimeMillis() - start;
+						return r;
+					}
+				}
+				long before = MirrorUtils.getPackedObjectCount(db);
+				FetchResult fetch = MirrorUtils.fetch(db, monitor);
+				r.newObjects = MirrorUtils.getPackedObjectCount(db) - before;
+				r.updatedRefs = fetch.getTrackingRefUpdates().size();
+				r.fingerprint = MirrorUtils.fingerprint(fetch.getAdvertisedRefs());
+				r.elapsed = System.currentTimeMillis() - start;
+				return r;
+			} finally {
+				db.close();
+			}
+		}
+
+		protected Properties readState(File file) {
+			Properties props = new Properties();
+			if (file.exists()) {
+				try (FileInputStream in = new FileInputStream(file)) {
+					props.load(in);
+				} catch (IOException e) {
+					log.warn(String.format("Failed to read the mirror sync state %s, fetching all mirrors", file), e);
+				}
+			}
+			return props;
+		}
+
+		/**
+		 * Replaces the state file atomically.  Concurrent syncs of different
+		 * mirrors may lose each other's updates, which only costs a fetch.
+		 */
+		protected void writeState(File file, Properties state) {
+			File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+			try {
+				try (FileOutputStream out = new FileOutputStream(tmp)) {
+					state.store(out, "powertools mirror sync state");
+				}
+				if (!tmp.renameTo(file)) {
+					file.delete();
+					if (!tmp.renameTo(file)) {
+						throw new IOException(String.format("Failed to rename %s", tmp));
+					}
+				}
+			} catch (IOException e) {
+				log.error(String.format("Failed to write the mirror sync state %s", file), e);
+			}
+		}
+
+		/**
+		 * The outcome of synchronizing one mirror.
+		 */
+		protected static class Result {
+			final String name;
+			final String error;
+			boolean unchanged;
+			int updatedRefs;
+			long newObjects;
+			long elapsed;
+			String fingerprint;
+
+			Result(String name, String error) {
+				this.name = name;
+				this.error = error;
+			}
+		}
+	}
+
+	@CommandMetaData(name = "refs", description = "Stream the refs of a repository")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd} myRepo.git", description = "List the refs of myRepo.git and count them by namespace"),
+			@UsageExample(syntax = "${cmd} myRepo.git refs/tags/ci/", description = "List the refs of myRepo.git under refs/tags/ci/"),
+			@UsageExample(syntax = "${cmd} myRepo.git --summary --group 3", description = "Only count the refs of myRepo.git by three-level namespace"),
+	})
+	public static class ListRefs extends RepositoryCommand {
+
+		@Argument(index = 1, metaVar = "PREFIX", usage = "only the refs which start with this prefix")
+		protected String prefix;
+
+		@Option(name = "--summary", usage = "only print the counts by namespace")
+		protected boolean summary;
+
+		@Option(name = "--group", metaVar = "LEVELS", usage = "the number of name components which form a namespace")
+		protected int group = 2;
+
+		@Override
 		public void run() throws UnloggedFailure {
+			IGitblit gitblit = getContext().getGitblit();
+			UserModel user = getContext().getClient().getUser();
+			RepositoryModel repo = gitblit.getRepositoryModel(user, repository);
+			if (repo == null) {
+				throw new UnloggedFailure(1, String.format("Repository %s does not exist!", repository));
+			}
+			if (group < 1) {
+				throw new UnloggedFailure(1, "--group must be at least 1");
+			}
+
+			String start = StringUtils.isEmpty(prefix) ? Constants.R_REFS : prefix;
+			if (!start.startsWith(Constants.R_REFS)) {
+				start = Constants.R_REFS + start;
+			}
+
+			// namespace -> { refs, loose refs }, one entry per namespace
+			final Map<String, long[]> namespaces = new TreeMap<String, long[]>();
+			File gitDir = DiskUsage.getFolder(gitblit.getRepositoriesFolder(), repo.name);
+			try {
+				RefStream.walk(gitDir, start, new RefStream.Visitor() {
+
+					private long count;
+
+					private String lastNamespace = "";
+
+					private long[] counts;
+
+					@Override
+					public boolean visit(String name, String value, boolean symbolic, boolean loose) {
+						if (!summary) {
+							stdout.print(symbolic ? "ref: " + value : value);
+							stdout.print('\t');
+							stdout.println(name);
+							if (++count % 1000 == 0) {
+								stdout.flush();
+							}
+						}
+						// the refs arrive sorted, consecutive refs share a namespace
+						String namespace = namespace(name);
+						if (!namespace.equals(lastNamespace)) {
+							lastNamespace = namespace;
+							counts = namespaces.get(namespace);
+							if (counts == null) {
+								counts = new long[2];
+								namespaces.put(namespace, counts);
+							}
+						}
+						counts[0]++;
+						if (loose) {
+							counts[1]++;
+						}
+						return !stdout.checkError();
+					}
+				});
+			} catch (IOException e) {
+				log.error(String.format("Failed to read the refs of %s", repo.name), e);
+				throw new UnloggedFailure(1, String.format("Failed to read the refs of %s: %s", repo.name, e.getMessage()));
+			}
+
+			String[] headers = { "Namespace", "Refs", "Loose" };
+			Object[][] data = new Object[namespaces.size() + 1][];
+			long refs = 0;
+			long loose = 0;
+			int i = 0;
+			for (Map.Entry<String, long[]> entry : namespaces.entrySet()) {
+				long[] counts = entry.getValue();
+				data[i++] = new Object[] { entry.getKey(), counts[0], counts[1] };
+				refs += counts[0];
+				loose += counts[1];
+			}
+			data[i] = new Object[] { "total", refs, loose };
+			if (!summary) {
+				stdout.println();
+			}
+			stdout.println(FlipTable.of(headers, data, Borders.COLS));
+		}
+
+		protected String namespace(String name) {
+			int end = -1;
+			for (int i = 0; i < group; i++) {
+				int slash = name.indexOf('/', end + 1);
+				if (slash < 0) {
+					// the ref itself, not a namespace
+					return end < 0 ? name : name.substring(0, end);
+				}
+				end = slash;
+			}
+			return name.substring(0, end);
+		}
+	}
+
+	/* Commit activity */
+	@CommandMetaData(name = "activity", description = "Show the commit activity of repositories")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd}", description = "Show the commits of the last 30 days of every repository, most active first"),
+			@UsageExample(syntax = "${cmd} team/.* --since 1w --top 10", description = "Show the 10 most active repositories in the 'team' folder this week"),
+	})
+	public static class ShowActivity extends FilteredListCommand<Activity.Stats> {
+
+		private static final int MAX_THREADS = 16;
+
+		private static final int MAX_DAYS = 100 * 365;
+
+		@Option(name = "--since", metaVar = "PERIOD", usage = "the period, e.g. 30d, 4w, 6m or 1y (default: 30d)")
+		protected String since = "30d";
+
+		@Option(name = "--top", metaVar = "N", usage = "only show the N most active repositories")
+		protected int top;
+
+		@Option(name = "--threads", metaVar = "N", usage = "number of repositories walked concurrently, at most 16 (default: cores)")
+		protected int threads = Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors());
+
+		@Override
+		protected String getName(Activity.Stats stats) {
+			return stats.name;
+		}
+
+		@Override
+		protected List<Activity.Stats> getItems() throws UnloggedFailure {
+			if (threads < 1 || threads > MAX_THREADS) {
+				throw new UnloggedFailure(1, String.format("--threads must be between 1 and %d", MAX_THREADS));
+			}
+			final int days = toDays(since);
+			final IGitblit gitblit = getContext().getGitblit();
+			UserModel user = getContext().getClient().getUser();
+
+			List<String> names = new ArrayList<String>();
+			for (String name : getFilter().selectSorted(RepositoryNames.getSorted(gitblit))) {
+				RepositoryModel r = gitblit.getRepositoryModel(user, name);
+				if (r != null && r.hasCommits) {
+					names.add(r.name);
+				}
+			}
+
+			List<Activity.Stats> list = new ArrayList<Activity.Stats>();
+			if (names.isEmpty()) {
+				return list;
+			}
+			ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, names.size())));
+			List<Future<Activity.Stats>> futures = new ArrayList<Future<Activity.Stats>>();
+			try {
+				for (final String name : names) {
+					futures.add(executor.submit(new Callable<Activity.Stats>() {
+						@Override
+						public Activity.Stats call() throws IOException {
+							Repository db = gitblit.getRepository(name);
+							if (db == null) {
+								return null;
+							}
+							try {
+								return Activity.get(name, db, days);
+							} finally {
+								db.close();
+							}
+						}
+					}));
+				}
+				for (int i = 0; i < futures.size(); i++) {
+					try {
+						Activity.Stats stats = futures.get(i).get();
+						if (stats != null) {
+							list.add(stats);
+						}
+					} catch (ExecutionException e) {
+						log.error(String.format("Failed to walk the history of %s", names.get(i)), e.getCause());
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new UnloggedFailure(1, "Interrupted while walking repositories");
+			} finally {
+				executor.shutdownNow();
+			}
 
-			RepositoryModel r = getRepository(true);
+			Collections.sort(list, new Comparator<Activity.Stats>() {
+				@Override
+				public int compare(Activity.Stats a, Activity.Stats b) {
+					if (a.commits != b.commits) {
+						return a.commits < b.commits ? 1 : -1;
+					}
+					return a.name.compareToIgnoreCase(b.name);
+				}
+			});
+			if (top > 0 && list.size() > top) {
+				list = new ArrayList<Activity.Stats>(list.subList(0, top));
+			}
+			return list;
+		}
 
-			if (!getContext().getClient().getUser().canAdmin(r)) {
-				throw new UnloggedFailure(1,  String.format("Sorry, you do not have permission to see the %s settings.", repository));
+		/**
+		 * Parses a period of days, weeks, months (30 days) or years, of at
+		 * most 100 years.
+		 */
+		protected int toDays(String period) throws UnloggedFailure {
+			String p = period.trim().toLowerCase();
+			int unit = 1;
+			if (p.endsWith("d")) {
+				p = p.substring(0, p.length() - 1);
+			} else if (p.endsWith("w")) {
+				unit = 7;
+				p = p.substring(0, p.length() - 1);
+			} else if (p.endsWith("m")) {
+				unit = 30;
+				p = p.substring(0, p.length() - 1);
+			} else if (p.endsWith("y")) {
+				unit = 365;
+				p = p.substring(0, p.length() - 1);
+			}
+			try {
+				int n = Integer.parseInt(p);
+				if (n > 0 && n <= MAX_DAYS / unit) {
+					return n * unit;
+				}
+			} catch (NumberFormatException e) {
+				// fall through
+			}
+			throw new UnloggedFailure(1, String.format("Invalid period %s", period));
+		}
+
+		@Override
+		protected void asTable(List<Activity.Stats> list) {
+			String[] headers;
+			if (verbose) {
+				String[] h = { "Repository", "Commits", "Active Days", "Last Commit", "Cached" };
+				headers = h;
+			} else {
+				String[] h = { "Repository", "Commits", "Active Days", "Last Commit" };
+				headers = h;
+			}
+			Object[][] data = new Object[list.size()][];
+			for (int i = 0; i < list.size(); i++) {
+				Activity.Stats a = list.get(i);
+				Object[] row = new Object[headers.length];
+				row[0] = a.name;
+				row[1] = a.commits;
+				row[2] = a.activeDays;
+				row[3] = a.lastCommit == null ? "" : formatDate(a.lastCommit);
+				if (verbose) {
+					row[4] = a.cached ? "Y" : "";
+				}
+				data[i] = row;
+			}
+			stdout.println(FlipTable.of(headers, data, Borders.BODY_HCOLS));
+		}
+
+		@Override
+		protected void asTabbed(List<Activity.Stats> list) {
+			for (Activity.Stats a : list) {
+				outTabbed(a.name, a.commits, a.activeDays, a.lastCommit == null ? "" : formatDate(a.lastCommit));
 			}
+		}
+	}
+
+	/* Pack statistics */
+	@CommandMetaData(name = "packstats", description = "Show the pack statistics of repositories")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd} myRepo.git", description = "Show the packs of myRepo.git"),
+			@UsageExample(syntax = "${cmd} myRepo.git --depth", description = "Also show the delta chain depths of the packs of myRepo.git"),
+			@UsageExample(syntax = "${cmd} --all", description = "Show the pack totals of every repository"),
+	})
+	public static class ShowPackStats extends FilteredListCommand<PackStats.Pack> {
+
+		@Option(name = "--all", usage = "show one row of totals for every matching repository")
+		protected boolean all;
+
+		@Option(name = "--depth", usage = "compute the delta chain depths, reads the entry header of every object")
+		protected boolean depth;
 
+		@Override
+		protected String getName(PackStats.Pack pack) {
+			return pack.name;
+		}
+
+		@Override
+		protected List<PackStats.Pack> getItems() throws UnloggedFailure {
 			IGitblit gitblit = getContext().getGitblit();
+			UserModel user = getContext().getClient().getUser();
+			File root = gitblit.getRepositoriesFolder();
 
-			// fields
-			StringBuilder fb = new StringBuilder();
-			fb.append("Description    : ").append(toString(r.description)).append('\n');
-			fb.append("Origin         : ").append(toString(r.origin)).append('\n');
-			fb.append("Default Branch : ").append(toString(r.HEAD)).append('\n');
-			fb.append('\n');
-			fb.append("GC Period    : ").append(r.gcPeriod).append('\n');
-			fb.append("GC Threshold : ").append(r.gcThreshold).append('\n');
-			fb.append('\n');
-			fb.append("Accept Tickets   : ").append(toString(r.acceptNewTickets)).append('\n');
-			fb.append("Accept Patchsets : ").append(toString(r.acceptNewPatchsets)).append('\n');
-			fb.append("Require Approval : ").append(toString(r.requireApproval)).append('\n');
-			fb.append("Merge To         : ").append(toString(r.mergeTo)).append('\n');
-			fb.append('\n');
-			fb.append("Incremental push tags    : ").append(toString(r.useIncrementalPushTags)).append('\n');
-			fb.append("Show remote branches     : ").append(toString(r.showRemoteBranches)).append('\n');
-			fb.append("Skip size calculations   : ").append(toString(r.skipSizeCalculation)).append('\n');
-			fb.append("Skip summary metrics     : ").append(toString(r.skipSummaryMetrics)).append('\n');
-			fb.append("Max activity commits     : ").append(r.maxActivityCommits).append('\n');
-			fb.append("Author metric exclusions : ").append(toString(r.metricAuthorExclusions)).append('\n');
-			fb.append("Commit Message Renderer  : ").append(r.commitMessageRenderer).append('\n');
-			fb.append("Mailing Lists            : ").append(toString(r.mailingLists)).append('\n');
-			fb.append('\n');
-			fb.append("Access Restriction    : ").append(r.accessRestriction).append('\n');
-			fb.append("Authorization Control : ").append(r.authorizationControl).append('\n');
-			fb.append('\n');
-			fb.append("Is Frozen        : ").append(toString(r.isFrozen)).append('\n');
-			fb.append("Allow Forks      : ").append(toString(r.allowForks)).append('\n');
-			fb.append("Verify Committer : ").append(toString(r.verifyCommitter)).append('\n');
-			fb.append('\n');
-			fb.append("Federation Strategy : ").append(r.federationStrategy).append('\n');
-			fb.append("Federation Sets     : ").append(toString(r.federationSets)).append('\n');
-			fb.append('\n');
-			fb.append("Indexed Branches : ").append(toString(r.indexedBranches)).append('\n');
-			fb.append('\n');
-			fb.append("Pre-Receive Scripts  : ").append(toString(r.preReceiveScripts)).append('\n');
-			fb.append("           inherited : ").append(toString(gitblit.getPreReceiveScriptsInherited(r))).append('\n');
-			fb.append("Post-Receive Scripts : ").append(toString(r.postReceiveScripts)).append('\n');
-			fb.append("           inherited : ").append(toString(gitblit.getPostReceiveScriptsInherited(r))).append('\n');
-			String fields = fb.toString();
+			if (!all) {
+				if (filters.size() != 1) {
+					throw new UnloggedFailure(1, "Specify one repository, or --all");
+				}
+				String name = filters.get(0);
+				RepositoryModel repo = gitblit.getRepositoryModel(user, name);
+				if (repo == null) {
+					throw new UnloggedFailure(1, String.format("Repository %s does not exist!", name));
+				}
+				return read(root, repo.name);
+			}
 
-			// owners
-			String owners;
-			if (r.owners.isEmpty()) {
-				owners = FlipTable.EMPTY;
-			} else {
-				String[] pheaders = { "Account", "Name" };
-				Object [][] pdata = new Object[r.owners.size()][];
-				for (int i = 0; i < r.owners.size(); i++) {
-					String owner = r.owners.get(i);
-					UserModel u = gitblit.getUserModel(owner);
-					pdata[i] = new Object[] { owner, u == null ? "" : u.getDisplayName() };
+			List<PackStats.Pack> list = new ArrayList<PackStats.Pack>();
+			for (String name : getFilter().selectSorted(RepositoryNames.getSorted(gitblit))) {
+				if (gitblit.getRepositoryModel(user, name) != null) {
+					list.add(PackStats.summarize(name, read(root, name)));
 				}
-				owners = FlipTable.of(pheaders, pdata, Borders.COLS);
 			}
+			return list;
+		}
 
-			// team permissions
-			List<RegistrantAccessPermission> tperms = gitblit.getTeamAccessPermissions(r);
-			String tpermissions;
-			if (tperms.isEmpty()) {
-				tpermissions = FlipTable.EMPTY;
-			} else {
-				String[] pheaders = { "Team", "Permission", "Type" };
-				Object [][] pdata = new Object[tperms.size()][];
-				for (int i = 0; i < tperms.size(); i++) {
-					RegistrantAccessPermission ap = tperms.get(i);
-					pdata[i] = new Object[] { ap.registrant, ap.permission, ap.permissionType };
+		/**
+		 * Reads the packs of the repository.  A pack which can not be read
+		 * is listed with its error.
+		 */
+		protected List<PackStats.Pack> read(File root, String name) {
+			File packs = new File(DiskUsage.getFolder(root, name), "objects/pack");
+			return PackStats.read(packs, depth);
+		}
+
+		protected boolean hasErrors(List<PackStats.Pack> list) {
+			for (PackStats.Pack p : list) {
+				if (p.error != null) {
+					return true;
 				}
-				tpermissions = FlipTable.of(pheaders, pdata, Borders.COLS);
 			}
+			return false;
+		}
 
-			// user permissions
-			List<RegistrantAccessPermission> uperms = gitblit.getUserAccessPermissions(r);
-			String upermissions;
-			if (uperms.isEmpty()) {
-				upermissions = FlipTable.EMPTY;
+		@Override
+		protected void asTable(List<PackStats.Pack> list) {
+			ByteFormat byteFormat = new ByteFormat();
+			List<String> headers = new ArrayList<String>();
+			if (all) {
+				headers.addAll(Arrays.asList("Repository", "Packs"));
 			} else {
-				String[] pheaders = { "Account", "Name", "Permission", "Type", "Source", "Mutable" };
-				Object [][] pdata = new Object[uperms.size()][];
-				for (int i = 0; i < uperms.size(); i++) {
-					RegistrantAccessPermission ap = uperms.get(i);
-					String name = "";
-					try {
-						String dn = gitblit.getUserModel(ap.registrant).displayName;
-						if (dn != null) {
-							name = dn;
-						}
-					} catch (Exception e) {
-					}
-					pdata[i] = new Object[] { ap.registrant, name, ap.permission, ap.permissionType, ap.source, ap.mutable ? "Y":"" };
+				headers.addAll(Arrays.asList("Pack", "Index", "Keep"));
+			}
+			headers.addAll(Arrays.asList("Objects", "Size", "Bitmaps"));
+			if (depth) {
+				headers.addAll(Arrays.asList("Deltas", "Max Depth", "Avg Depth"));
+			}
+			boolean errors = hasErrors(list);
+			if (errors) {
+				headers.add("Error");
+			}
+
+			Object[][] data = new Object[list.size()][];
+			for (int i = 0; i < list.size(); i++) {
+				PackStats.Pack p = list.get(i);
+				List<Object> row = new ArrayList<Object>();
+				if (all) {
+					row.add(p.name);
+					row.add(p.packs);
+				} else {
+					row.add(p.name);
+					row.add("v" + p.indexVersion);
+					row.add(p.keep ? "keep" : "");
+				}
+				row.add(p.objects);
+				row.add(byteFormat.format(p.size));
+				row.add(p.bitmaps < 0 ? FlipTable.EMPTY : p.bitmaps);
+				if (depth) {
+					row.add(p.deltas < 0 ? FlipTable.EMPTY : p.deltas);
+					row.add(p.maxDepth);
+					row.add(String.format("%.1f", p.averageDepth));
 				}
-				upermissions = FlipTable.of(pheaders, pdata, Borders.COLS);
+				if (errors) {
+					row.add(p.error == null ? FlipTable.EMPTY : p.error);
+				}
+				data[i] = row.toArray();
 			}
+			stdout.println(FlipTable.of(headers.toArray(new String[headers.size()]), data, Borders.BODY_HCOLS));
+		}
 
-			// assemble table
-			String title = r.name;
-			String [] headers = new String[] { title };
-			String[][] data = new String[8][];
-			data[0] = new String [] { "FIELDS" };
-			data[1] = new String [] {fields };
-			data[2] = new String [] { "OWNERS" };
-			data[3] = new String [] { owners };
-			data[4] = new String [] { "TEAM PERMISSIONS" };
-			data[5] = new String [] { tpermissions };
-			data[6] = new String [] { "USER PERMISSIONS" };
-			data[7] = new String [] { upermissions };
-			stdout.println(FlipTable.of(headers, data));
+		@Override
+		protected void asTabbed(List<PackStats.Pack> list) {
+			boolean errors = hasErrors(list);
+			for (PackStats.Pack p : list) {
+				List<Object> row = new ArrayList<Object>();
+				row.add(p.name);
+				if (all) {
+					row.add(p.packs);
+				} else {
+					row.add(p.indexVersion);
+					row.add(p.keep);
+				}
+				row.add(p.objects);
+				row.add(p.size);
+				row.add(p.bitmaps);
+				if (depth) {
+					row.add(p.deltas);
+					row.add(p.maxDepth);
+					row.add(String.format("%.2f", p.averageDepth));
+				}
+				if (errors) {
+					row.add(p.error == null ? "" : p.error);
+				}
+				outTabbed(row.toArray());
+			}
 		}
+	}
 
-		protected String toString(String val) {
-			if (val == null) {
-				return "";
+	/* Disk usage of repositories */
+	@CommandMetaData(name = "du", description = "Show the disk usage of repositories")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd}", description = "Show the disk usage of all repositories"),
+			@UsageExample(syntax = "${cmd} mirror/.* --sort total", description = "Show the disk usage of the mirrors, largest first"),
+			@UsageExample(syntax = "${cmd} --sort loose -t", description = "Write tab-separated byte counts, most loose objects first"),
+	})
+	public static class RepositoryUsage extends FilteredListCommand<DiskUsage.Usage> {
+
+		@Option(name = "--sort", metaVar = "name|total|pack|loose|refs|lfs|other", usage = "sort by name or by the bytes of an area (largest first)")
+		protected String sort = "name";
+
+		@Option(name = "--bytes", aliases = { "-b" }, usage = "show sizes in bytes")
+		protected boolean bytes;
+
+		@Override
+		protected String getName(DiskUsage.Usage u) {
+			return u.name;
+		}
+
+		@Override
+		protected List<DiskUsage.Usage> getItems() throws UnloggedFailure {
+			final DiskUsage.Area area;
+			if ("name".equals(sort) || "total".equals(sort)) {
+				area = null;
+			} else {
+				try {
+					area = DiskUsage.Area.valueOf(sort);
+				} catch (IllegalArgumentException e) {
+					throw new UnloggedFailure(1, String.format("Unknown sort order %s", sort));
+				}
 			}
-			return val;
+
+			IGitblit gitblit = getContext().getGitblit();
+			UserModel user = getContext().getClient().getUser();
+			List<String> names = new ArrayList<String>();
+			for (String name : getFilter().selectSorted(RepositoryNames.getSorted(gitblit))) {
+				RepositoryModel r = gitblit.getRepositoryModel(user, name);
+				if (r != null) {
+					names.add(name);
+				}
+			}
+
+			List<DiskUsage.Usage> list = DiskUsage.measure(gitblit.getRepositoriesFolder(), names);
+			if (!"name".equals(sort)) {
+				Collections.sort(list, new Comparator<DiskUsage.Usage>() {
+					@Override
+					public int compare(DiskUsage.Usage a, DiskUsage.Usage b) {
+						long x = area == null ? a.getTotal() : a.get(area);
+						long y = area == null ? b.getTotal() : b.get(area);
+						return x < y ? 1 : (x == y ? 0 : -1);
+					}
+				});
+			}
+			return list;
 		}
 
-		protected String toString(Collection<?> collection) {
-			if (collection == null) {
-				return "";
+		@Override
+		protected void asTable(List<DiskUsage.Usage> list) {
+			ByteFormat byteFormat = new ByteFormat();
+			String[] headers;
+			if (verbose) {
+				String[] h = { "Repository", "Pack", "Loose", "Refs", "LFS", "Other", "Total", "Listed" };
+				headers = h;
+			} else {
+				String[] h = { "Repository", "Pack", "Loose", "Refs", "LFS", "Other", "Total" };
+				headers = h;
 			}
-			return Joiner.on(", ").join(collection);
+
+			DiskUsage.Area[] areas = DiskUsage.Area.values();
+			long[] totals = new long[areas.length + 1];
+			int listed = 0;
+			int directories = 0;
+			Object[][] data = new Object[list.size() + 1][];
+			for (int i = 0; i < list.size(); i++) {
+				DiskUsage.Usage u = list.get(i);
+				Object[] row = new Object[headers.length];
+				row[0] = u.name;
+				for (int j = 0; j < areas.length; j++) {
+					row[j + 1] = format(byteFormat, u.get(areas[j]));
+					totals[j] += u.get(areas[j]);
+				}
+				row[areas.length + 1] = format(byteFormat, u.getTotal());
+				totals[areas.length] += u.getTotal();
+				if (verbose) {
+					row[areas.length + 2] = String.format("%d/%d", u.getListed(), u.getDirectories());
+				}
+				listed += u.getListed();
+				directories += u.getDirectories();
+				data[i] = row;
+			}
+
+			Object[] row = new Object[headers.length];
+			row[0] = String.format("%d repositories", list.size());
+			for (int j = 0; j < totals.length; j++) {
+				row[j + 1] = format(byteFormat, totals[j]);
+			}
+			if (verbose) {
+				row[areas.length + 2] = String.format("%d/%d", listed, directories);
+			}
+			data[list.size()] = row;
+			stdout.println(FlipTable.of(headers, data, Borders.BODY_HCOLS));
 		}
 
-		protected String toString(boolean val) {
-			if (val) {
-				return "Y";
+		@Override
+		protected void asTabbed(List<DiskUsage.Usage> list) {
+			// tabbed output is for scripts, always write bytes
+			for (DiskUsage.Usage u : list) {
+				if (verbose) {
+					outTabbed(u.name, u.get(DiskUsage.Area.pack), u.get(DiskUsage.Area.loose),
+							u.get(DiskUsage.Area.refs), u.get(DiskUsage.Area.lfs), u.get(DiskUsage.Area.other),
+							u.getTotal(), u.getListed(), u.getDirectories());
+				} else {
+					outTabbed(u.name, u.get(DiskUsage.Area.pack), u.get(DiskUsage.Area.loose),
+							u.get(DiskUsage.Area.refs), u.get(DiskUsage.Area.lfs), u.get(DiskUsage.Area.other),
+							u.getTotal());
+				}
 			}
-			return "";
 		}
 
+		private String format(ByteFormat byteFormat, long value) {
+			return bytes ? Long.toString(value) : byteFormat.format(value);
+		}
 	}
 
 	/* List repositories */
 	@CommandMetaData(name = "list", aliases = { "ls" }, description = "List repositories")
-	@UsageExample(syntax = "${cmd} mirror/.* -v", description = "Verbose list of all repositories in the 'mirror' directory")
-	public static class ListRepositories extends ListFilterCommand<RepositoryModel> {
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd} mirror/.* -v", description = "Verbose list of all repositories in the 'mirror' directory"),
+			@UsageExample(syntax = "${cmd} --stream --offset 1000 --limit 500", description = "Write the third page of 500 repositories as they are read"),
+			@UsageExample(syntax = "${cmd} --sort size --top 20", description = "List the 20 largest repositories"),
+	})
+	public static class ListRepositories extends FilteredListCommand<RepositoryModel> {
+
+		@Option(name = "--stream", aliases = { "-s" }, usage = "write tabbed rows as they are read instead of rendering a table")
+		protected boolean stream;
+
+		@Option(name = "--offset", metaVar = "N", usage = "skip the first N matching repositories")
+		protected int offset;
+
+		@Option(name = "--limit", metaVar = "N", usage = "list at most N repositories")
+		protected int limit;
+
+		@Option(name = "--sort", metaVar = "name|size|lastChange", usage = "sort by name, by size (largest first) or by last change (newest first)")
+		protected SortBy sort;
+
+		@Option(name = "--top", metaVar = "N", usage = "list the first N repositories of the sort order (default sort: size)")
+		protected int top;
+
+		protected enum SortBy {
+			name, size, lastChange
+		}
+
+		private ByteFormat byteFormat;
 
 		@Override
-		protected List<RepositoryModel> getItems() {
+		public void run() throws UnloggedFailure {
+			if (stream) {
+				collect(null);
+				stdout.flush();
+			} else {
+				super.run();
+			}
+		}
+
+		@Override
+		protected List<RepositoryModel> getItems() throws UnloggedFailure {
+			List<RepositoryModel> repositories = new ArrayList<RepositoryModel>();
+			collect(repositories);
+			return repositories;
+		}
+
+		/**
+		 * Reads the matching repositories one model at a time, honoring the
+		 * offset and limit.  If the list is null, each repository is written
+		 * to stdout as soon as it is read.
+		 *
+		 * @param list
+		 */
+		protected void collect(List<RepositoryModel> list) throws UnloggedFailure {
+			if (limit < 0 || offset < 0) {
+				throw new UnloggedFailure(1, "--limit and --offset must not be negative");
+			}
+			if (top < 0) {
+				throw new UnloggedFailure(1, "--top must not be negative");
+			}
+			if (top > 0 && (offset > 0 || limit > 0)) {
+				throw new UnloggedFailure(1, "--top can not be combined with --offset or --limit");
+			}
+			if (sort != null || top > 0) {
+				collectSorted(list);
+				return;
+			}
+
 			IGitblit gitblit = getContext().getGitblit();
 			UserModel user = getContext().getClient().getUser();
-			List<RepositoryModel> repositories = gitblit.getRepositoryModels(user);
-			return repositories;
+
+			int skipped = 0;
+			int count = 0;
+			for (String name : getFilter().selectSorted(RepositoryNames.getSorted(gitblit))) {
+				if (limit > 0 && count >= limit) {
+					break;
+				}
+				RepositoryModel r = getVisibleRepository(user, name);
+				if (r == null) {
+					continue;
+				}
+				if (skipped < offset) {
+					skipped++;
+					continue;
+				}
+				emit(list, r, ++count, -1);
+			}
+		}
+
+		/**
+		 * Reads the matching repositories and emits them in the requested
+		 * order.  When the number of rows is bounded by --top or --limit, only
+		 * that many repositories are retained in a heap while reading, so the
+		 * full list is never sorted.
+		 *
+		 * @param list
+		 */
+		protected void collectSorted(List<RepositoryModel> list) throws UnloggedFailure {
+			IGitblit gitblit = getContext().getGitblit();
+			UserModel user = getContext().getClient().getUser();
+
+			final SortBy by = sort == null ? SortBy.size : sort;
+			Comparator<Ranked> order = new Comparator<Ranked>() {
+				@Override
+				public int compare(Ranked a, Ranked b) {
+					if (by == SortBy.name) {
+						return a.model.name.compareToIgnoreCase(b.model.name);
+					}
+					// largest or newest first
+					return a.key < b.key ? 1 : (a.key == b.key ? 0 : -1);
+				}
+			};
+
+			// a bound beyond any repository count is no bound
+			long rows = top > 0 ? top : (limit > 0 ? (long) offset + limit : 0);
+			int bound = rows < Integer.MAX_VALUE ? (int) rows : 0;
+			Collection<Ranked> selected;
+			PriorityQueue<Ranked> heap = null;
+			if (bound > 0) {
+				// the head of the heap is the repository which would be listed last
+				heap = new PriorityQueue<Ranked>(Math.min(bound, 1024) + 1, Collections.reverseOrder(order));
+				selected = heap;
+			} else {
+				selected = new ArrayList<Ranked>();
+			}
+
+			for (String name : getFilter().selectSorted(RepositoryNames.getSorted(gitblit))) {
+				RepositoryModel r = getVisibleRepository(user, name);
+				if (r == null) {
+					continue;
+				}
+				long key = 0;
+				if (by == SortBy.size) {
+					key = gitblit.calculateSize(r);
+				} else if (by == SortBy.lastChange) {
+					key = r.lastChange == null ? 0 : r.lastChange.getTime();
+				}
+				selected.add(new Ranked(r, key));
+				if (heap != null && heap.size() > bound) {
+					heap.poll();
+				}
+			}
+
+			List<Ranked> ranked = new ArrayList<Ranked>(selected);
+			Collections.sort(ranked, order);
+			int count = 0;
+			for (int i = offset; i < ranked.size(); i++) {
+				Ranked rr = ranked.get(i);
+				emit(list, rr.model, ++count, by == SortBy.size ? rr.key : -1);
+			}
+		}
+
+		/**
+		 * Returns the repository model if the user may see it in a list.
+		 */
+		protected RepositoryModel getVisibleRepository(UserModel user, String name) {
+			RepositoryModel r = getContext().getGitblit().getRepositoryModel(user, name);
+			if (r == null) {
+				return null;
+			}
+			if (!r.hasCommits) {
+				// only list empty repositories that the user or anyone can push to
+				if (!UserModel.ANONYMOUS.canPush(r) && (user == null || !user.canPush(r))) {
+					return null;
+				}
+			}
+			return r;
+		}
+
+		/**
+		 * Adds the repository to the list or writes it to stdout.
+		 *
+		 * @param list
+		 * @param r
+		 * @param count
+		 *            the 1-based row number
+		 * @param bytes
+		 *            the size of the repository, if already known, or -1
+		 */
+		protected void emit(List<RepositoryModel> list, RepositoryModel r, int count, long bytes) {
+			IGitblit gitblit = getContext().getGitblit();
+			if (byteFormat == null) {
+				byteFormat = new ByteFormat();
+			}
+			// a streamed row only prints the size when verbose, a list may be
+			// rendered as a table or as JSON
+			boolean printed = list != null || verbose;
+			if (bytes >= 0) {
+				r.size = byteFormat.format(bytes);
+			} else if (printed && !r.skipSizeCalculation && gitblit.getSettings().getBoolean(Keys.web.showRepositorySizes, true)) {
+				r.size = byteFormat.format(gitblit.calculateSize(r));
+			}
+
+			if (list == null) {
+				outRow(r);
+				if (count % 100 == 0) {
+					stdout.flush();
+				}
+			} else {
+				list.add(r);
+			}
+		}
+
+		/**
+		 * A repository and its numeric sort key.
+		 */
+		private static class Ranked {
+			final RepositoryModel model;
+			final long key;
+
+			Ranked(RepositoryModel model, long key) {
+				this.model = model;
+				this.key = key;
+			}
 		}
 
 		@Override
-		protected boolean matches(String filter, RepositoryModel r) {
-			return r.name.matches(filter);
+		protected String getName(RepositoryModel r) {
+			return r.name;
 		}
 
 		@Override
@@ -708,27 +3690,29 @@ public class RepositoriesDispatcher extends DispatchCommand {
 
 		@Override
 		protected void asTabbed(List<RepositoryModel> list) {
-			if (verbose) {
-				for (RepositoryModel r : list) {
-					String lm = formatDate(r.lastChange);
-					String owners = "";
-					if (!ArrayUtils.isEmpty(r.owners)) {
-						owners = Joiner.on(",").join(r.owners);
-					}
-					String size = r.size;
-					if (!r.hasCommits) {
-						lm = "";
-						size = "(empty)";
-					}
+			for (RepositoryModel r : list) {
+				outRow(r);
+			}
+		}
 
-					outTabbed(r.name, r.description == null ? "" : r.description,
-							owners, lm, size);
+		protected void outRow(RepositoryModel r) {
+			if (verbose) {
+				String lm = formatDate(r.lastChange);
+				String owners = "";
+				if (!ArrayUtils.isEmpty(r.owners)) {
+					owners = Joiner.on(",").join(r.owners);
 				}
-			} else {
-				for (RepositoryModel r : list) {
-					outTabbed(r.name);
+				String size = r.size;
+				if (!r.hasCommits) {
+					lm = "";
+					size = "(empty)";
 				}
+
+				outTabbed(r.name, r.description == null ? "" : r.description,
+						owners, lm, size);
+			} else {
+				outTabbed(r.name);
 			}
 		}
 	}
-}
\ No newline at end of file
+}
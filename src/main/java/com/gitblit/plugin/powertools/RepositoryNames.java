@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.gitblit.manager.IGitblit;
+
+/**
+ * The repository names of Gitblit sorted case-insensitively, so that a
+ * {@link NameFilter} can select from them with
+ * {@link NameFilter#selectSorted(List)}.
+ *
+ * Gitblit lists the root folder first, its list can not be binary searched.
+ * The sorted copy is kept until the size or hash of the repository list of
+ * Gitblit changes, i.e. until a repository is created, renamed or deleted.
+ */
+public class RepositoryNames {
+
+	private static long fingerprint;
+
+	private static List<String> sorted;
+
+	/**
+	 * Returns the repository names sorted with
+	 * String.CASE_INSENSITIVE_ORDER.
+	 *
+	 * @param gitblit
+	 * @return an unmodifiable list of names
+	 */
+	public static List<String> getSorted(IGitblit gitblit) {
+		List<String> names = gitblit.getRepositoryList();
+		synchronized (RepositoryNames.class) {
+			if (sorted != null && fingerprint(names) == fingerprint) {
+				return sorted;
+			}
+		}
+		List<String> list = new ArrayList<String>(names);
+		Collections.sort(list, String.CASE_INSENSITIVE_ORDER);
+		list = Collections.unmodifiableList(list);
+		synchronized (RepositoryNames.class) {
+			fingerprint = fingerprint(names);
+			sorted = list;
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the size and hash of a list of names, which changes when a name
+	 * is added, removed or renamed.
+	 */
+	static long fingerprint(List<String> names) {
+		return ((long) names.size() << 32) ^ (names.hashCode() & 0xffffffffL);
+	}
+}
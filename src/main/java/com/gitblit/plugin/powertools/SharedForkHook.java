@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.transport.ReceiveCommand.Result;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ro.fortsoft.pf4j.Extension;
+
+import com.gitblit.extensions.ReceiveHook;
+import com.gitblit.git.GitblitReceivePack;
+import com.gitblit.manager.IGitblit;
+import com.gitblit.models.RepositoryModel;
+import com.gitblit.servlet.GitblitContext;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * Anchors the objects which a push into a shared fork may borrow.
+ *
+ * The receive pack of a shared fork advertises the refs of the origin as
+ * .have lines, so the client omits every object reachable from them.  Before
+ * the push is accepted those tips are anchored in the origin, otherwise a
+ * later rewind and GC of the origin could drop objects which only the new
+ * history of the fork references.  The push is refused if they cannot be
+ * anchored.
+ */
+@Extension
+public class SharedForkHook extends ReceiveHook {
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+
+	@Override
+	public void onPreReceive(GitblitReceivePack receivePack, Collection<ReceiveCommand> commands) {
+		Repository fork = receivePack.getRepository();
+		if (!SharedForks.isShared(fork)) {
+			return;
+		}
+		RepositoryModel repo = receivePack.getRepositoryModel();
+		if (StringUtils.isEmpty(repo.originRepository)) {
+			reject(commands, String.format("%s borrows objects from an unknown repository", repo.name));
+			return;
+		}
+		IGitblit gitblit = GitblitContext.getManager(IGitblit.class);
+		Repository origin = gitblit.getRepository(repo.originRepository);
+		if (origin == null) {
+			reject(commands, String.format("%s borrows objects from %s which is missing", repo.name, repo.originRepository));
+			return;
+		}
+		try {
+			SharedForks.protect(origin, fork, receivePack.getAdvertisedObjects());
+		} catch (IOException e) {
+			log.error(String.format("Failed to anchor the objects which %s borrows from %s", repo.name, repo.originRepository), e);
+			reject(commands, String.format("failed to anchor the objects borrowed from %s", repo.originRepository));
+		} finally {
+			origin.close();
+		}
+	}
+
+	@Override
+	public void onPostReceive(GitblitReceivePack receivePack, Collection<ReceiveCommand> commands) {
+	}
+
+	private static void reject(Collection<ReceiveCommand> commands, String reason) {
+		for (ReceiveCommand cmd : commands) {
+			if (cmd.getResult() == Result.NOT_ATTEMPTED) {
+				cmd.setResult(Result.REJECTED_OTHER_REASON, reason);
+			}
+		}
+	}
+}
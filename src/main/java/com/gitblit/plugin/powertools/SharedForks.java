@@ -0,0 +1,562 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
+import org.eclipse.jgit.internal.storage.file.RefDirectory;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.ObjectWalk;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.util.FileUtils;
+
+import com.gitblit.manager.IGitblit;
+import com.gitblit.models.RepositoryModel;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * Utility methods for forks which share the objects of their origin.
+ *
+ * A shared fork lists the object directory of its origin in
+ * objects/info/alternates, as a path relative to its own object directory.
+ * Objects pushed to the fork are written to the fork only, but the fork
+ * depends on the origin keeping the objects which it borrows.
+ *
+ * The origin records its shared forks in its config (powertools.sharedFork)
+ * so that they can be found without loading every repository.  While it has
+ * shared forks, the origin keeps packed anchor refs under
+ * refs/powertools/shared/ which reach every object that a fork borrows, so
+ * that no garbage collection, including Gitblit's scheduled GC, drops it
+ * after the origin is rewound.
+ * The branches and tags of the origin are anchored when a fork is created.
+ * A push to a fork may omit the objects which the origin advertised through
+ * the alternates, so {@link SharedForkHook} anchors the advertised tips of
+ * the origin before the push is accepted.
+ *
+ * Gitblit itself does not know about the shared forks, deleting or renaming
+ * the origin from the web UI breaks its forks.  Shared forks must therefore
+ * be enabled by the administrator.
+ *
+ * Settings:
+ *   powertools.allowSharedForks (default: false)
+ */
+public class SharedForks {
+
+	private static final String ALTERNATES = "info/alternates";
+
+	private static final String SECTION = "powertools";
+
+	private static final String SHARED_FORK = "sharedFork";
+
+	private static final String ANCHORS = "refs/powertools/shared/";
+
+	/**
+	 * Returns true if the administrator has enabled shared forks.
+	 */
+	public static boolean isAllowed(IGitblit gitblit) {
+		return gitblit.getSettings().getBoolean("powertools.allowSharedForks", false);
+	}
+
+	/**
+	 * Shares the objects of the origin with the empty fork and copies the
+	 * branches, tags and HEAD of the origin, as a clone would.
+	 *
+	 * @param origin
+	 * @param fork
+	 * @param forkName
+	 *            the name of the fork, recorded in the origin
+	 */
+	public static void share(Repository origin, Repository fork, String forkName) throws IOException {
+		anchor(origin, getTips(origin));
+		List<String> forks = getForkList(origin);
+		forks.add(forkName);
+		setForkList(origin, forks);
+
+		File alternates = getAlternatesFile(fork);
+		FileUtils.mkdirs(alternates.getParentFile(), true);
+		write(alternates, getRelativePath(origin, fork) + "\n");
+
+		StoredConfig config = fork.getConfig();
+		config.setString("remote", "origin", "url", origin.getDirectory().toURI().toString());
+		config.setString("remote", "origin", "fetch", "+refs/heads/*:refs/remotes/origin/*");
+		config.save();
+
+		// the new fork must be reopened to see the objects of the origin
+		Repository db = new FileRepository(fork.getDirectory());
+		try {
+			BatchRefUpdate batch = db.getRefDatabase().newBatchUpdate();
+			batch.disableRefLog();
+			for (Ref ref : origin.getAllRefs().values()) {
+				if (ref.isSymbolic() || ref.getObjectId() == null) {
+					continue;
+				}
+				String name = ref.getName();
+				if (name.startsWith(Constants.R_HEADS) || name.startsWith(Constants.R_TAGS)) {
+					batch.addCommand(new ReceiveCommand(ObjectId.zeroId(), ref.getObjectId(), name));
+				}
+			}
+			execute(db, batch);
+
+			Ref head = origin.getRef(Constants.HEAD);
+			if (head != null && head.isSymbolic()) {
+				RefUpdate u = db.updateRef(Constants.HEAD);
+				u.disableRefLog();
+				u.link(head.getTarget().getName());
+			}
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Points the alternates of a shared fork at the current location of its
+	 * origin, e.g. after either repository has been moved.
+	 *
+	 * @param origin
+	 * @param fork
+	 */
+	public static void relink(Repository origin, Repository fork) throws IOException {
+		if (isShared(fork)) {
+			write(getAlternatesFile(fork), getRelativePath(origin, fork) + "\n");
+		}
+	}
+
+	/**
+	 * Relinks the shared forks of a renamed repository, or the renamed
+	 * repository itself if it is a shared fork, and updates the fork names
+	 * recorded in the origin.  Gitblit has already renamed the origin of the
+	 * forks in their models.
+	 *
+	 * @param gitblit
+	 * @param oldName
+	 * @param repo
+	 *            the renamed repository
+	 */
+	public static void moved(IGitblit gitblit, String oldName, RepositoryModel repo) throws IOException {
+		Repository db = gitblit.getRepository(repo.name);
+		if (db == null) {
+			return;
+		}
+		try {
+			if (!StringUtils.isEmpty(repo.originRepository) && isShared(db)) {
+				Repository origin = gitblit.getRepository(repo.originRepository);
+				if (origin != null) {
+					try {
+						relink(origin, db);
+						List<String> forks = getForkList(origin);
+						remove(forks, oldName);
+						forks.add(repo.name);
+						setForkList(origin, forks);
+					} finally {
+						origin.close();
+					}
+				}
+			}
+			for (String name : getForkList(db)) {
+				Repository fork = gitblit.getRepository(name);
+				if (fork != null) {
+					try {
+						relink(db, fork);
+					} finally {
+						fork.close();
+					}
+				}
+			}
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Returns true if the repository borrows objects from another repository.
+	 */
+	public static boolean isShared(Repository repository) {
+		return repository instanceof FileRepository && getAlternatesFile(repository).exists();
+	}
+
+	/**
+	 * Returns true if the origin has recorded shared forks.
+	 */
+	public static boolean hasSharedForks(Repository origin) {
+		return !getForkList(origin).isEmpty();
+	}
+
+	/**
+	 * Returns the names of the forks which borrow objects from the origin.
+	 * Only the recorded forks are opened, forks which were deleted outside
+	 * powertools are forgotten.
+	 *
+	 * @param gitblit
+	 * @param origin
+	 * @return the names of the shared forks
+	 */
+	public static List<String> getSharedForks(IGitblit gitblit, Repository origin) throws IOException {
+		List<String> forks = getForkList(origin);
+		List<String> shared = new ArrayList<String>();
+		for (String name : forks) {
+			Repository fork = gitblit.getRepository(name);
+			if (fork == null) {
+				continue;
+			}
+			try {
+				if (isShared(fork)) {
+					shared.add(name);
+				}
+			} finally {
+				fork.close();
+			}
+		}
+		if (shared.size() < forks.size()) {
+			setForkList(origin, shared);
+		}
+		return shared;
+	}
+
+	/**
+	 * Forgets a fork which was deleted or no longer borrows objects from its
+	 * origin.  The anchors of the origin are deleted with its last shared
+	 * fork.
+	 *
+	 * @param gitblit
+	 * @param fork
+	 */
+	public static void forget(IGitblit gitblit, RepositoryModel fork) throws IOException {
+		if (StringUtils.isEmpty(fork.originRepository)) {
+			return;
+		}
+		Repository origin = gitblit.getRepository(fork.originRepository);
+		if (origin == null) {
+			return;
+		}
+		try {
+			List<String> forks = getForkList(origin);
+			if (remove(forks, fork.name)) {
+				setForkList(origin, forks);
+			}
+		} finally {
+			origin.close();
+		}
+	}
+
+	/**
+	 * Anchors the objects which the origin advertised to a push into its
+	 * shared fork, the pushed pack may depend on any of them.  An advertised
+	 * object which neither the origin nor the fork has any more was dropped
+	 * from the origin, the push must then be refused.
+	 *
+	 * @param origin
+	 * @param fork
+	 * @param advertised
+	 *            the objects advertised by the receive pack of the fork
+	 */
+	public static void protect(Repository origin, Repository fork, Collection<ObjectId> advertised) throws IOException {
+		List<ObjectId> borrowed = new ArrayList<ObjectId>();
+		for (ObjectId id : advertised) {
+			if (origin.hasObject(id)) {
+				borrowed.add(id);
+			} else if (!fork.hasObject(id)) {
+				throw new IOException(String.format("The origin no longer has the advertised object %s", id.name()));
+			}
+		}
+		anchor(origin, borrowed);
+	}
+
+	private static List<String> getForkList(Repository origin) {
+		return new ArrayList<String>(Arrays.asList(origin.getConfig().getStringList(SECTION, null, SHARED_FORK)));
+	}
+
+	private static void setForkList(Repository origin, List<String> forks) throws IOException {
+		StoredConfig config = origin.getConfig();
+		if (forks.isEmpty()) {
+			config.unset(SECTION, null, SHARED_FORK);
+			release(origin);
+		} else {
+			config.setStringList(SECTION, null, SHARED_FORK, forks);
+		}
+		config.save();
+	}
+
+	private static boolean remove(List<String> forks, String name) {
+		for (Iterator<String> i = forks.iterator(); i.hasNext();) {
+			if (i.next().equalsIgnoreCase(name)) {
+				i.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the branch and tag tips of the origin, which a new fork
+	 * borrows.
+	 */
+	private static List<ObjectId> getTips(Repository origin) {
+		List<ObjectId> tips = new ArrayList<ObjectId>();
+		for (Ref ref : origin.getAllRefs().values()) {
+			String name = ref.getName();
+			if (ref.isSymbolic() || ref.getObjectId() == null
+					|| !(name.startsWith(Constants.R_HEADS) || name.startsWith(Constants.R_TAGS))) {
+				continue;
+			}
+			tips.add(ref.getObjectId());
+		}
+		return tips;
+	}
+
+	/**
+	 * Anchors the objects in the origin, so that they and everything they
+	 * reference stay reachable in the origin.  A commit which is already
+	 * reachable from an anchor is not anchored again, and the anchors of the
+	 * commits which a new anchor reaches are deleted, so there is about one
+	 * anchor per line of history.  The anchors are packed, they are not
+	 * kept as one loose file each.
+	 */
+	private static synchronized void anchor(Repository origin, Collection<ObjectId> ids) throws IOException {
+		Map<String, Ref> anchors = origin.getRefDatabase().getRefs(ANCHORS);
+		BatchRefUpdate batch = origin.getRefDatabase().newBatchUpdate();
+		batch.disableRefLog();
+		RevWalk rw = new RevWalk(origin);
+		try {
+			// the parents of each new commit carry the flag to every commit
+			// which it reaches
+			RevFlag reached = rw.newFlag("reached");
+			rw.carry(reached);
+			Map<RevCommit, Ref> anchored = new HashMap<RevCommit, Ref>();
+			for (Ref ref : anchors.values()) {
+				RevObject o = rw.parseAny(ref.getObjectId());
+				if (o instanceof RevCommit) {
+					rw.markUninteresting((RevCommit) o);
+					anchored.put((RevCommit) o, ref);
+				}
+			}
+			Set<RevCommit> commits = new HashSet<RevCommit>();
+			Set<String> names = new HashSet<String>(anchors.keySet());
+			for (ObjectId id : ids) {
+				if (anchors.containsKey(id.name())) {
+					continue;
+				}
+				RevObject o = rw.parseAny(id);
+				if (o instanceof RevCommit) {
+					RevCommit c = (RevCommit) o;
+					if (commits.add(c)) {
+						rw.markStart(c);
+						for (RevCommit p : c.getParents()) {
+							p.add(reached);
+						}
+					}
+				} else if (names.add(id.name())) {
+					batch.addCommand(new ReceiveCommand(ObjectId.zeroId(), id.copy(), ANCHORS + id.name()));
+				}
+			}
+			if (!commits.isEmpty()) {
+				// only the commits which no anchor reaches are walked
+				Set<RevCommit> unanchored = new HashSet<RevCommit>();
+				RevCommit c;
+				while ((c = rw.next()) != null) {
+					if (commits.contains(c)) {
+						unanchored.add(c);
+					}
+				}
+				for (RevCommit commit : commits) {
+					if (unanchored.contains(commit) && !commit.has(reached)) {
+						batch.addCommand(new ReceiveCommand(ObjectId.zeroId(), commit.copy(), ANCHORS + commit.name()));
+					}
+				}
+				for (Map.Entry<RevCommit, Ref> e : anchored.entrySet()) {
+					if (e.getKey().has(reached)) {
+						batch.addCommand(new ReceiveCommand(e.getValue().getObjectId(), ObjectId.zeroId(), e.getValue().getName()));
+					}
+				}
+			}
+		} finally {
+			rw.release();
+		}
+		execute(origin, batch);
+		pack(origin);
+	}
+
+	/**
+	 * Packs the loose anchors of the origin.
+	 */
+	private static void pack(Repository origin) throws IOException {
+		if (!(origin.getRefDatabase() instanceof RefDirectory)) {
+			return;
+		}
+		List<String> loose = new ArrayList<String>();
+		for (Ref ref : origin.getRefDatabase().getRefs(ANCHORS).values()) {
+			if (ref.getStorage() == Ref.Storage.LOOSE) {
+				loose.add(ref.getName());
+			}
+		}
+		if (!loose.isEmpty()) {
+			((RefDirectory) origin.getRefDatabase()).pack(loose);
+		}
+	}
+
+	/**
+	 * Deletes the anchors of the origin after its last shared fork is gone.
+	 */
+	private static synchronized void release(Repository origin) throws IOException {
+		BatchRefUpdate batch = origin.getRefDatabase().newBatchUpdate();
+		batch.disableRefLog();
+		for (Ref ref : origin.getRefDatabase().getRefs(ANCHORS).values()) {
+			batch.addCommand(new ReceiveCommand(ref.getObjectId(), ObjectId.zeroId(), ref.getName()));
+		}
+		execute(origin, batch);
+	}
+
+	private static void execute(Repository db, BatchRefUpdate batch) throws IOException {
+		if (batch.getCommands().isEmpty()) {
+			return;
+		}
+		RevWalk rw = new RevWalk(db);
+		try {
+			batch.execute(rw, NullProgressMonitor.INSTANCE);
+		} finally {
+			rw.release();
+		}
+		for (ReceiveCommand cmd : batch.getCommands()) {
+			if (cmd.getResult() != ReceiveCommand.Result.OK) {
+				throw new IOException(String.format("Failed to update %s: %s", cmd.getRefName(), cmd.getResult()));
+			}
+		}
+	}
+
+	/**
+	 * Returns the object directory of the origin relative to the object
+	 * directory of the fork, which survives moving the whole tree.
+	 */
+	private static String getRelativePath(Repository origin, Repository fork) {
+		Path from = getObjectsPath(fork);
+		Path to = getObjectsPath(origin);
+		return from.relativize(to).toString().replace(File.separatorChar, '/');
+	}
+
+	private static Path getObjectsPath(Repository repository) {
+		return ((FileRepository) repository).getObjectDatabase().getDirectory().getAbsoluteFile().toPath().normalize();
+	}
+
+	/**
+	 * Copies the borrowed objects into the fork and removes the alternates.
+	 * The fork is verified to be complete without the alternates before they
+	 * are removed, otherwise the fork remains shared.
+	 *
+	 * @param fork
+	 * @param monitor
+	 */
+	public static void unshare(Repository fork, ProgressMonitor monitor) throws IOException {
+		File alternates = getAlternatesFile(fork);
+		if (!alternates.exists()) {
+			return;
+		}
+
+		// the packer reads the borrowed objects through the alternates
+		GC gc = new GC((FileRepository) fork);
+		gc.setProgressMonitor(monitor);
+		gc.repack();
+
+		File moved = new File(alternates.getParentFile(), "alternates.unshare");
+		FileUtils.rename(alternates, moved);
+		boolean complete = false;
+		try {
+			Repository db = new FileRepository(fork.getDirectory());
+			try {
+				verify(db, monitor);
+				complete = true;
+			} finally {
+				db.close();
+			}
+		} finally {
+			if (complete) {
+				FileUtils.delete(moved);
+			} else {
+				FileUtils.rename(moved, alternates);
+			}
+		}
+	}
+
+	/**
+	 * Walks every object reachable from the refs, failing on the first
+	 * missing object.
+	 */
+	private static void verify(Repository db, ProgressMonitor monitor) throws IOException {
+		monitor.beginTask("Verifying objects", ProgressMonitor.UNKNOWN);
+		ObjectWalk ow = new ObjectWalk(db);
+		ObjectReader reader = db.newObjectReader();
+		try {
+			for (Ref ref : db.getAllRefs().values()) {
+				if (ref.getObjectId() != null) {
+					ow.markStart(ow.parseAny(ref.getObjectId()));
+				}
+			}
+			while (ow.next() != null) {
+				monitor.update(1);
+			}
+			RevObject o;
+			while ((o = ow.nextObject()) != null) {
+				if (o.getType() == Constants.OBJ_BLOB && !reader.has(o)) {
+					throw new MissingObjectException(o, Constants.OBJ_BLOB);
+				}
+				monitor.update(1);
+			}
+		} finally {
+			reader.release();
+			ow.release();
+		}
+		monitor.endTask();
+	}
+
+	private static File getAlternatesFile(Repository repository) {
+		return new File(((FileRepository) repository).getObjectDatabase().getDirectory(), ALTERNATES);
+	}
+
+	private static void write(File file, String content) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(Constants.encode(content));
+		} finally {
+			out.close();
+		}
+	}
+}
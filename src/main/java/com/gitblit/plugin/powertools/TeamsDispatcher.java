@@ -15,8 +15,13 @@
  */
 package com.gitblit.plugin.powertools;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
@@ -25,19 +30,16 @@ import com.gitblit.Constants.AccessPermission;
 import com.gitblit.GitBlitException;
 import com.gitblit.manager.IGitblit;
 import com.gitblit.models.RegistrantAccessPermission;
-import com.gitblit.models.RepositoryModel;
 import com.gitblit.models.TeamModel;
 import com.gitblit.models.UserModel;
 import com.gitblit.transport.ssh.commands.CommandMetaData;
 import com.gitblit.transport.ssh.commands.DispatchCommand;
-import com.gitblit.transport.ssh.commands.ListFilterCommand;
 import com.gitblit.transport.ssh.commands.SshCommand;
 import com.gitblit.transport.ssh.commands.UsageExample;
 import com.gitblit.transport.ssh.commands.UsageExamples;
 import com.gitblit.utils.ArrayUtils;
 import com.gitblit.utils.FlipTable;
 import com.gitblit.utils.FlipTable.Borders;
-import com.gitblit.utils.StringUtils;
 import com.google.common.base.Joiner;
 
 @CommandMetaData(name = "teams", description = "Team management commands", admin = true)
@@ -238,7 +240,11 @@ public class TeamsDispatcher extends DispatchCommand {
 	}
 
 	@CommandMetaData(name = "permissions", aliases = { "perms" }, description = "Add or remove permissions from a team")
-	@UsageExample(syntax = "${cmd} contributors RW:alpha/repo.git RWC:alpha/repo2.git", description = "Add or set permissions for contributors")
+	@UsageExamples(examples = {
+		@UsageExample(syntax = "${cmd} contributors RW:alpha/repo.git RWC:alpha/repo2.git", description = "Add or set permissions for contributors"),
+		@UsageExample(syntax = "cat grants.txt | ${ssh} ${cmd} contributors --from -", description = "Add or set the PERMISSION:REPOSITORY lines of grants.txt"),
+		@UsageExample(syntax = "cat grants.txt | ${ssh} ${cmd} contributors --remove ALL --from -", description = "Replace all permissions of contributors with grants.txt")
+	})
 	public static class Permissions extends TeamCommand {
 
 		@Argument(index = 1, multiValued = true, metaVar = "[PERMISSION:]REPOSITORY", usage = "a repository expression")
@@ -247,10 +253,14 @@ public class TeamsDispatcher extends DispatchCommand {
 		@Option(name = "--remove", aliases = { "-r" }, metaVar = "REPOSITORY|ALL", usage = "remove a repository permission")
 		protected List<String> removals;
 
+		@Option(name = "--from", metaVar = "-", usage = "read PERMISSION:REPOSITORY lines from stdin")
+		protected String from;
+
 		@Override
 		public void run() throws UnloggedFailure {
 			IGitblit gitblit = getContext().getGitblit();
 			TeamModel team = getTeam(true);
+			Map<String, AccessPermission> before = new HashMap<String, AccessPermission>(team.permissions);
 
 			boolean modified = false;
 			if (!ArrayUtils.isEmpty(removals)) {
@@ -265,15 +275,15 @@ public class TeamsDispatcher extends DispatchCommand {
 				modified = true;
 			}
 
+			Set<String> names = null;
 			if (!ArrayUtils.isEmpty(permissions)) {
+				names = PermissionGrants.getRepositoryNames(gitblit);
 				for (String perm : permissions) {
 					String repo = AccessPermission.repositoryFromRole(perm);
-					if (StringUtils.findInvalidCharacter(repo) == null) {
-						// explicit permision, confirm repository
-						RepositoryModel r = gitblit.getRepositoryModel(repo);
-						if (r == null) {
-							throw new UnloggedFailure(1, String.format("Repository %s does not exist!", repo));
-						}
+					// explicit permission, confirm repository
+					String error = PermissionGrants.validate(repo, names);
+					if (error != null) {
+						throw new UnloggedFailure(1, error);
 					}
 					AccessPermission ap = AccessPermission.permissionFromRole(perm);
 					team.setRepositoryPermission(repo, ap);
@@ -282,12 +292,40 @@ public class TeamsDispatcher extends DispatchCommand {
 				modified = true;
 			}
 
-			if (modified && gitblit.updateTeamModel(teamname, team)) {
-				// reload & display new permissions
-				team = gitblit.getTeamModel(teamname);
+			if (from != null) {
+				if (!"-".equals(from)) {
+					throw new UnloggedFailure(1, "Permissions can only be read from stdin, use --from -");
+				}
+				if (names == null) {
+					names = PermissionGrants.getRepositoryNames(gitblit);
+				}
+				Map<String, AccessPermission> grants;
+				try {
+					grants = PermissionGrants.read(in, names);
+				} catch (IOException e) {
+					throw new UnloggedFailure(1, String.format("Failed to read permissions: %s", e.getMessage()));
+				}
+				for (Map.Entry<String, AccessPermission> grant : grants.entrySet()) {
+					team.setRepositoryPermission(grant.getKey(), grant.getValue());
+				}
+				log.info(String.format("Setting %d permissions from stdin for %s", grants.size(), teamname));
+				modified = true;
 			}
 
-			showPermissions(team);
+			if (modified) {
+				if (gitblit.updateTeamModel(teamname, team)) {
+					// reload & display new permissions
+					team = gitblit.getTeamModel(teamname);
+				} else if (from != null) {
+					throw new UnloggedFailure(1, String.format("Failed to update permissions for %s!", teamname));
+				}
+			}
+
+			if (from != null) {
+				stdout.println(PermissionGrants.diff(before, team.permissions));
+			} else {
+				showPermissions(team);
+			}
 		}
 
 		protected void showPermissions(TeamModel team) {
@@ -336,9 +374,11 @@ public class TeamsDispatcher extends DispatchCommand {
 				modified = true;
 			}
 
+			UserResolver users = new UserResolver(gitblit);
 			if (!ArrayUtils.isEmpty(members)) {
+				users.resolve(members);
 				for (String username : members) {
-					UserModel u = gitblit.getUserModel(username);
+					UserModel u = users.getUser(username);
 					if (u == null) {
 						throw new UnloggedFailure(1,  String.format("Unknown user %s", username));
 					}
@@ -357,12 +397,12 @@ public class TeamsDispatcher extends DispatchCommand {
 				team = gitblit.getTeamModel(teamname);
 			}
 
+			users.resolve(team.users);
 			String[] headers = { "Username", "Display Name" };
 			Object [][] data = new Object[team.users.size()][];
 			int i = 0;
 			for (String username : team.users) {
-				UserModel u = gitblit.getUserModel(username);
-				data[i] = new Object[] { username, u.displayName };
+				data[i] = new Object[] { username, users.getDisplayName(username) };
 				i++;
 			}
 			stdout.println(FlipTable.of(headers, data, Borders.BODY_HCOLS));
@@ -411,13 +451,13 @@ public class TeamsDispatcher extends DispatchCommand {
 			if (t.users.size() == 0) {
 				members = FlipTable.EMPTY;
 			} else {
-				IGitblit gitblit = getContext().getGitblit();
+				UserResolver users = new UserResolver(getContext().getGitblit());
+				users.resolve(t.users);
 				String[] headers = { "Username", "Display Name" };
 				Object [][] data = new Object[t.users.size()][];
 				int i = 0;
 				for (String username : t.users) {
-					UserModel u = gitblit.getUserModel(username);
-					data[i] = new Object[] { username,  u == null ? null : u.displayName };
+					data[i] = new Object[] { username, users.getDisplayName(username) };
 					i++;
 				}
 				members = FlipTable.of(headers, data, Borders.COLS);
@@ -456,18 +496,33 @@ public class TeamsDispatcher extends DispatchCommand {
 		@UsageExample(syntax = "${cmd}", description = "List teams as a table"),
 		@UsageExample(syntax = "${cmd} j.*", description = "List all teams that start with 'j'"),
 	})
-	public static class ListTeams extends ListFilterCommand<TeamModel> {
+	public static class ListTeams extends FilteredListCommand<TeamModel> {
 
 		@Override
-		protected List<TeamModel> getItems() {
+		protected List<TeamModel> getItems() throws UnloggedFailure {
 			IGitblit gitblit = getContext().getGitblit();
-			List<TeamModel> teams = gitblit.getAllTeams();
+			NameFilter filter = getFilter();
+			if (filter.isEmpty()) {
+				List<TeamModel> teams = gitblit.getAllTeams();
+				return teams;
+			}
+
+			// only load the teams whose names match
+			List<String> names = new ArrayList<String>(gitblit.getAllTeamNames());
+			Collections.sort(names, String.CASE_INSENSITIVE_ORDER);
+			List<TeamModel> teams = new ArrayList<TeamModel>();
+			for (String name : filter.selectSorted(names)) {
+				TeamModel t = gitblit.getTeamModel(name);
+				if (t != null) {
+					teams.add(t);
+				}
+			}
 			return teams;
 		}
 
 		@Override
-		protected boolean matches(String filter, TeamModel t) {
-			return t.name.matches(filter);
+		protected String getName(TeamModel t) {
+			return t.name;
 		}
 
 		@Override
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import org.eclipse.jgit.internal.JGitText;
+import org.eclipse.jgit.lib.ProgressMonitor;
+
+/**
+ * A byte budget shared by concurrent workers.
+ *
+ * Workers charge the bytes they are about to read or write.  A worker which
+ * overdraws the budget sleeps until the budget has been refilled at the
+ * configured rate, so the combined rate of all workers stays near the limit.
+ */
+public class Throttle {
+
+	private final long bytesPerSecond;
+
+	private long available;
+
+	private long refilled;
+
+	/**
+	 * @param bytesPerSecond
+	 *            the budget, zero or less for no limit
+	 */
+	public Throttle(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+		this.available = bytesPerSecond;
+		this.refilled = System.currentTimeMillis();
+	}
+
+	public boolean isLimited() {
+		return bytesPerSecond > 0;
+	}
+
+	/**
+	 * Charges the bytes to the budget, sleeping if the budget is overdrawn.
+	 *
+	 * @param bytes
+	 */
+	public void acquire(long bytes) throws InterruptedException {
+		if (!isLimited() || bytes <= 0) {
+			return;
+		}
+		long wait;
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			available = Math.min(bytesPerSecond, available + (now - refilled) * bytesPerSecond / 1000);
+			refilled = now;
+			available -= bytes;
+			wait = available < 0 ? (-available * 1000 / bytesPerSecond) : 0;
+		}
+		if (wait > 0) {
+			Thread.sleep(wait);
+		}
+	}
+
+	/**
+	 * Returns a progress monitor which charges the objects written by the
+	 * packer to this budget.  JGit does not expose the bytes read and written
+	 * by the packer, so each written object is charged an estimated size,
+	 * e.g. the average object size.  The other phases report the same
+	 * objects again and are not charged.
+	 *
+	 * @param bytesPerUnit
+	 * @param cancel
+	 *            the monitor consulted for cancellation
+	 * @return a progress monitor
+	 */
+	public ProgressMonitor monitor(final long bytesPerUnit, final ProgressMonitor cancel) {
+		return new ProgressMonitor() {
+
+			private boolean writing;
+
+			private boolean interrupted;
+
+			@Override
+			public void start(int totalTasks) {
+			}
+
+			@Override
+			public void beginTask(String title, int totalWork) {
+				writing = JGitText.get().writingObjects.equals(title);
+			}
+
+			@Override
+			public void update(int completed) {
+				if (!writing) {
+					return;
+				}
+				try {
+					acquire(completed * bytesPerUnit);
+				} catch (InterruptedException e) {
+					interrupted = true;
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			@Override
+			public void endTask() {
+				writing = false;
+			}
+
+			@Override
+			public boolean isCancelled() {
+				return interrupted || cancel.isCancelled();
+			}
+		};
+	}
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.Constants.AccessPermission;
+import com.gitblit.Constants.PermissionType;
+import com.gitblit.Constants.RegistrantType;
+import com.gitblit.GitBlitException;
+import com.gitblit.manager.IGitblit;
+import com.gitblit.models.RegistrantAccessPermission;
+import com.gitblit.models.RepositoryModel;
+
+/**
+ * Deleted repositories which can still be restored.
+ *
+ * Deleting a repository renames its folder into the trash, which returns
+ * immediately.  A low priority reaper purges the entries older than the
+ * retention period, deleting their files within an I/O budget so that the
+ * purge does not starve the other users of the disk.  The trash folder should
+ * be on the same file system as the repositories, otherwise the rename fails.
+ *
+ * Settings:
+ *   powertools.trashFolder (default: ${baseFolder}/trash)
+ *   powertools.trashRetentionDays (default: 7)
+ *   powertools.trashPurgeRate in MB/s (default: 10)
+ */
+public class Trash {
+
+	private static final String REPOSITORY = "repository";
+
+	private static final String INFO = "trash.properties";
+
+	private static Trash instance;
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+
+	private final IGitblit gitblit;
+
+	private final File folder;
+
+	private final int retentionDays;
+
+	private final Throttle throttle;
+
+	private final ScheduledExecutorService reaper;
+
+	/**
+	 * The ids of the entries being restored or purged.
+	 */
+	private final Set<String> busy = new HashSet<String>();
+
+	public static synchronized void start(IGitblit gitblit) {
+		if (instance == null) {
+			instance = new Trash(gitblit);
+		}
+	}
+
+	public static synchronized void stop() {
+		if (instance != null) {
+			instance.reaper.shutdownNow();
+			instance = null;
+		}
+	}
+
+	public static synchronized Trash get() {
+		if (instance == null) {
+			throw new IllegalStateException("The powertools trash is not available");
+		}
+		return instance;
+	}
+
+	Trash(IGitblit gitblit) {
+		this.gitblit = gitblit;
+		this.folder = gitblit.getFileOrFolder("powertools.trashFolder", "${baseFolder}/trash");
+		this.retentionDays = gitblit.getSettings().getInteger("powertools.trashRetentionDays", 7);
+		this.throttle = new Throttle(gitblit.getSettings().getInteger("powertools.trashPurgeRate", 10) * 1024L * 1024L);
+		this.reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "powertools-trash-reaper");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+		this.reaper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				reap();
+			}
+		}, 5, 60, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * A repository in the trash.
+	 */
+	public static class Entry {
+
+		public final String id;
+
+		public final File folder;
+
+		public String name;
+
+		public String deletedBy;
+
+		public Date deletedAt;
+
+		public final Properties userPermissions = new Properties();
+
+		public final Properties teamPermissions = new Properties();
+
+		Entry(String id, File folder) {
+			this.id = id;
+			this.folder = folder;
+		}
+
+		public File getRepositoryFolder() {
+			return new File(folder, REPOSITORY);
+		}
+	}
+
+	/**
+	 * Moves the repository into the trash and removes it from Gitblit.  The
+	 * explicit user and team permissions are remembered for a restore and
+	 * removed from the users and teams.  A repository which a job or
+	 * Gitblit's GC service is working on is refused.
+	 *
+	 * @param repo
+	 * @param deletedBy
+	 * @return the trash entry
+	 */
+	public Entry add(RepositoryModel repo, String deletedBy) throws IOException {
+		Job job = JobManager.get().getReservation(repo.name);
+		if (job != null) {
+			throw new GitBlitException(String.format("%s is in use by job %d", repo.name, job.getId()));
+		}
+		if (gitblit.isCollectingGarbage(repo.name)) {
+			throw new GitBlitException(String.format("Gitblit is collecting garbage in %s", repo.name));
+		}
+
+		File source = new File(gitblit.getRepositoriesFolder(), repo.name);
+		Entry entry = createEntry();
+		entry.name = repo.name;
+		entry.deletedBy = deletedBy;
+		entry.deletedAt = new Date();
+		for (RegistrantAccessPermission ap : gitblit.getUserAccessPermissions(repo)) {
+			if (ap.permissionType == PermissionType.EXPLICIT) {
+				entry.userPermissions.setProperty(ap.registrant, ap.permission.name());
+			}
+		}
+		for (RegistrantAccessPermission ap : gitblit.getTeamAccessPermissions(repo)) {
+			if (ap.permissionType == PermissionType.EXPLICIT) {
+				entry.teamPermissions.setProperty(ap.registrant, ap.permission.name());
+			}
+		}
+		write(entry);
+
+		// release Gitblit's handle before the folder moves
+		gitblit.closeRepository(repo.name);
+		if (!source.renameTo(entry.getRepositoryFolder())) {
+			delete(entry.folder, NullProgressMonitor.INSTANCE);
+			throw new IOException(String.format("Failed to move %s to %s", source, entry.folder));
+		}
+
+		if (!gitblit.deleteRepositoryRole(repo.name)) {
+			log.warn("Failed to remove the permissions of {}, it is in the trash as {}", repo.name, entry.id);
+		}
+		gitblit.resetRepositoryListCache();
+		return entry;
+	}
+
+	/**
+	 * Returns the trash entries, newest first.
+	 */
+	public List<Entry> getEntries() {
+		List<Entry> list = new ArrayList<Entry>();
+		File[] folders = folder.listFiles();
+		if (folders != null) {
+			for (File f : folders) {
+				Entry entry = read(f);
+				if (entry != null) {
+					list.add(entry);
+				}
+			}
+		}
+		Collections.sort(list, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return b.id.compareTo(a.id);
+			}
+		});
+		return list;
+	}
+
+	public Entry getEntry(String id) {
+		if (id.contains("/") || id.contains("\\") || id.startsWith(".")) {
+			return null;
+		}
+		return read(new File(folder, id));
+	}
+
+	/**
+	 * Moves the repository back and restores its permissions.
+	 *
+	 * @param entry
+	 * @param name
+	 *            the name of the restored repository
+	 * @return the restored repository
+	 */
+	public RepositoryModel restore(Entry entry, String name) throws IOException {
+		File root = gitblit.getRepositoriesFolder().getCanonicalFile();
+		File target = new File(root, name).getCanonicalFile();
+		if (!target.getPath().startsWith(root.getPath() + File.separator)) {
+			throw new GitBlitException(String.format("Illegal repository name %s", name));
+		}
+		claim(entry);
+		try {
+			if (gitblit.hasRepository(name)) {
+				throw new GitBlitException(String.format("Repository %s already exists!", name));
+			}
+			target.getParentFile().mkdirs();
+			if (!entry.getRepositoryFolder().renameTo(target)) {
+				throw new IOException(String.format("Failed to move %s to %s", entry.folder, target));
+			}
+			delete(entry.folder, NullProgressMonitor.INSTANCE);
+		} finally {
+			release(entry);
+		}
+
+		RepositoryModel repo = gitblit.getRepositoryModel(name);
+		if (repo == null) {
+			throw new GitBlitException(String.format("Restored %s but Gitblit does not recognize it", name));
+		}
+		List<RegistrantAccessPermission> users = new ArrayList<RegistrantAccessPermission>();
+		for (String user : entry.userPermissions.stringPropertyNames()) {
+			users.add(new RegistrantAccessPermission(user, AccessPermission.valueOf(entry.userPermissions.getProperty(user)),
+					PermissionType.EXPLICIT, RegistrantType.USER, null, true));
+		}
+		List<RegistrantAccessPermission> teams = new ArrayList<RegistrantAccessPermission>();
+		for (String team : entry.teamPermissions.stringPropertyNames()) {
+			teams.add(new RegistrantAccessPermission(team, AccessPermission.valueOf(entry.teamPermissions.getProperty(team)),
+					PermissionType.EXPLICIT, RegistrantType.TEAM, null, true));
+		}
+		if (!users.isEmpty()) {
+			gitblit.setUserAccessPermissions(repo, users);
+		}
+		if (!teams.isEmpty()) {
+			gitblit.setTeamAccessPermissions(repo, teams);
+		}
+		return repo;
+	}
+
+	/**
+	 * Deletes the entry within the I/O budget.
+	 *
+	 * @param entry
+	 * @param monitor
+	 */
+	public void purge(Entry entry, ProgressMonitor monitor) throws IOException {
+		claim(entry);
+		try {
+			// remove the info first so that a partially purged entry is not listed
+			new File(entry.folder, INFO).delete();
+			delete(entry.folder, monitor);
+		} finally {
+			release(entry);
+		}
+	}
+
+	/**
+	 * Claims the entry for a restore or a purge.  The entry must still be in
+	 * the trash once it is claimed.
+	 */
+	private void claim(Entry entry) throws IOException {
+		synchronized (busy) {
+			if (!busy.add(entry.id)) {
+				throw new IOException(String.format("%s is being restored or purged", entry.id));
+			}
+		}
+		if (!new File(entry.folder, INFO).isFile()) {
+			release(entry);
+			throw new IOException(String.format("%s is no longer in the trash", entry.id));
+		}
+	}
+
+	private void release(Entry entry) {
+		synchronized (busy) {
+			busy.remove(entry.id);
+		}
+	}
+
+	/**
+	 * Purges the entries older than the retention period.
+	 */
+	protected void reap() {
+		long expired = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(retentionDays);
+		for (Entry entry : getEntries()) {
+			if (entry.deletedAt.getTime() > expired) {
+				continue;
+			}
+			synchronized (busy) {
+				if (busy.contains(entry.id)) {
+					// a restore or purge owns it
+					continue;
+				}
+			}
+			try {
+				purge(entry, NullProgressMonitor.INSTANCE);
+				log.info("Purged {} ({}) from the trash", entry.name, entry.id);
+			} catch (IOException e) {
+				log.error(String.format("Failed to purge %s from the trash", entry.id), e);
+			}
+		}
+	}
+
+	private Entry createEntry() throws IOException {
+		folder.mkdirs();
+		String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+		for (int i = 1; i < 1000; i++) {
+			File f = new File(folder, stamp + "-" + i);
+			if (f.mkdir()) {
+				return new Entry(f.getName(), f);
+			}
+		}
+		throw new IOException(String.format("Failed to create a trash entry in %s", folder));
+	}
+
+	private void write(Entry entry) throws IOException {
+		Properties props = new Properties();
+		props.setProperty("name", entry.name);
+		props.setProperty("deletedBy", entry.deletedBy);
+		props.setProperty("deletedAt", Long.toString(entry.deletedAt.getTime()));
+		for (String user : entry.userPermissions.stringPropertyNames()) {
+			props.setProperty("user." + user, entry.userPermissions.getProperty(user));
+		}
+		for (String team : entry.teamPermissions.stringPropertyNames()) {
+			props.setProperty("team." + team, entry.teamPermissions.getProperty(team));
+		}
+		OutputStream out = new FileOutputStream(new File(entry.folder, INFO));
+		try {
+			props.store(out, null);
+		} finally {
+			out.close();
+		}
+	}
+
+	private Entry read(File f) {
+		File info = new File(f, INFO);
+		if (!info.isFile()) {
+			return null;
+		}
+		Properties props = new Properties();
+		try {
+			InputStream in = new FileInputStream(info);
+			try {
+				props.load(in);
+			} finally {
+				in.close();
+			}
+			Entry entry = new Entry(f.getName(), f);
+			entry.name = props.getProperty("name");
+			entry.deletedBy = props.getProperty("deletedBy");
+			entry.deletedAt = new Date(Long.parseLong(props.getProperty("deletedAt", "0")));
+			for (String key : props.stringPropertyNames()) {
+				if (key.startsWith("user.")) {
+					entry.userPermissions.setProperty(key.substring(5), props.getProperty(key));
+				} else if (key.startsWith("team.")) {
+					entry.teamPermissions.setProperty(key.substring(5), props.getProperty(key));
+				}
+			}
+			return entry;
+		} catch (IOException | NumberFormatException e) {
+			log.error(String.format("Failed to read trash entry %s", f), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Deletes the folder bottom-up, charging every file to the I/O budget.
+	 */
+	private void delete(File file, ProgressMonitor monitor) throws IOException {
+		if (monitor.isCancelled()) {
+			throw new IOException("Cancelled");
+		}
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				delete(f, monitor);
+			}
+		}
+		try {
+			throttle.acquire(file.length());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		}
+		if (!file.delete() && file.exists()) {
+			throw new IOException(String.format("Failed to delete %s", file));
+		}
+		monitor.update(1);
+	}
+}
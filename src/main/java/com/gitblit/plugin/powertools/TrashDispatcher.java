@@ -0,0 +1,195 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jgit.lib.Constants;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+import com.gitblit.models.RepositoryModel;
+import com.gitblit.plugin.powertools.RepositoriesDispatcher.RepositoryCommand;
+import com.gitblit.models.UserModel;
+import com.gitblit.transport.ssh.commands.CommandMetaData;
+import com.gitblit.transport.ssh.commands.DispatchCommand;
+import com.gitblit.transport.ssh.commands.ListCommand;
+import com.gitblit.transport.ssh.commands.SshCommand;
+import com.gitblit.transport.ssh.commands.UsageExample;
+import com.gitblit.transport.ssh.commands.UsageExamples;
+import com.gitblit.utils.FlipTable;
+import com.gitblit.utils.FlipTable.Borders;
+import com.gitblit.utils.StringUtils;
+
+@CommandMetaData(name = "trash", description = "Deleted repository commands")
+public class TrashDispatcher extends DispatchCommand {
+
+	@Override
+	protected void setup() {
+		register(ListTrash.class);
+		register(RestoreRepository.class);
+		register(PurgeTrash.class);
+	}
+
+	/**
+	 * Returns true if the user may see, restore and purge the entry.
+	 */
+	static boolean isVisible(UserModel user, Trash.Entry entry) {
+		return user.canAdmin() || user.username.equalsIgnoreCase(entry.deletedBy);
+	}
+
+	static Trash.Entry getEntry(UserModel user, String id) throws UnloggedFailure {
+		Trash.Entry entry = Trash.get().getEntry(id);
+		if (entry == null || !isVisible(user, entry)) {
+			throw new UnloggedFailure(1, String.format("Trash entry %s does not exist!", id));
+		}
+		return entry;
+	}
+
+	/* List trash */
+	@CommandMetaData(name = "list", aliases = { "ls" }, description = "List deleted repositories")
+	public static class ListTrash extends ListCommand<Trash.Entry> {
+
+		@Override
+		protected List<Trash.Entry> getItems() {
+			UserModel user = getContext().getClient().getUser();
+			List<Trash.Entry> list = new ArrayList<Trash.Entry>();
+			for (Trash.Entry entry : Trash.get().getEntries()) {
+				if (isVisible(user, entry)) {
+					list.add(entry);
+				}
+			}
+			return list;
+		}
+
+		@Override
+		protected void asTable(List<Trash.Entry> list) {
+			String[] headers = { "ID", "Repository", "Deleted By", "Deleted" };
+			Object[][] data = new Object[list.size()][];
+			for (int i = 0; i < list.size(); i++) {
+				Trash.Entry entry = list.get(i);
+				data[i] = new Object[] { entry.id, entry.name, entry.deletedBy, formatDate(entry.deletedAt) };
+			}
+			stdout.println(FlipTable.of(headers, data, Borders.BODY_HCOLS));
+		}
+
+		@Override
+		protected void asTabbed(List<Trash.Entry> list) {
+			for (Trash.Entry entry : list) {
+				if (verbose) {
+					outTabbed(entry.id, entry.name, entry.deletedBy, formatDate(entry.deletedAt));
+				} else {
+					outTabbed(entry.id, entry.name);
+				}
+			}
+		}
+	}
+
+	@CommandMetaData(name = "restore", description = "Restore a deleted repository")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd} 20141016-153012-1", description = "Restore a repository with its name and permissions"),
+			@UsageExample(syntax = "${cmd} 20141016-153012-1 --as myRepo-old.git", description = "Restore a repository with a new name"),
+	})
+	public static class RestoreRepository extends SshCommand {
+
+		@Argument(index = 0, required = true, metaVar = "ID", usage = "trash entry id")
+		protected String id;
+
+		@Option(name = "--as", metaVar = "NAME", usage = "restore with a different name")
+		protected String name;
+
+		@Override
+		public void run() throws UnloggedFailure {
+			UserModel user = getContext().getClient().getUser();
+			Trash.Entry entry = getEntry(user, id);
+
+			String target = entry.name;
+			if (!StringUtils.isEmpty(name)) {
+				target = RepositoryCommand.sanitize(name);
+				if (!target.endsWith(Constants.DOT_GIT)) {
+					target += Constants.DOT_GIT;
+				}
+				if (!user.canCreate(target) && "".equals(StringUtils.getFirstPathElement(target))) {
+					// try to prepend personal path
+					target = user.getPersonalPath() + "/" + target;
+				}
+			}
+			if (!user.canCreate(target)) {
+				throw new UnloggedFailure(1,  String.format("Sorry, you do not have permission to create %s", target));
+			}
+			RepositoriesDispatcher.checkReservation(target);
+
+			try {
+				RepositoryModel repo = Trash.get().restore(entry, target);
+				OwnerIndex.invalidate();
+				stdout.println(String.format("%s has been restored as %s.", entry.name, repo.name));
+			} catch (IOException e) {
+				log.error(String.format("Failed to restore %s", entry.id), e);
+				throw new UnloggedFailure(1, String.format("Failed to restore %s: %s", entry.id, e.getMessage()));
+			}
+		}
+	}
+
+	@CommandMetaData(name = "purge", description = "Permanently delete repositories from the trash")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd} 20141016-153012-1", description = "Permanently delete a repository"),
+			@UsageExample(syntax = "${cmd} --all", description = "Permanently delete all your deleted repositories"),
+	})
+	public static class PurgeTrash extends SshCommand {
+
+		@Argument(index = 0, multiValued = true, metaVar = "ID", usage = "trash entry ids")
+		protected List<String> ids = new ArrayList<String>();
+
+		@Option(name = "--all", usage = "purge every entry you may see")
+		protected boolean all;
+
+		@Override
+		public void run() throws UnloggedFailure {
+			UserModel user = getContext().getClient().getUser();
+			final List<Trash.Entry> entries = new ArrayList<Trash.Entry>();
+			if (all) {
+				for (Trash.Entry entry : Trash.get().getEntries()) {
+					if (isVisible(user, entry)) {
+						entries.add(entry);
+					}
+				}
+			} else {
+				for (String id : ids) {
+					entries.add(getEntry(user, id));
+				}
+			}
+			if (entries.isEmpty()) {
+				throw new UnloggedFailure(1, "Nothing to purge");
+			}
+
+			// purging is rate limited, always in the background
+			RepositoriesDispatcher.submit(new Job(String.format("purge %d trash entries", entries.size()), user.username) {
+				@Override
+				protected String execute(JobMonitor monitor) throws Exception {
+					monitor.beginTask("Purging", JobMonitor.UNKNOWN);
+					for (Trash.Entry entry : entries) {
+						Trash.get().purge(entry, monitor);
+						Activity.invalidate(entry.name);
+					}
+					monitor.endTask();
+					return String.format("Purged %d trash entries.", entries.size());
+				}
+			}, stdout);
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.gitblit.manager.IGitblit;
+import com.gitblit.models.UserModel;
+
+/**
+ * Resolves usernames to user models for the duration of one command.
+ *
+ * Each distinct username is looked up at most once.  Names which are known in
+ * advance may be passed to {@link #resolve(Collection)}, which looks up only
+ * the names which have not been resolved yet.  All accounts are never read,
+ * that would load every account of a large LDAP directory to display a few.
+ */
+public class UserResolver {
+
+	private final IGitblit gitblit;
+
+	private final Map<String, UserModel> users;
+
+	public UserResolver(IGitblit gitblit) {
+		this.gitblit = gitblit;
+		this.users = new HashMap<String, UserModel>();
+	}
+
+	/**
+	 * Resolves all of the usernames which have not yet been resolved.
+	 *
+	 * @param usernames
+	 */
+	public void resolve(Collection<String> usernames) {
+		Set<String> missing = new LinkedHashSet<String>();
+		for (String username : usernames) {
+			if (username != null && !users.containsKey(key(username))) {
+				missing.add(key(username));
+			}
+		}
+		for (String key : missing) {
+			users.put(key, gitblit.getUserModel(key));
+		}
+	}
+
+	/**
+	 * Returns the user model or null if the account does not exist.
+	 */
+	public UserModel getUser(String username) {
+		if (username == null) {
+			return null;
+		}
+		String key = key(username);
+		if (!users.containsKey(key)) {
+			users.put(key, gitblit.getUserModel(key));
+		}
+		return users.get(key);
+	}
+
+	/**
+	 * Returns the display name of the account or an empty string if the
+	 * account does not exist.
+	 */
+	public String getDisplayName(String username) {
+		UserModel user = getUser(username);
+		if (user == null || user.displayName == null) {
+			return "";
+		}
+		return user.displayName;
+	}
+
+	private String key(String username) {
+		return username.toLowerCase();
+	}
+}
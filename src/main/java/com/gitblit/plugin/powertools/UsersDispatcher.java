@@ -15,9 +15,24 @@
  */
 package com.gitblit.plugin.powertools;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.PatternSyntaxException;
 
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.util.Base64;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
 
@@ -27,11 +42,11 @@ import com.gitblit.Keys;
 import com.gitblit.manager.IGitblit;
 import com.gitblit.models.RegistrantAccessPermission;
 import com.gitblit.models.RepositoryModel;
+import com.gitblit.models.TeamModel;
 import com.gitblit.models.UserModel;
 import com.gitblit.transport.ssh.SshKey;
 import com.gitblit.transport.ssh.commands.CommandMetaData;
 import com.gitblit.transport.ssh.commands.DispatchCommand;
-import com.gitblit.transport.ssh.commands.ListFilterCommand;
 import com.gitblit.transport.ssh.commands.SshCommand;
 import com.gitblit.transport.ssh.commands.UsageExample;
 import com.gitblit.transport.ssh.commands.UsageExamples;
@@ -40,6 +55,8 @@ import com.gitblit.utils.FlipTable;
 import com.gitblit.utils.FlipTable.Borders;
 import com.gitblit.utils.StringUtils;
 import com.google.common.base.Joiner;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 @CommandMetaData(name = "users", description = "User management commands", admin = true)
 public class UsersDispatcher extends DispatchCommand {
@@ -48,10 +65,13 @@ public class UsersDispatcher extends DispatchCommand {
 	protected void setup() {
 		// primary user commands
 		register(NewUser.class);
+		register(ImportUsers.class);
 		register(RenameUser.class);
 		register(RemoveUser.class);
 		register(ShowUser.class);
+		register(OwnedRepositories.class);
 		register(ListUsers.class);
+		register(ExportUsers.class);
 
 		// user-specific commands
 		register(SetField.class);
@@ -126,6 +146,293 @@ public class UsersDispatcher extends DispatchCommand {
 		}
 	}
 
+	@CommandMetaData(name = "import", description = "Create accounts from CSV or JSON lines read from stdin")
+	@UsageExamples(examples = {
+		@UsageExample(syntax = "cat users.csv | ${ssh} ${cmd} --format csv",
+			description = "Create the accounts of a CSV file with a header line, e.g. username,password,displayName,email"),
+		@UsageExample(syntax = "cat users.json | ${ssh} ${cmd} --format jsonl --dry-run",
+			description = "Validate one JSON object per line without creating any account"),
+	})
+	public static class ImportUsers extends SshCommand {
+
+		protected enum Format {
+			csv, jsonl
+		}
+
+		protected enum Column {
+			username, password, displayName, email, canAdmin, canFork, canCreate, disabled;
+
+			static Column fromString(String name) {
+				for (Column column : values()) {
+					if (column.name().equalsIgnoreCase(name)) {
+						return column;
+					}
+				}
+				return null;
+			}
+		}
+
+		@Option(name = "--format", required = true, metaVar = "csv|jsonl", usage = "the input format")
+		protected Format format;
+
+		@Option(name = "--batch", metaVar = "N", usage = "number of accounts written to the user store at once (default: 1000)")
+		protected int batchSize = 1000;
+
+		@Option(name = "--dry-run", aliases = { "-n" }, usage = "only validate the accounts")
+		protected boolean dryRun;
+
+		private int lineNumber;
+
+		@Override
+		public void run() throws UnloggedFailure {
+			if (batchSize < 1) {
+				throw new UnloggedFailure(1, "--batch must be at least 1");
+			}
+			long start = System.currentTimeMillis();
+			IGitblit gitblit = getContext().getGitblit();
+
+			// snapshots of the existing names, one lookup per account instead of one per store read
+			Set<String> existing = new HashSet<String>();
+			for (String name : gitblit.getAllUsernames()) {
+				existing.add(name.toLowerCase());
+			}
+			Set<String> teams = new HashSet<String>();
+			for (String name : gitblit.getAllTeamNames()) {
+				teams.add(name.toLowerCase());
+			}
+			int minLength = Math.max(4, gitblit.getSettings().getInteger(Keys.realm.minPasswordLength, 5));
+
+			// validate every account before anything is written
+			List<UserModel> accounts = new ArrayList<UserModel>();
+			Set<String> seen = new HashSet<String>();
+			int skipped = 0;
+			int failed = 0;
+			try {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+				List<Column> header = null;
+				String line;
+				while ((line = reader.readLine()) != null) {
+					lineNumber++;
+					if (line.trim().isEmpty()) {
+						continue;
+					}
+					if (format == Format.csv && header == null) {
+						try {
+							header = parseHeader(line);
+						} catch (UnloggedFailure e) {
+							// the rows can not be read without their header
+							throw new UnloggedFailure(1, String.format("line %d: %s, nothing was imported", lineNumber, e.getMessage()));
+						}
+						continue;
+					}
+					try {
+						Map<Column, String> values;
+						if (format == Format.csv) {
+							values = parseCsv(header, line);
+						} else {
+							values = parseJson(line);
+						}
+
+						String username = values.get(Column.username);
+						if (StringUtils.isEmpty(username)) {
+							throw new UnloggedFailure(1, "Missing username");
+						}
+						String key = username.toLowerCase();
+						if (existing.contains(key)) {
+							skipped++;
+							continue;
+						}
+						if (teams.contains(key)) {
+							throw new UnloggedFailure(1, String.format("Team %s already exists!", username));
+						}
+						if (!seen.add(key)) {
+							throw new UnloggedFailure(1, String.format("Duplicate username %s", username));
+						}
+						accounts.add(toUser(gitblit, values, minLength));
+					} catch (UnloggedFailure e) {
+						failed++;
+						stdout.println(String.format("line %d: %s", lineNumber, e.getMessage()));
+					}
+				}
+			} catch (IOException e) {
+				throw new UnloggedFailure(1, String.format("Failed to read line %d: %s", lineNumber + 1, e.getMessage()));
+			}
+			long validated = System.currentTimeMillis() - start;
+
+			int created = 0;
+			if (!dryRun) {
+				for (int i = 0; i < accounts.size(); i += batchSize) {
+					// accounts created since the snapshot must not be overwritten
+					existing.clear();
+					for (String name : gitblit.getAllUsernames()) {
+						existing.add(name.toLowerCase());
+					}
+					List<UserModel> batch = new ArrayList<UserModel>();
+					for (UserModel user : accounts.subList(i, Math.min(accounts.size(), i + batchSize))) {
+						if (existing.contains(user.username)) {
+							skipped++;
+							stdout.println(String.format("%s: created meanwhile, skipped", user.username));
+						} else {
+							batch.add(user);
+						}
+					}
+					if (batch.isEmpty()) {
+						continue;
+					}
+					if (gitblit.updateUserModels(batch)) {
+						created += batch.size();
+					} else {
+						failed += batch.size();
+						stdout.println(String.format("Failed to write accounts %s to %s",
+								batch.get(0).username, batch.get(batch.size() - 1).username));
+					}
+				}
+			}
+			long elapsed = System.currentTimeMillis() - start;
+
+			if (dryRun) {
+				stdout.println(String.format("Dry run: %d valid, %d skipped, %d failed, validated in %d ms",
+						accounts.size(), skipped, failed, validated));
+			} else {
+				stdout.println(String.format("%d created, %d skipped, %d failed, validated in %d ms, written in %d ms",
+						created, skipped, failed, validated, elapsed - validated));
+			}
+		}
+
+		protected UserModel toUser(IGitblit gitblit, Map<Column, String> values, int minLength) throws UnloggedFailure {
+			UserModel user = new UserModel(values.get(Column.username).toLowerCase());
+			String password = values.get(Column.password);
+			if (!StringUtils.isEmpty(password)) {
+				if (password.length() < minLength) {
+					throw new UnloggedFailure(1, "Password is too short.");
+				}
+				SetField.setPassword(gitblit, user, password);
+			}
+			for (Map.Entry<Column, String> entry : values.entrySet()) {
+				String value = entry.getValue();
+				if (StringUtils.isEmpty(value)) {
+					continue;
+				}
+				switch (entry.getKey()) {
+				case displayName:
+					user.displayName = value;
+					break;
+				case email:
+					user.emailAddress = value;
+					break;
+				case canAdmin:
+					user.canAdmin = SetField.toBool(value);
+					break;
+				case canFork:
+					user.canFork = SetField.toBool(value);
+					break;
+				case canCreate:
+					user.canCreate = SetField.toBool(value);
+					break;
+				case disabled:
+					user.disabled = SetField.toBool(value);
+					break;
+				default:
+					break;
+				}
+			}
+			return user;
+		}
+
+		protected List<Column> parseHeader(String line) throws UnloggedFailure {
+			List<Column> header = new ArrayList<Column>();
+			for (String name : splitCsv(line)) {
+				Column column = Column.fromString(name.trim());
+				if (column == null) {
+					throw new UnloggedFailure(1, String.format("Unknown column %s, valid columns are %s",
+							name, Joiner.on(", ").join(Column.values())));
+				}
+				header.add(column);
+			}
+			if (!header.contains(Column.username)) {
+				throw new UnloggedFailure(1, "The header has no username column");
+			}
+			return header;
+		}
+
+		protected Map<Column, String> parseCsv(List<Column> header, String line) throws UnloggedFailure {
+			List<String> fields = splitCsv(line);
+			if (fields.size() != header.size()) {
+				throw new UnloggedFailure(1, String.format("Expected %d fields, found %d", header.size(), fields.size()));
+			}
+			Map<Column, String> values = new EnumMap<Column, String>(Column.class);
+			for (int i = 0; i < fields.size(); i++) {
+				values.put(header.get(i), fields.get(i).trim());
+			}
+			return values;
+		}
+
+		/**
+		 * Splits a CSV line, honoring double-quoted fields and doubled quotes.
+		 */
+		protected List<String> splitCsv(String line) throws UnloggedFailure {
+			List<String> fields = new ArrayList<String>();
+			StringBuilder sb = new StringBuilder();
+			boolean quoted = false;
+			for (int i = 0; i < line.length(); i++) {
+				char c = line.charAt(i);
+				if (quoted) {
+					if (c == '"') {
+						if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+							sb.append('"');
+							i++;
+						} else {
+							quoted = false;
+						}
+					} else {
+						sb.append(c);
+					}
+				} else if (c == '"') {
+					quoted = true;
+				} else if (c == ',') {
+					fields.add(sb.toString());
+					sb.setLength(0);
+				} else {
+					sb.append(c);
+				}
+			}
+			if (quoted) {
+				throw new UnloggedFailure(1, "Unterminated quoted field");
+			}
+			fields.add(sb.toString());
+			return fields;
+		}
+
+		protected Map<Column, String> parseJson(String line) throws UnloggedFailure {
+			Map<Column, String> values = new EnumMap<Column, String>(Column.class);
+			JsonReader json = new JsonReader(new StringReader(line));
+			try {
+				json.beginObject();
+				while (json.hasNext()) {
+					String name = json.nextName();
+					Column column = Column.fromString(name);
+					if (column == null) {
+						throw new UnloggedFailure(1, String.format("Unknown field %s", name));
+					}
+					switch (json.peek()) {
+					case NULL:
+						json.nextNull();
+						break;
+					case BOOLEAN:
+						values.put(column, Boolean.toString(json.nextBoolean()));
+						break;
+					default:
+						values.put(column, json.nextString());
+					}
+				}
+				json.endObject();
+			} catch (IllegalStateException | IOException e) {
+				throw new UnloggedFailure(1, String.format("Invalid JSON: %s", e.getMessage()));
+			}
+			return values;
+		}
+	}
+
 	@CommandMetaData(name = "rename", aliases = { "mv" }, description = "Rename an account")
 	@UsageExample(syntax = "${cmd} john frank", description = "Rename the account from john to frank")
 	public static class RenameUser extends UserCommand {
@@ -145,6 +452,8 @@ public class UsersDispatcher extends DispatchCommand {
 
 			try {
 				gitblit.reviseUser(username, user);
+				// Gitblit renames the user in the owners of the repositories
+				OwnerIndex.invalidate();
 				stdout.println(String.format("Renamed user %s to %s.", username, newUserName));
 			} catch (GitBlitException e) {
 				String msg = String.format("Failed to rename user from %s to %s", username, newUserName);
@@ -229,20 +538,7 @@ public class UsersDispatcher extends DispatchCommand {
 					throw new UnloggedFailure(1,  "Password is too short.");
 				}
 
-				// Optionally store the password MD5 digest.
-				String type = gitblit.getSettings().getString(Keys.realm.passwordStorage, "md5");
-				if (type.equalsIgnoreCase("md5")) {
-					// store MD5 digest of password
-					user.password = StringUtils.MD5_TYPE + StringUtils.getMD5(value);
-				} else if (type.equalsIgnoreCase("combined-md5")) {
-					// store MD5 digest of username+password
-					user.password = StringUtils.COMBINED_MD5_TYPE + StringUtils.getMD5(username + value);
-				} else {
-					user.password = value;
-				}
-
-				// reset the cookie
-				user.cookie = StringUtils.getSHA1(user.username + value);
+				setPassword(gitblit, user, value);
 				break;
 			case canAdmin:
 				user.canAdmin = toBool(value);
@@ -270,7 +566,28 @@ public class UsersDispatcher extends DispatchCommand {
 			}
 		}
 
-		protected boolean toBool(String value) throws UnloggedFailure {
+		/**
+		 * Stores the password as configured by realm.passwordStorage and
+		 * resets the cookie.
+		 */
+		static void setPassword(IGitblit gitblit, UserModel user, String value) {
+			// Optionally store the password MD5 digest.
+			String type = gitblit.getSettings().getString(Keys.realm.passwordStorage, "md5");
+			if (type.equalsIgnoreCase("md5")) {
+				// store MD5 digest of password
+				user.password = StringUtils.MD5_TYPE + StringUtils.getMD5(value);
+			} else if (type.equalsIgnoreCase("combined-md5")) {
+				// store MD5 digest of username+password
+				user.password = StringUtils.COMBINED_MD5_TYPE + StringUtils.getMD5(user.username + value);
+			} else {
+				user.password = value;
+			}
+
+			// reset the cookie
+			user.cookie = StringUtils.getSHA1(user.username + value);
+		}
+
+		static boolean toBool(String value) throws UnloggedFailure {
 			String v = value.toLowerCase();
 			if (v.equals("t")
 					|| v.equals("true")
@@ -330,7 +647,11 @@ public class UsersDispatcher extends DispatchCommand {
 	}
 
 	@CommandMetaData(name = "permissions", aliases = { "perms" }, description = "Add or remove permissions from an account")
-	@UsageExample(syntax = "${cmd} john RW:alpha/repo.git RWC:alpha/repo2.git", description = "Add or set permissions for John")
+	@UsageExamples(examples = {
+		@UsageExample(syntax = "${cmd} john RW:alpha/repo.git RWC:alpha/repo2.git", description = "Add or set permissions for John"),
+		@UsageExample(syntax = "cat grants.txt | ${ssh} ${cmd} john --from -", description = "Add or set the PERMISSION:REPOSITORY lines of grants.txt"),
+		@UsageExample(syntax = "cat grants.txt | ${ssh} ${cmd} john --remove ALL --from -", description = "Replace all permissions of John with grants.txt")
+	})
 	public static class Permissions extends UserCommand {
 
 		@Argument(index = 1, multiValued = true, metaVar = "[PERMISSION:]REPOSITORY", usage = "a repository expression")
@@ -339,10 +660,14 @@ public class UsersDispatcher extends DispatchCommand {
 		@Option(name = "--remove", aliases = { "-r" }, metaVar = "REPOSITORY|ALL", usage = "remove a repository permission")
 		protected List<String> removals;
 
+		@Option(name = "--from", metaVar = "-", usage = "read PERMISSION:REPOSITORY lines from stdin")
+		protected String from;
+
 		@Override
 		public void run() throws UnloggedFailure {
 			IGitblit gitblit = getContext().getGitblit();
 			UserModel user = getUser(true);
+			Map<String, AccessPermission> before = new HashMap<String, AccessPermission>(user.permissions);
 
 			boolean modified = false;
 			if (!ArrayUtils.isEmpty(removals)) {
@@ -357,15 +682,15 @@ public class UsersDispatcher extends DispatchCommand {
 				modified = true;
 			}
 
+			Set<String> names = null;
 			if (!ArrayUtils.isEmpty(permissions)) {
+				names = PermissionGrants.getRepositoryNames(gitblit);
 				for (String perm : permissions) {
 					String repo = AccessPermission.repositoryFromRole(perm);
-					if (StringUtils.findInvalidCharacter(repo) == null) {
-						// explicit permision, confirm repository
-						RepositoryModel r = gitblit.getRepositoryModel(repo);
-						if (r == null) {
-							throw new UnloggedFailure(1, String.format("Repository %s does not exist!", repo));
-						}
+					// explicit permission, confirm repository
+					String error = PermissionGrants.validate(repo, names);
+					if (error != null) {
+						throw new UnloggedFailure(1, error);
 					}
 					AccessPermission ap = AccessPermission.permissionFromRole(perm);
 					user.setRepositoryPermission(repo, ap);
@@ -374,12 +699,40 @@ public class UsersDispatcher extends DispatchCommand {
 				modified = true;
 			}
 
-			if (modified && gitblit.updateUserModel(username, user)) {
-				// reload & display new permissions
-				user = gitblit.getUserModel(username);
+			if (from != null) {
+				if (!"-".equals(from)) {
+					throw new UnloggedFailure(1, "Permissions can only be read from stdin, use --from -");
+				}
+				if (names == null) {
+					names = PermissionGrants.getRepositoryNames(gitblit);
+				}
+				Map<String, AccessPermission> grants;
+				try {
+					grants = PermissionGrants.read(in, names);
+				} catch (IOException e) {
+					throw new UnloggedFailure(1, String.format("Failed to read permissions: %s", e.getMessage()));
+				}
+				for (Map.Entry<String, AccessPermission> grant : grants.entrySet()) {
+					user.setRepositoryPermission(grant.getKey(), grant.getValue());
+				}
+				log.info(String.format("Setting %d permissions from stdin for %s", grants.size(), username));
+				modified = true;
 			}
 
-			showPermissions(user);
+			if (modified) {
+				if (gitblit.updateUserModel(username, user)) {
+					// reload & display new permissions
+					user = gitblit.getUserModel(username);
+				} else if (from != null) {
+					throw new UnloggedFailure(1, String.format("Failed to update permissions for %s!", username));
+				}
+			}
+
+			if (from != null) {
+				stdout.println(PermissionGrants.diff(before, user.permissions));
+			} else {
+				showPermissions(user);
+			}
 		}
 
 		protected void showPermissions(UserModel user) {
@@ -439,12 +792,7 @@ public class UsersDispatcher extends DispatchCommand {
 
 			// owned repositories
 			String ownedTable;
-			List<RepositoryModel> owned = new ArrayList<RepositoryModel>();
-			for (RepositoryModel repository : getContext().getGitblit().getRepositoryModels(u)) {
-				if (repository.isOwner(u.username)) {
-					owned.add(repository);
-				}
-			}
+			List<RepositoryModel> owned = OwnerIndex.getOwned(getContext().getGitblit(), u.username);
 			if (owned.isEmpty()) {
 				ownedTable = FlipTable.EMPTY;
 			} else {
@@ -497,42 +845,335 @@ public class UsersDispatcher extends DispatchCommand {
 				userTitle += "  [DISABLED]";
 			}
 			String [] headers = new String[] { userTitle };
-			String[][] data = new String[8][];
+			String[][] data = new String[10][];
 			data[0] = new String [] { "FIELDS" };
 			data[1] = new String [] { fields };
 			data[2] = new String [] { "TEAMS" };
 			data[3] = new String [] { teams };
 			data[4] = new String [] { "OWNED REPOSITORIES" };
 			data[5] = new String [] { ownedTable };
-			data[4] = new String [] { "PERMISSIONS" };
-			data[5] = new String [] { permissions };
-			data[6] = new String [] { "SSH PUBLIC KEYS" };
-			data[7] = new String [] { keyTable };
+			data[6] = new String [] { "PERMISSIONS" };
+			data[7] = new String [] { permissions };
+			data[8] = new String [] { "SSH PUBLIC KEYS" };
+			data[9] = new String [] { keyTable };
 			stdout.println(FlipTable.of(headers, data));
 		}
 	}
 
+	@CommandMetaData(name = "export", description = "Export accounts as JSON lines")
+	@UsageExamples(examples = {
+		@UsageExample(syntax = "${cmd} > users.json", description = "Export every account, one JSON object per line"),
+		@UsageExample(syntax = "${cmd} j.* --no-keys", description = "Export the accounts which start with 'j' without their SSH keys"),
+	})
+	public static class ExportUsers extends SshCommand {
+
+		@Argument(index = 0, multiValued = true, metaVar = "FILTER", usage = "filter expression")
+		protected List<String> filters = new ArrayList<String>();
+
+		@Option(name = "--no-keys", usage = "do not look up the SSH public keys")
+		protected boolean noKeys;
+
+		@Override
+		public void run() throws UnloggedFailure {
+			NameFilter filter;
+			try {
+				filter = NameFilter.compile(filters);
+			} catch (PatternSyntaxException e) {
+				throw new UnloggedFailure(1, String.format("Invalid filter expression %s", e.getPattern()));
+			}
+
+			IGitblit gitblit = getContext().getGitblit();
+			List<String> names = new ArrayList<String>(gitblit.getAllUsernames());
+			Collections.sort(names, String.CASE_INSENSITIVE_ORDER);
+
+			// one account at a time, the names are the only list held in memory
+			int count = 0;
+			try {
+				for (String name : filter.selectSorted(names)) {
+					UserModel u = gitblit.getUserModel(name);
+					if (u == null) {
+						continue;
+					}
+					stdout.println(toJson(gitblit, u));
+					if (++count % 100 == 0) {
+						stdout.flush();
+						if (stdout.checkError()) {
+							return;
+						}
+					}
+				}
+			} catch (IOException e) {
+				throw new UnloggedFailure(1, e.getMessage());
+			}
+		}
+
+		/**
+		 * Writes the account, its teams, explicit permissions and key
+		 * fingerprints as one line of JSON.  Credentials are never exported.
+		 */
+		protected String toJson(IGitblit gitblit, UserModel u) throws IOException {
+			StringWriter sw = new StringWriter();
+			JsonWriter json = new JsonWriter(sw);
+			json.beginObject();
+			json.name("username").value(u.username);
+			json.name("displayName").value(u.displayName);
+			json.name("email").value(u.emailAddress);
+			json.name("accountType").value(u.accountType == null ? null : u.accountType.name());
+			json.name("canAdmin").value(u.canAdmin);
+			json.name("canFork").value(u.canFork);
+			json.name("canCreate").value(u.canCreate);
+			json.name("disabled").value(u.disabled);
+			json.name("teams").beginArray();
+			for (TeamModel team : u.teams) {
+				json.value(team.name);
+			}
+			json.endArray();
+			json.name("permissions").beginObject();
+			for (Map.Entry<String, AccessPermission> entry : u.permissions.entrySet()) {
+				json.name(entry.getKey()).value(entry.getValue().name());
+			}
+			json.endObject();
+			if (!noKeys) {
+				json.name("keys").beginArray();
+				List<SshKey> keys = gitblit.getPublicKeyManager().getKeys(u.username);
+				if (keys != null) {
+					for (SshKey key : keys) {
+						json.beginObject();
+						json.name("fingerprint").value(key.getFingerprint());
+						json.name("algorithm").value(key.getAlgorithm());
+						json.name("comment").value(key.getComment());
+						json.endObject();
+					}
+				}
+				json.endArray();
+			}
+			json.endObject();
+			json.close();
+			return sw.toString();
+		}
+	}
+
+	@CommandMetaData(name = "owned", description = "List the repositories owned by an account")
+	@UsageExample(syntax = "${cmd} john", description = "List the repositories owned by john")
+	public static class OwnedRepositories extends UserCommand {
+
+		@Option(name = "--tabbed", aliases = { "-t" }, usage = "as tabbed output")
+		protected boolean tabbed;
+
+		@Override
+		public void run() throws UnloggedFailure {
+			UserModel u = getUser(true);
+			List<RepositoryModel> owned = OwnerIndex.getOwned(getContext().getGitblit(), u.username);
+			if (tabbed) {
+				for (RepositoryModel r : owned) {
+					stdout.println(r.name);
+				}
+				return;
+			}
+			String[] headers = { "Repository", "Description" };
+			Object[][] data = new Object[owned.size()][];
+			for (int i = 0; i < owned.size(); i++) {
+				RepositoryModel r = owned.get(i);
+				data[i] = new Object[] { r.name, r.description };
+			}
+			stdout.println(FlipTable.of(headers, data, Borders.BODY_HCOLS));
+		}
+	}
+
 	@CommandMetaData(name = "list", aliases= { "ls" }, description = "List accounts")
 	@UsageExamples(examples = {
 		@UsageExample(syntax = "${cmd}", description = "List accounts as a table"),
 		@UsageExample(syntax = "${cmd} j.*", description = "List all accounts that start with 'j'"),
+		@UsageExample(syntax = "${cmd} --sort email --limit 100", description = "List the first 100 accounts ordered by email address"),
+		@UsageExample(syntax = "${cmd} --limit 100 --after CURSOR", description = "List the next 100 accounts after the cursor printed with the previous page"),
 	})
-	public static class ListUsers extends ListFilterCommand<UserModel> {
+	public static class ListUsers extends FilteredListCommand<ListUsers.Row> {
+
+		protected enum Sort {
+			name, displayname, email, type
+		}
+
+		@Option(name = "--sort", metaVar = "name|displayname|email|type", usage = "the sort order (default: name)")
+		protected Sort sort = Sort.name;
+
+		@Option(name = "--limit", metaVar = "N", usage = "the maximum number of accounts to list")
+		protected int limit;
+
+		@Option(name = "--offset", metaVar = "N", usage = "the number of accounts to skip")
+		protected int offset;
+
+		@Option(name = "--after", metaVar = "CURSOR", usage = "continue after the last account of a previous page")
+		protected String after;
+
+		/** the cursor of the next page, null on the last page */
+		private String next;
+
+		/**
+		 * The columns of one account, computed once from the model.
+		 */
+		static class Row {
+
+			final String username;
+
+			final String displayName;
+
+			final String email;
+
+			final String type;
+
+			final int teams;
+
+			final boolean admin;
+
+			final boolean create;
+
+			final boolean fork;
+
+			final boolean disabled;
+
+			/** the value of the sort column */
+			String key;
+
+			Row(UserModel u) {
+				this.username = u.username;
+				this.displayName = u.getDisplayName();
+				this.email = u.emailAddress == null ? "" : u.emailAddress;
+				this.admin = u.canAdmin();
+				this.create = admin || u.canCreate();
+				this.fork = admin || u.canFork();
+				this.disabled = u.disabled;
+				this.teams = u.teams.size();
+				this.type = u.accountType + (admin ? ",admin" : "");
+			}
+
+			/** a position decoded from a cursor */
+			private Row(String username, String key) {
+				this.username = username;
+				this.key = key;
+				this.displayName = this.email = this.type = null;
+				this.teams = 0;
+				this.admin = this.create = this.fork = this.disabled = false;
+			}
+
+			String getName() {
+				return (disabled ? "-" : (admin ? "*" : " ")) + username;
+			}
+		}
+
+		private static final Comparator<Row> ORDER = new Comparator<Row>() {
+			@Override
+			public int compare(Row a, Row b) {
+				int cmp = a.key.compareToIgnoreCase(b.key);
+				return cmp != 0 ? cmp : a.username.compareToIgnoreCase(b.username);
+			}
+		};
 
 		@Override
-		protected List<UserModel> getItems() {
+		protected List<Row> getItems() throws UnloggedFailure {
+			if (limit < 0 || offset < 0) {
+				throw new UnloggedFailure(1, "--limit and --offset must not be negative");
+			}
+			Row cursor = after == null ? null : decode(after);
 			IGitblit gitblit = getContext().getGitblit();
-			List<UserModel> users = gitblit.getAllUsers();
-			return users;
+			List<String> names = new ArrayList<String>(gitblit.getAllUsernames());
+			Collections.sort(names, String.CASE_INSENSITIVE_ORDER);
+			names = getFilter().selectSorted(names);
+
+			if (sort == Sort.name) {
+				// the names are the sort keys, only load the accounts of the page
+				int start = 0;
+				if (cursor != null) {
+					start = indexAfter(Collections.binarySearch(names, cursor.username, String.CASE_INSENSITIVE_ORDER));
+				}
+				List<Row> rows = new ArrayList<Row>(limit == 0 ? 16 : limit);
+				int i = (int) Math.min(names.size(), (long) start + offset);
+				for (; i < names.size() && (limit == 0 || rows.size() < limit); i++) {
+					UserModel u = gitblit.getUserModel(names.get(i));
+					if (u != null) {
+						Row row = new Row(u);
+						row.key = row.username;
+						rows.add(row);
+					}
+				}
+				if (i < names.size() && !rows.isEmpty()) {
+					next = encode(rows.get(rows.size() - 1));
+				}
+				return rows;
+			}
+
+			// other orders need the sort column of every matching account
+			List<Row> rows = new ArrayList<Row>(names.size());
+			for (String name : names) {
+				UserModel u = gitblit.getUserModel(name);
+				if (u != null) {
+					Row row = new Row(u);
+					switch (sort) {
+					case displayname:
+						row.key = row.displayName;
+						break;
+					case email:
+						row.key = row.email;
+						break;
+					default:
+						row.key = row.type;
+						break;
+					}
+					rows.add(row);
+				}
+			}
+			Collections.sort(rows, ORDER);
+			int start = 0;
+			if (cursor != null) {
+				start = indexAfter(Collections.binarySearch(rows, cursor, ORDER));
+			}
+			start = (int) Math.min(rows.size(), (long) start + offset);
+			int end = limit == 0 ? rows.size() : (int) Math.min(rows.size(), (long) start + limit);
+			if (end < rows.size() && end > start) {
+				next = encode(rows.get(end - 1));
+			}
+			return new ArrayList<Row>(rows.subList(start, end));
+		}
+
+		/**
+		 * Returns the index following a binary search result, so that a
+		 * page continues after the cursor even if that account was deleted.
+		 */
+		private static int indexAfter(int index) {
+			return index >= 0 ? index + 1 : -index - 1;
+		}
+
+		/**
+		 * Encodes the sort order and the position of the last row of a page.
+		 */
+		private String encode(Row row) {
+			String position = sort.name() + '\n' + row.username + '\n' + row.key;
+			return Base64.encodeBytes(position.getBytes(Constants.CHARSET));
+		}
+
+		private Row decode(String token) throws UnloggedFailure {
+			String position;
+			try {
+				position = new String(Base64.decode(token), Constants.CHARSET);
+			} catch (IllegalArgumentException e) {
+				throw new UnloggedFailure(1, String.format("Invalid cursor %s", token));
+			}
+			String[] fields = position.split("\n", 3);
+			if (fields.length != 3) {
+				throw new UnloggedFailure(1, String.format("Invalid cursor %s", token));
+			}
+			if (!fields[0].equals(sort.name())) {
+				throw new UnloggedFailure(1, String.format("The cursor continues --sort %s, not --sort %s", fields[0], sort.name()));
+			}
+			return new Row(fields[1], fields[2]);
 		}
 
 		@Override
-		protected boolean matches(String filter, UserModel u) {
-			return u.username.matches(filter);
+		protected String getName(Row row) {
+			return row.username;
 		}
 
 		@Override
-		protected void asTable(List<UserModel> list) {
+		protected void asTable(List<Row> list) {
 			String[] headers;
 			if (verbose) {
 				String[] h = { "Name", "Display name", "Email", "Type", "Teams", "Create?", "Fork?"};
@@ -544,49 +1185,54 @@ public class UsersDispatcher extends DispatchCommand {
 
 			Object[][] data = new Object[list.size()][];
 			for (int i = 0; i < list.size(); i++) {
-				UserModel u = list.get(i);
-
-				String name = (u.disabled ? "-" : ((u.canAdmin() ? "*" : " "))) + u.username;
+				Row u = list.get(i);
 				if (verbose) {
 					data[i] = new Object[] {
-							name,
+							u.getName(),
 							u.displayName,
-							u.emailAddress,
-							u.accountType + (u.canAdmin() ? ",admin":""),
-							u.teams.isEmpty() ? "" : u.teams.size(),
-							(u.canAdmin() || u.canCreate()) ? "Y":"",
-							(u.canAdmin() || u.canFork()) ? "Y" : ""};
+							u.email,
+							u.type,
+							u.teams == 0 ? "" : u.teams,
+							u.create ? "Y":"",
+							u.fork ? "Y" : ""};
 				} else {
 					data[i] = new Object[] {
-							name,
+							u.getName(),
 							u.displayName,
-							u.emailAddress,
-							u.accountType + (u.canAdmin() ? ",admin":"")};
+							u.email,
+							u.type};
 				}
 			}
 			stdout.print(FlipTable.of(headers, data, Borders.BODY_HCOLS));
 			stdout.println("  * = admin account,  - = disabled account");
+			if (next != null) {
+				stdout.println(String.format("  next page: --after %s", next));
+			}
 			stdout.println();
 		}
 
 		@Override
-		protected void asTabbed(List<UserModel> users) {
+		protected void asTabbed(List<Row> users) {
 			if (verbose) {
-				for (UserModel u : users) {
+				for (Row u : users) {
 					outTabbed(
-							u.disabled ? "-" : ((u.canAdmin() ? "*" : " ")) + u.username,
-							u.getDisplayName(),
-							u.emailAddress == null ? "" : u.emailAddress,
-							u.accountType + (u.canAdmin() ? ",admin":""),
-							u.teams.isEmpty() ? "" : u.teams.size(),
-							(u.canAdmin() || u.canCreate()) ? "Y":"",
-							(u.canAdmin() || u.canFork()) ? "Y" : "");
+							u.getName(),
+							u.displayName,
+							u.email,
+							u.type,
+							u.teams == 0 ? "" : u.teams,
+							u.create ? "Y":"",
+							u.fork ? "Y" : "");
 				}
 			} else {
-				for (UserModel u : users) {
-					outTabbed(u.disabled ? "-" : ((u.canAdmin() ? "*" : " ")) + u.username);
+				for (Row u : users) {
+					outTabbed(u.getName());
 				}
 			}
+			if (next != null) {
+				// keep stdout parseable, the cursor goes to stderr
+				stderr.println(String.format("next page: --after %s", next));
+			}
 		}
 	}
 }
\ No newline at end of file
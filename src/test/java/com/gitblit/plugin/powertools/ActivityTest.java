@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the cached commit counts.
+ */
+public class ActivityTest {
+
+	private static final String NAME = "activity.git";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Git git;
+
+	@Before
+	public void setUp() throws Exception {
+		Activity.invalidate(NAME);
+		git = Git.init().setDirectory(folder.newFolder("work")).call();
+		commit(20);
+		commit(10);
+		commit(1);
+	}
+
+	@After
+	public void tearDown() {
+		git.getRepository().close();
+		Activity.invalidate(NAME);
+	}
+
+	@Test
+	public void testCachedCounts() throws Exception {
+		Activity.Stats stats = Activity.get(NAME, git.getRepository(), 30);
+		assertFalse(stats.cached);
+		assertEquals(3, stats.commits);
+
+		stats = Activity.get(NAME, git.getRepository(), 7);
+		assertTrue(stats.cached);
+		assertEquals(1, stats.commits);
+	}
+
+	@Test
+	public void testFastForwardTrimsToThePeriod() throws Exception {
+		assertEquals(3, Activity.get(NAME, git.getRepository(), 30).commits);
+
+		// the new commit is walked and the counts are trimmed to 7 days
+		commit(0);
+		Activity.Stats stats = Activity.get(NAME, git.getRepository(), 7);
+		assertFalse(stats.cached);
+		assertEquals(2, stats.commits);
+
+		// the longer period is walked again
+		stats = Activity.get(NAME, git.getRepository(), 30);
+		assertFalse(stats.cached);
+		assertEquals(4, stats.commits);
+	}
+
+	private void commit(int daysAgo) throws Exception {
+		Date when = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(daysAgo));
+		PersonIdent ident = new PersonIdent("Activity", "activity@example.com", when, TimeZone.getTimeZone("UTC"));
+		git.commit().setMessage("commit " + daysAgo).setAuthor(ident).setCommitter(ident).call();
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.gitblit.plugin.powertools.DiskUsage.Area;
+import com.gitblit.plugin.powertools.DiskUsage.Usage;
+
+/**
+ * Tests that cached listings never hide a change in size.
+ */
+public class DiskUsageTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@After
+	public void tearDown() {
+		DiskUsage.shutdown();
+	}
+
+	@Test
+	public void testAppendedReflog() throws Exception {
+		File repo = folder.newFolder("repo.git");
+		write(new File(repo, "objects/pack/pack-1.pack"), 100);
+		write(new File(repo, "refs/heads/master"), 41);
+		File reflog = new File(repo, "logs/refs/heads/master");
+		write(reflog, 10);
+		// listings of directories modified within the last seconds are never reused
+		long mtime = System.currentTimeMillis() - 60000;
+		age(repo, mtime);
+
+		Usage usage = measure("repo.git");
+		assertEquals(100, usage.get(Area.pack));
+		assertEquals(41, usage.get(Area.refs));
+		assertEquals(151, usage.getTotal());
+
+		// appending to a file does not change the mtime of its directory
+		write(reflog, 20);
+		reflog.getParentFile().setLastModified(mtime);
+
+		assertEquals(171, measure("repo.git").getTotal());
+	}
+
+	private Usage measure(String name) {
+		return DiskUsage.measure(folder.getRoot(), Arrays.asList(name)).get(0);
+	}
+
+	private static void age(File dir, long mtime) {
+		for (File file : dir.listFiles()) {
+			if (file.isDirectory()) {
+				age(file, mtime);
+			}
+		}
+		dir.setLastModified(mtime);
+	}
+
+	private static void write(File file, int bytes) throws IOException {
+		file.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			out.write(new byte[bytes]);
+		} finally {
+			out.close();
+		}
+	}
+}
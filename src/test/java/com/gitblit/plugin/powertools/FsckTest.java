@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the pack checks of fsck.
+ */
+public class FsckTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Repository db;
+
+	private File packs;
+
+	@Before
+	public void setUp() throws Exception {
+		Git git = Git.init().setDirectory(folder.newFolder("work")).call();
+		git.commit().setMessage("fsck test").call();
+		db = git.getRepository();
+		new GC((FileRepository) db).gc();
+		packs = new File(db.getDirectory(), "objects/pack");
+	}
+
+	@After
+	public void tearDown() {
+		db.close();
+	}
+
+	@Test
+	public void testPacks() {
+		Fsck.Result r = Fsck.check("test.git", db, true);
+		assertTrue(r.errors.toString(), r.isOk());
+		assertEquals(1, r.packs);
+	}
+
+	@Test
+	public void testSkipIncomingPack() throws Exception {
+		write(new File(packs, "incoming_123456.pack"));
+		write(new File(packs, "pack-0123456789012345678901234567890123456789.pack"));
+
+		Fsck.Result r = Fsck.check("test.git", db, false);
+		assertTrue(r.errors.toString(), r.isOk());
+		assertEquals(1, r.packs);
+	}
+
+	@Test
+	public void testCorruptPack() throws Exception {
+		File[] pack = packs.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".pack");
+			}
+		});
+		RandomAccessFile raf = new RandomAccessFile(pack[0], "rw");
+		try {
+			raf.seek(raf.length() - 1);
+			int b = raf.read();
+			raf.seek(raf.length() - 1);
+			raf.write(b ^ 0xff);
+		} finally {
+			raf.close();
+		}
+
+		Fsck.Result r = Fsck.check("test.git", db, false);
+		assertFalse(r.isOk());
+	}
+
+	private static void write(File file) throws Exception {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(new byte[] { 'P', 'A', 'C', 'K' });
+		} finally {
+			out.close();
+		}
+	}
+}
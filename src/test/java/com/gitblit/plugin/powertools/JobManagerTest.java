@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests job cancellation and repository name reservations.
+ */
+public class JobManagerTest {
+
+	private JobManager manager;
+
+	private CountDownLatch release;
+
+	@Before
+	public void setUp() {
+		JobManager.start();
+		manager = JobManager.get();
+		release = new CountDownLatch(1);
+	}
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		JobManager.stop();
+	}
+
+	@Test
+	public void testCancelQueuedJob() throws Exception {
+		// occupy both workers so that the next job stays queued
+		Job a = manager.submit(new Blocking());
+		Job b = manager.submit(new Blocking());
+		final AtomicBoolean executed = new AtomicBoolean();
+		Job queued = manager.submit(new Job("queued", "admin") {
+			@Override
+			protected String execute(JobMonitor monitor) {
+				executed.set(true);
+				return "executed";
+			}
+		});
+		queued.cancel();
+		assertEquals(Job.State.CANCELLED, queued.getState());
+
+		// run the cancelled job as a worker would, it must not start
+		queued.run();
+		assertFalse(executed.get());
+		assertEquals(Job.State.CANCELLED, queued.getState());
+		assertNull(queued.getStarted());
+
+		release.countDown();
+		waitFor(a);
+		waitFor(b);
+		assertEquals(Job.State.DONE, a.getState());
+	}
+
+	@Test
+	public void testReservation() throws Exception {
+		Job mirror = manager.submit(new Blocking("mirrors/Repo.git"));
+		assertSame(mirror, manager.getReservation("mirrors/repo.git"));
+		try {
+			manager.submit(new Blocking("mirrors/repo.git"));
+			fail("The name is reserved");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		release.countDown();
+		waitFor(mirror);
+		assertNull(manager.getReservation("mirrors/repo.git"));
+		waitFor(manager.submit(new Job("again", "admin", "mirrors/repo.git") {
+			@Override
+			protected String execute(JobMonitor monitor) {
+				return "done";
+			}
+		}));
+	}
+
+	@Test
+	public void testReservations() throws Exception {
+		Job gc = manager.submit(new Blocking("a.git", "b.git"));
+		assertSame(gc, manager.getReservation("A.git"));
+		assertSame(gc, manager.getReservation("b.git"));
+		try {
+			manager.submit(new Blocking("c.git", "b.git"));
+			fail("b.git is reserved");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		// a refused job reserves nothing
+		assertNull(manager.getReservation("c.git"));
+
+		release.countDown();
+		waitFor(gc);
+		assertNull(manager.getReservation("a.git"));
+	}
+
+	@Test
+	public void testRunHoldsReservations() throws Exception {
+		final Job[] held = new Job[1];
+		Job job = manager.run(new Job("inline", "admin", Arrays.asList("a.git")) {
+			@Override
+			protected String execute(JobMonitor monitor) {
+				held[0] = manager.getReservation("a.git");
+				return "done";
+			}
+		});
+		assertSame(job, held[0]);
+		assertEquals(Job.State.DONE, job.getState());
+		assertNull(manager.getReservation("a.git"));
+
+		Job gc = manager.submit(new Blocking("a.git"));
+		try {
+			manager.run(new Blocking("a.git"));
+			fail("a.git is reserved");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		release.countDown();
+		waitFor(gc);
+	}
+
+	private static void waitFor(Job job) throws InterruptedException {
+		long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+		while (!job.getState().isFinished() && System.currentTimeMillis() < timeout) {
+			Thread.sleep(10);
+		}
+		if (!job.getState().isFinished()) {
+			fail(String.format("Job %d did not finish", job.getId()));
+		}
+	}
+
+	/**
+	 * A job which runs until the test releases it.
+	 */
+	private class Blocking extends Job {
+
+		Blocking(String... reservations) {
+			super("blocking", "admin", Arrays.asList(reservations));
+		}
+
+		@Override
+		protected String execute(JobMonitor monitor) throws InterruptedException {
+			release.await(10, TimeUnit.SECONDS);
+			return "released";
+		}
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.BundleWriter;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests mirror creation, mirror synchronization and bundle import against a
+ * bare file:// upstream.
+ */
+public class MirrorUtilsTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Git work;
+
+	private Repository upstream;
+
+	private String url;
+
+	@Before
+	public void setUp() throws Exception {
+		File upstreamFolder = folder.newFolder("upstream.git");
+		upstream = Git.init().setBare(true).setDirectory(upstreamFolder).call().getRepository();
+		url = "file://" + upstreamFolder.getAbsolutePath();
+
+		work = Git.init().setDirectory(folder.newFolder("work")).call();
+		commit("README", "mirror test");
+		work.branchCreate().setName("feature").call();
+		commit("CHANGES", "first change");
+		work.tag().setName("v1").call();
+		push();
+	}
+
+	@After
+	public void tearDown() {
+		work.getRepository().close();
+		upstream.close();
+	}
+
+	@Test
+	public void testCreateMirrorWithSingleTransfer() throws Exception {
+		Repository mirror = MirrorUtils.createMirror(new File(folder.getRoot(), "mirror.git"), url);
+		try {
+			assertTrue(mirror.getConfig().getBoolean("remote", MirrorUtils.ORIGIN, "mirror", false));
+			assertEquals(MirrorUtils.MIRROR_REFSPEC, mirror.getConfig().getString("remote", MirrorUtils.ORIGIN, "fetch"));
+
+			MirrorUtils.fetch(mirror, NullProgressMonitor.INSTANCE);
+
+			assertEquals(getRefs(upstream), getRefs(mirror));
+			assertHead(mirror, "refs/heads/master");
+			// one transfer, one pack and no loose objects
+			assertEquals(1, countPacks(mirror));
+			assertEquals(0, countLooseObjects(mirror));
+			assertTrue(MirrorUtils.getPackedObjectCount(mirror) > 0);
+
+			// an up to date mirror transfers nothing
+			MirrorUtils.fetch(mirror, NullProgressMonitor.INSTANCE);
+			assertEquals(1, countPacks(mirror));
+		} finally {
+			mirror.close();
+		}
+	}
+
+	@Test
+	public void testMirrorFollowsUpstreamHead() throws Exception {
+		RefUpdate u = upstream.updateRef(Constants.HEAD);
+		u.disableRefLog();
+		u.link("refs/heads/feature");
+
+		Repository mirror = MirrorUtils.createMirror(new File(folder.getRoot(), "mirror.git"), url);
+		try {
+			MirrorUtils.fetch(mirror, NullProgressMonitor.INSTANCE);
+			assertHead(mirror, "refs/heads/feature");
+		} finally {
+			mirror.close();
+		}
+	}
+
+	@Test
+	public void testSyncMirror() throws Exception {
+		Repository mirror = MirrorUtils.createMirror(new File(folder.getRoot(), "mirror.git"), url);
+		try {
+			FetchResult result = MirrorUtils.fetch(mirror, NullProgressMonitor.INSTANCE);
+			String fingerprint = MirrorUtils.fingerprint(result.getAdvertisedRefs());
+			assertEquals(fingerprint, MirrorUtils.fingerprint(MirrorUtils.lsRemote(mirror)));
+
+			// a new commit changes the fingerprint and is fetched
+			commit("CHANGES", "second change");
+			push();
+			assertFalse(fingerprint.equals(MirrorUtils.fingerprint(MirrorUtils.lsRemote(mirror))));
+			result = MirrorUtils.fetch(mirror, NullProgressMonitor.INSTANCE);
+			assertEquals(1, result.getTrackingRefUpdates().size());
+			assertEquals(getRefs(upstream), getRefs(mirror));
+
+			// a deleted upstream branch is pruned
+			RefUpdate u = upstream.updateRef("refs/heads/feature");
+			u.setForceUpdate(true);
+			assertEquals(RefUpdate.Result.FORCED, u.delete());
+			MirrorUtils.fetch(mirror, NullProgressMonitor.INSTANCE);
+			assertNull(mirror.getRef("refs/heads/feature"));
+			assertEquals(getRefs(upstream), getRefs(mirror));
+		} finally {
+			mirror.close();
+		}
+	}
+
+	@Test
+	public void testFetchBundle() throws Exception {
+		BundleWriter writer = new BundleWriter(upstream);
+		for (Ref ref : upstream.getRefDatabase().getRefs(Constants.R_REFS).values()) {
+			writer.include(ref);
+		}
+		ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+		writer.writeBundle(NullProgressMonitor.INSTANCE, bundle);
+
+		Repository repository = new FileRepository(new File(folder.getRoot(), "bundle.git"));
+		try {
+			repository.create(true);
+			MirrorUtils.fetchBundle(repository, new ByteArrayInputStream(bundle.toByteArray()), NullProgressMonitor.INSTANCE);
+
+			assertEquals(getRefs(upstream), getRefs(repository));
+			assertHead(repository, "refs/heads/master");
+			assertEquals(1, countPacks(repository));
+			assertEquals(0, countLooseObjects(repository));
+		} finally {
+			repository.close();
+		}
+	}
+
+	@Test
+	public void testGetHost() {
+		assertEquals("example.com", MirrorUtils.getHost("https://Example.com/r/repo.git"));
+		assertEquals("example.com", MirrorUtils.getHost("git@example.com:repo.git"));
+		assertEquals("", MirrorUtils.getHost(url));
+		assertEquals("", MirrorUtils.getHost(null));
+	}
+
+	private void commit(String file, String message) throws Exception {
+		FileWriter writer = new FileWriter(new File(work.getRepository().getWorkTree(), file), true);
+		try {
+			writer.write(message + "\n");
+		} finally {
+			writer.close();
+		}
+		work.add().addFilepattern(file).call();
+		work.commit().setMessage(message).call();
+	}
+
+	private void push() throws Exception {
+		work.push().setRemote(url).setForce(true)
+				.setRefSpecs(new RefSpec("refs/heads/*:refs/heads/*"), new RefSpec("refs/tags/*:refs/tags/*"))
+				.call();
+	}
+
+	private static Map<String, ObjectId> getRefs(Repository repository) throws IOException {
+		Map<String, ObjectId> refs = new TreeMap<String, ObjectId>();
+		for (Ref ref : repository.getRefDatabase().getRefs(Constants.R_REFS).values()) {
+			refs.put(ref.getName(), ref.getObjectId());
+		}
+		return refs;
+	}
+
+	private static void assertHead(Repository repository, String branch) throws IOException {
+		Ref head = repository.getRef(Constants.HEAD);
+		assertNotNull(head);
+		assertTrue(head.isSymbolic());
+		assertEquals(branch, head.getTarget().getName());
+	}
+
+	private static int countPacks(Repository repository) {
+		String[] packs = new File(repository.getDirectory(), "objects/pack").list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".pack");
+			}
+		});
+		return packs == null ? 0 : packs.length;
+	}
+
+	private static int countLooseObjects(Repository repository) {
+		int count = 0;
+		File[] dirs = new File(repository.getDirectory(), "objects").listFiles();
+		for (File dir : dirs) {
+			if (dir.isDirectory() && dir.getName().length() == 2) {
+				count += dir.list().length;
+			}
+		}
+		return count;
+	}
+}
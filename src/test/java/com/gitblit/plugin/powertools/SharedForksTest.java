@@ -0,0 +1,268 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.util.IO;
+import org.eclipse.jgit.util.RawParseUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests sharing the objects of an origin with a fork.
+ */
+public class SharedForksTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File root;
+
+	private ObjectId commit;
+
+	@Before
+	public void setUp() throws Exception {
+		root = folder.newFolder("repositories");
+		Git.init().setBare(true).setDirectory(new File(root, "origin.git")).call().getRepository().close();
+		Git work = Git.init().setDirectory(folder.newFolder("work")).call();
+		try {
+			RevCommit c = work.commit().setMessage("shared").call();
+			commit = c.getId();
+			work.push().setRemote(new File(root, "origin.git").toURI().toString()).add("master").call();
+		} finally {
+			work.getRepository().close();
+		}
+	}
+
+	@Test
+	public void testShare() throws Exception {
+		Repository origin = open("origin.git");
+		Repository fork = create("~james/origin.git");
+		try {
+			new GC((FileRepository) origin).gc();
+			SharedForks.share(origin, fork, "~james/origin.git");
+
+			assertTrue(SharedForks.isShared(fork));
+			assertTrue(SharedForks.hasSharedForks(origin));
+			assertNotNull(origin.getRef("refs/powertools/shared/" + commit.name()));
+			assertEquals("../../../origin.git/objects", readAlternates(fork));
+			assertEquals(commit, fork.resolve(Constants.R_HEADS + "master"));
+		} finally {
+			fork.close();
+			origin.close();
+		}
+
+		// the relative alternates survive moving both repositories
+		assertTrue(root.renameTo(new File(folder.getRoot(), "moved")));
+		root = new File(folder.getRoot(), "moved");
+		Repository moved = open("~james/origin.git");
+		try {
+			assertTrue(moved.hasObject(commit));
+		} finally {
+			moved.close();
+		}
+	}
+
+	@Test
+	public void testRelink() throws Exception {
+		Repository origin = open("origin.git");
+		Repository fork = create("~james/origin.git");
+		try {
+			SharedForks.share(origin, fork, "~james/origin.git");
+		} finally {
+			fork.close();
+		}
+
+		File group = new File(root, "group/james");
+		group.getParentFile().mkdirs();
+		assertTrue(new File(root, "~james").renameTo(group));
+		fork = open("group/james/origin.git");
+		try {
+			SharedForks.relink(origin, fork);
+			assertEquals("../../../../origin.git/objects", readAlternates(fork));
+			fork.close();
+			fork = open("group/james/origin.git");
+			assertTrue(fork.hasObject(commit));
+		} finally {
+			fork.close();
+			origin.close();
+		}
+	}
+
+	@Test
+	public void testOriginGcKeepsBorrowedObjects() throws Exception {
+		Repository origin = open("origin.git");
+		Repository fork = create("~james/origin.git");
+		try {
+			GC gc = new GC((FileRepository) origin);
+			gc.gc();
+			SharedForks.share(origin, fork, "~james/origin.git");
+
+			// rewind the origin and collect everything unreachable
+			RefUpdate u = origin.updateRef(Constants.HEAD);
+			u.link(Constants.R_HEADS + "other");
+			u = origin.updateRef(Constants.R_HEADS + "master");
+			u.setForceUpdate(true);
+			assertEquals(RefUpdate.Result.FORCED, u.delete());
+			gc = new GC((FileRepository) origin);
+			gc.setExpireAgeMillis(0);
+			gc.gc();
+		} finally {
+			fork.close();
+			origin.close();
+		}
+
+		fork = open("~james/origin.git");
+		try {
+			assertTrue(fork.hasObject(commit));
+		} finally {
+			fork.close();
+		}
+	}
+
+	@Test
+	public void testProtectAnchorsAdvertisedTips() throws Exception {
+		Repository origin = open("origin.git");
+		Repository fork = create("~james/origin.git");
+		ObjectId later;
+		try {
+			SharedForks.share(origin, fork, "~james/origin.git");
+
+			// the origin receives a commit after the fork was created
+			Git work = Git.cloneRepository().setURI(origin.getDirectory().toURI().toString())
+					.setDirectory(folder.newFolder("later")).call();
+			try {
+				later = work.commit().setMessage("later").call().getId();
+				work.push().add("master").call();
+			} finally {
+				work.getRepository().close();
+			}
+			assertNull(origin.getRef("refs/powertools/shared/" + later.name()));
+
+			// a push into the fork may omit it, so it is anchored
+			SharedForks.protect(origin, fork, Arrays.asList(later, commit));
+			assertNotNull(origin.getRef("refs/powertools/shared/" + later.name()));
+
+			RefUpdate u = origin.updateRef(Constants.R_HEADS + "master");
+			u.setNewObjectId(commit);
+			u.setForceUpdate(true);
+			assertEquals(RefUpdate.Result.FORCED, u.update());
+			GC gc = new GC((FileRepository) origin);
+			gc.setExpireAgeMillis(0);
+			gc.gc();
+			assertTrue(origin.hasObject(later));
+		} finally {
+			fork.close();
+			origin.close();
+		}
+	}
+
+	@Test
+	public void testProtectKeepsOneAnchorPerHistory() throws Exception {
+		Repository origin = open("origin.git");
+		Repository fork = create("~james/origin.git");
+		try {
+			SharedForks.share(origin, fork, "~james/origin.git");
+
+			Git work = Git.cloneRepository().setURI(origin.getDirectory().toURI().toString())
+					.setDirectory(folder.newFolder("later")).call();
+			ObjectId later;
+			try {
+				later = work.commit().setMessage("later").call().getId();
+				work.push().add("master").call();
+			} finally {
+				work.getRepository().close();
+			}
+
+			// the new tip replaces the anchor of its parent
+			SharedForks.protect(origin, fork, Arrays.asList(later, commit));
+			assertNotNull(origin.getRef("refs/powertools/shared/" + later.name()));
+			assertNull(origin.getRef("refs/powertools/shared/" + commit.name()));
+			assertEquals(1, origin.getRefDatabase().getRefs("refs/powertools/shared/").size());
+
+			// an anchored commit is not anchored again
+			SharedForks.protect(origin, fork, Arrays.asList(commit));
+			assertNull(origin.getRef("refs/powertools/shared/" + commit.name()));
+
+			// the anchors are packed
+			for (Ref ref : origin.getRefDatabase().getRefs("refs/powertools/shared/").values()) {
+				assertEquals(Ref.Storage.PACKED, ref.getStorage());
+			}
+		} finally {
+			fork.close();
+			origin.close();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testProtectRefusesDroppedObjects() throws Exception {
+		Repository origin = open("origin.git");
+		Repository fork = create("~james/origin.git");
+		try {
+			SharedForks.share(origin, fork, "~james/origin.git");
+			SharedForks.protect(origin, fork, Arrays.asList(ObjectId.fromString("0123456789012345678901234567890123456789")));
+		} finally {
+			fork.close();
+			origin.close();
+		}
+	}
+
+	@Test
+	public void testNotShared() throws Exception {
+		Repository origin = open("origin.git");
+		try {
+			assertFalse(SharedForks.isShared(origin));
+			assertFalse(SharedForks.hasSharedForks(origin));
+		} finally {
+			origin.close();
+		}
+	}
+
+	private Repository open(String name) throws Exception {
+		return new FileRepository(new File(root, name));
+	}
+
+	private Repository create(String name) throws Exception {
+		Repository db = open(name);
+		db.create(true);
+		return db;
+	}
+
+	private static String readAlternates(Repository repository) throws Exception {
+		File alternates = new File(repository.getDirectory(), "objects/info/alternates");
+		return RawParseUtils.decode(IO.readFully(alternates)).trim();
+	}
+}
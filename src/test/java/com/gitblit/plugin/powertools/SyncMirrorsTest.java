@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.powertools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.RefSpec;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.gitblit.manager.IGitblit;
+import com.gitblit.models.RepositoryModel;
+import com.gitblit.plugin.powertools.RepositoriesDispatcher.SyncMirrors;
+
+/**
+ * Tests synchronizing several mirrors of file:// upstreams, which all share
+ * the same empty host.
+ */
+public class SyncMirrorsTest {
+
+	private static final int MIRRORS = 5;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File root;
+
+	private IGitblit gitblit;
+
+	private List<RepositoryModel> mirrors = new ArrayList<RepositoryModel>();
+
+	@Before
+	public void setUp() throws Exception {
+		root = folder.newFolder("repositories");
+		for (int i = 0; i < MIRRORS; i++) {
+			File upstream = folder.newFolder("upstream" + i + ".git");
+			Git.init().setBare(true).setDirectory(upstream).call().getRepository().close();
+			Git work = Git.init().setDirectory(folder.newFolder("work" + i)).call();
+			try {
+				work.commit().setMessage("commit " + i).call();
+				work.push().setRemote(upstream.toURI().toString()).setRefSpecs(new RefSpec("refs/heads/*:refs/heads/*")).call();
+			} finally {
+				work.getRepository().close();
+			}
+
+			RepositoryModel mirror = new RepositoryModel();
+			mirror.name = "mirror/upstream" + i + ".git";
+			mirror.origin = upstream.toURI().toString();
+			mirror.isMirror = true;
+			MirrorUtils.createMirror(new File(root, mirror.name), mirror.origin).close();
+			mirrors.add(mirror);
+		}
+
+		final File state = new File(folder.getRoot(), "sync.state");
+		gitblit = (IGitblit) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { IGitblit.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if ("getRepository".equals(method.getName())) {
+							File dir = new File(root, (String) args[0]);
+							return dir.exists() ? new FileRepository(dir) : null;
+						} else if ("getFileOrFolder".equals(method.getName())) {
+							return state;
+						}
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	@Test
+	public void testSyncAll() throws Exception {
+		SyncMirrors sync = new SyncMirrors();
+		sync.threads = 3;
+		sync.perHost = 1;
+
+		String output = syncAll(sync);
+		assertTrue(output, output.endsWith(String.format("%d fetched, 0 unchanged, 0 failed", MIRRORS)));
+		for (RepositoryModel mirror : mirrors) {
+			Repository db = gitblit.getRepository(mirror.name);
+			try {
+				assertTrue(db.getRef(Constants.R_HEADS + "master") != null);
+			} finally {
+				db.close();
+			}
+		}
+
+		// nothing changed upstream, the second sync only lists the refs
+		sync.perHost = 2;
+		output = syncAll(sync);
+		assertTrue(output, output.endsWith(String.format("0 fetched, %d unchanged, 0 failed", MIRRORS)));
+	}
+
+	@Test
+	public void testMissingMirror() throws Exception {
+		RepositoryModel missing = new RepositoryModel();
+		missing.name = "mirror/missing.git";
+		missing.origin = "file:///missing.git";
+		missing.isMirror = true;
+		mirrors.add(missing);
+
+		SyncMirrors sync = new SyncMirrors();
+		sync.threads = 2;
+		sync.perHost = 1;
+		String output = syncAll(sync);
+		assertTrue(output, output.contains("mirror/missing.git: failed, repository not found"));
+		assertEquals(1, count(output, ": failed"));
+	}
+
+	private String syncAll(SyncMirrors sync) throws Exception {
+		StringWriter sw = new StringWriter();
+		PrintWriter pw = new PrintWriter(sw);
+		sync.syncAll(gitblit, mirrors, NullProgressMonitor.INSTANCE, pw);
+		pw.flush();
+		// drop the elapsed time
+		return sw.toString().trim().replaceAll(" in \\d+ ms$", "");
+	}
+
+	private static int count(String s, String token) {
+		int n = 0;
+		for (int i = s.indexOf(token); i >= 0; i = s.indexOf(token, i + 1)) {
+			n++;
+		}
+		return n;
+	}
+}